@@ -0,0 +1,178 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd.bench;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.johnstok.jstatsd.Aggregator;
+import com.johnstok.jstatsd.Backend;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.ConsoleBackend;
+import com.johnstok.jstatsd.RingBufferBackend;
+import com.johnstok.jstatsd.YammerBackend;
+import com.johnstok.utils.Service;
+
+
+/**
+ * Measures each back end receiving a mix of counters, timers, gauges and
+ * set members, from one thread and from several threads at once.
+ * <p>
+ * Each thread cycles through the same buckets, sixteen for each type, so
+ * the contended case measures threads updating the same metrics. The
+ * aggregator and ring buffer deliver to a back end that does nothing; the
+ * console writes to a stream that discards its output.
+ *
+ * @author Keith Webster Johnston.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class BackendBenchmark {
+
+    private static final int BUCKETS = 64;
+
+    @Param({"aggregator", "yammer", "ring", "console"})
+    public String backend;
+
+    private Backend _backend;
+    private Service _service;
+    private Bucket[] _buckets;
+
+
+    /**
+     * The position of a thread in its cycle through buckets and types.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int _next;
+    }
+
+
+    @Setup
+    public void setUp() {
+        final BucketTable table = new BucketTable(true);
+        _buckets = new Bucket[BUCKETS];
+        for (int i=0; i<BUCKETS; i++) {
+            _buckets[i] = table.get("bench.bucket"+i);
+        }
+
+        if ("aggregator".equals(backend)) {
+            final Aggregator aggregator =
+                new Aggregator(new NullBackend(null), 1, TimeUnit.SECONDS);
+            aggregator.start();
+            _service = aggregator;
+            _backend = aggregator;
+        } else if ("yammer".equals(backend)) {
+            final YammerBackend yammer = new YammerBackend();
+            _service = yammer;
+            _backend = yammer;
+        } else if ("ring".equals(backend)) {
+            final RingBufferBackend ring =
+                new RingBufferBackend(
+                    new NullBackend(null),
+                    64*1024,
+                    RingBufferBackend.OverloadPolicy.BLOCK,
+                    RingBufferBackend.WaitStrategy.PARK);
+            ring.start();
+            _service = ring;
+            _backend = ring;
+        } else if ("console".equals(backend)) {
+            final ConsoleBackend console =
+                new ConsoleBackend(
+                    new OutputStream() {
+                        @Override
+                        public void write(final int b) { /* No-op. */ }
+
+                        @Override
+                        public void write(final byte[] b,
+                                          final int off,
+                                          final int len) { /* No-op. */ }
+                    },
+                    ConsoleBackend.DEFAULT_BUFFER_SIZE,
+                    ConsoleBackend.DEFAULT_FLUSH_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+            _service = console;
+            _backend = console;
+        } else {
+            throw new IllegalArgumentException("Unknown backend: "+backend);
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        if (null!=_service) {
+            _service.stop();
+        }
+    }
+
+
+    private void apply(final Cursor cursor) {
+        final int next = cursor._next++;
+        final int type = (next>>>4) & 3;
+        // Each type has its own buckets, as a bucket's type can't change.
+        final Bucket bucket = _buckets[(type<<4) | (next & 15)];
+        switch (type) {
+            case 0:
+                _backend.count(bucket, 1, 1);
+                break;
+            case 1:
+                _backend.time(bucket, next & 1023, 1);
+                break;
+            case 2:
+                _backend.gauge(bucket, next);
+                break;
+            default:
+                _backend.set(bucket, next*0x9E3779B97F4A7C15L);
+                break;
+        }
+    }
+
+
+    @Benchmark
+    @Threads(1)
+    public void singleThreaded(final Cursor cursor) {
+        apply(cursor);
+    }
+
+
+    @Benchmark
+    @Threads(4)
+    public void contended(final Cursor cursor) {
+        apply(cursor);
+    }
+}
@@ -0,0 +1,175 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.johnstok.jstatsd.Aggregator;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.EventReceiverPool;
+
+
+/**
+ * Measures end-to-end ingestion: packets sent over the loopback interface,
+ * received, parsed and aggregated.
+ * <p>
+ * Each invocation sends a batch of packets and then waits until the
+ * receivers have processed them, so the score is the rate at which the
+ * daemon keeps up rather than the rate at which packets can be sent.
+ * Packets lost by the OS are given up on after a second, and reported as
+ * the <code>lost</code> secondary result.
+ * <p>
+ * Packets are sent round-robin from several client sockets. With
+ * SO_REUSEPORT the kernel picks a receiver's socket by the sender's address
+ * and port, so traffic from a single client would reach only one of the
+ * receivers; without it the receivers drain one shared socket.
+ *
+ * @author Keith Webster Johnston.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class IngestBenchmark {
+
+    private static final int BATCH = 64;
+    private static final int CLIENTS_PER_RECEIVER = 16;
+
+    @Param({"1", "4"})
+    public int receiverThreads;
+
+    @Param({"false", "true"})
+    public boolean reusePort;
+
+    private Aggregator _aggregator;
+    private EventReceiverPool _pool;
+    private DatagramChannel[] _clients;
+    private ByteBuffer _packet;
+    private long _sent;
+    private long _lost;
+
+
+    /**
+     * The packets lost during an iteration, reported alongside the score.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Loss {
+
+        /** The number of packets that were never received. */
+        public long lost;
+
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lost = 0;
+        }
+    }
+
+
+    @Setup
+    public void setUp() throws IOException {
+        final int port;
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress("127.0.0.1", 0));
+            port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+
+        _aggregator =
+            new Aggregator(new NullBackend(null), 1, TimeUnit.SECONDS);
+        _aggregator.start();
+        _pool =
+            new EventReceiverPool(
+                _aggregator,
+                new BucketTable(true),
+                port,
+                receiverThreads,
+                8192,
+                4*1024*1024,
+                reusePort);
+        _pool.start();
+
+        _clients = new DatagramChannel[receiverThreads*CLIENTS_PER_RECEIVER];
+        for (int i=0; i<_clients.length; i++) {
+            _clients[i] = DatagramChannel.open();
+            _clients[i].connect(new InetSocketAddress("127.0.0.1", port));
+        }
+        final byte[] data =
+            ParserBenchmark.MIXED.getBytes(StandardCharsets.US_ASCII);
+        _packet = ByteBuffer.allocateDirect(data.length);
+        _packet.put(data).flip();
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (final DatagramChannel client : _clients) {
+            client.close();
+        }
+        _pool.stop();
+        _aggregator.stop();
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sendAndReceive(final Loss loss) throws IOException {
+        for (int i=0; i<BATCH; i++) {
+            _packet.rewind();
+            _clients[(int) ((_sent+i)%_clients.length)].write(_packet);
+        }
+        _sent += BATCH;
+
+        final long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(1);
+        long received = _pool.getPackets();
+        while (received+_lost<_sent) {
+            if (System.nanoTime()>deadline) {
+                final long lost = _sent-_lost-received;
+                _lost += lost;
+                loss.lost += lost;
+                break;
+            }
+            LockSupport.parkNanos(1000);
+            received = _pool.getPackets();
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import com.johnstok.jstatsd.Aggregator;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.EventReceiver;
+import com.johnstok.jstatsd.EventReceiverPool;
+import com.johnstok.utils.AsciiBuffer;
+
+
+/**
+ * Drives a daemon with Statsd traffic from several threads at a target
+ * rate, and compares what was sent with what was received.
+ * <p>
+ * The generator is configured with the following system properties:
+ * <ul>
+ * <li><code>load.host</code> - the daemon to send to; if not specified a
+ * daemon is started in this process, on an ephemeral port.</li>
+ * <li><code>load.port</code> - the daemon's UDP port.</li>
+ * <li><code>load.threads</code> - the number of sender threads.</li>
+ * <li><code>load.rate</code> - the total packets per second to send; zero
+ * sends as fast as possible.</li>
+ * <li><code>load.warmup</code> - how long to send for, in seconds, before
+ * measuring; lets the daemon's JIT compilation settle.</li>
+ * <li><code>load.duration</code> - how long to measure for, in
+ * seconds.</li>
+ * <li><code>load.buckets</code> - the number of distinct buckets for each
+ * metric type.</li>
+ * <li><code>load.linesPerPacket</code> - the number of metrics in each
+ * packet.</li>
+ * <li><code>load.mix</code> - the relative weight of each metric type, e.g.
+ * <code>c:60,ms:20,g:10,s:10</code>.</li>
+ * <li><code>load.receiverThreads</code>,
+ * <code>load.receiveBufferSize</code> - the receiver configuration of an
+ * in-process daemon.</li>
+ * </ul>
+ * Against an in-process daemon, loss is computed from the receivers'
+ * counters. Against another daemon only what was sent is reported; compare
+ * it with that daemon's <code>jstatsd.packets</code> and
+ * <code>jstatsd.lines</code> metrics.
+ * <p>
+ * To find the maximum sustainable throughput, repeat runs with an
+ * increasing rate until loss appears.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class LoadGenerator {
+
+    private static final String[] TYPES = {"c", "ms", "g", "s", "h"};
+
+    private final InetSocketAddress _target;
+    private final int _threads;
+    private final long _rate;
+    private final int _linesPerPacket;
+    private final byte[][][] _names;
+    private final int[] _weights;
+    private final int _totalWeight;
+
+    private final LongAdder _packets = new LongAdder();
+    private final LongAdder _lines = new LongAdder();
+    private final LongAdder _bytes = new LongAdder();
+    private final LongAdder _sendErrors = new LongAdder();
+    private volatile boolean _running = true;
+
+
+    /**
+     * Constructor.
+     *
+     * @param target         The daemon's address.
+     * @param threads        The number of sender threads.
+     * @param rate           The total packets per second; zero or less
+     *                       sends as fast as possible.
+     * @param buckets        The number of distinct buckets for each type.
+     * @param linesPerPacket The number of metrics in each packet.
+     * @param mix            The weight of each type, e.g.
+     *                       <code>c:60,ms:20,g:10,s:10</code>.
+     */
+    public LoadGenerator(final InetSocketAddress target,
+                         final int threads,
+                         final long rate,
+                         final int buckets,
+                         final int linesPerPacket,
+                         final String mix) {
+        if (threads<1 || buckets<1 || linesPerPacket<1) {
+            throw new IllegalArgumentException(
+                "Threads, buckets and lines per packet must be positive.");
+        }
+        _target = Objects.requireNonNull(target);
+        _threads = threads;
+        _rate = rate;
+        _linesPerPacket = linesPerPacket;
+
+        _names = new byte[TYPES.length][buckets][];
+        for (int t=0; t<TYPES.length; t++) {
+            for (int b=0; b<buckets; b++) {
+                _names[t][b] =
+                    ("load."+TYPES[t]+"."+b+":")
+                        .getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+
+        _weights = new int[TYPES.length];
+        int total = 0;
+        for (final String entry : mix.split(",")) {
+            final int colon = entry.indexOf(':');
+            final String type = entry.substring(0, colon).trim();
+            final int weight =
+                Integer.parseInt(entry.substring(colon+1).trim());
+            final int t = indexOf(type);
+            if (t<0 || weight<0) {
+                throw new IllegalArgumentException("Bad mix entry: "+entry);
+            }
+            _weights[t] = weight;
+            total += weight;
+        }
+        if (total<1) {
+            throw new IllegalArgumentException("Empty mix: "+mix);
+        }
+        _totalWeight = total;
+    }
+
+
+    private static int indexOf(final String type) {
+        for (int t=0; t<TYPES.length; t++) {
+            if (TYPES[t].equals(type)) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+
+    private int pickType(final Random random) {
+        int r = random.nextInt(_totalWeight);
+        for (int t=0; t<_weights.length; t++) {
+            r -= _weights[t];
+            if (r<0) {
+                return t;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+
+    /* Append one randomly chosen metric. */
+    private void appendLine(final AsciiBuffer packet, final Random random) {
+        final int type = pickType(random);
+        final byte[][] names = _names[type];
+        packet.append(names[random.nextInt(names.length)]);
+        switch (type) {
+            case 0:
+                packet.append(1L);
+                break;
+            case 1:
+            case 4:
+                packet.append((long) random.nextInt(1000));
+                break;
+            case 2:
+                packet.append((long) random.nextInt(100000));
+                break;
+            default:
+                packet.append((long) random.nextInt(names.length*16));
+                break;
+        }
+        packet.append('|').appendAscii(TYPES[type]);
+    }
+
+
+    /**
+     * Send packets from the configured number of threads until
+     * {@link #stop()} is called.
+     *
+     * @return The sender threads.
+     *
+     * @throws IOException If a socket can't be opened.
+     */
+    public List<Thread> start() throws IOException {
+        final List<Thread> threads = new ArrayList<>(_threads);
+        for (int i=0; i<_threads; i++) {
+            final DatagramChannel channel = DatagramChannel.open();
+            channel.connect(_target);
+            final long seed = i;
+            final Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(channel, new Random(seed));
+                    } finally {
+                        try {
+                            channel.close();
+                        } catch (final IOException e) {
+                            System.err.println(
+                                "Error closing socket: "+e.getMessage());
+                        }
+                    }
+                }
+            }, "Load Sender-"+i);
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        return threads;
+    }
+
+
+    private void send(final DatagramChannel channel, final Random random) {
+        final AsciiBuffer packet = new AsciiBuffer(_linesPerPacket*32);
+        ByteBuffer out = ByteBuffer.wrap(packet.array());
+        final long period = (_rate>0) ? (1000000000L*_threads)/_rate : 0;
+        long due = System.nanoTime();
+
+        while (_running) {
+            if (period>0) {
+                due += period;
+                final long wait = due-System.nanoTime();
+                if (wait>0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            packet.clear();
+            for (int l=0; l<_linesPerPacket; l++) {
+                if (l>0) {
+                    packet.append('\n');
+                }
+                appendLine(packet, random);
+            }
+            if (out.array()!=packet.array()) {
+                out = ByteBuffer.wrap(packet.array());
+            }
+            out.limit(packet.length()).position(0);
+
+            try {
+                channel.write(out);
+                _packets.increment();
+                _lines.add(_linesPerPacket);
+                _bytes.add(packet.length());
+            } catch (final IOException e) {
+                _sendErrors.increment();
+            }
+        }
+    }
+
+
+    /**
+     * Stop sending.
+     */
+    public void stop() {
+        _running = false;
+    }
+
+
+    /**
+     * Query the number of packets sent.
+     *
+     * @return The number of packets.
+     */
+    public long getPackets() {
+        return _packets.sum();
+    }
+
+
+    /**
+     * Query the number of lines sent.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        return _lines.sum();
+    }
+
+
+    /**
+     * Query the number of bytes sent.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytes() {
+        return _bytes.sum();
+    }
+
+
+    /**
+     * Query the number of packets that couldn't be sent.
+     *
+     * @return The number of send errors.
+     */
+    public long getSendErrors() {
+        return _sendErrors.sum();
+    }
+
+
+    private static long linesOf(final EventReceiverPool pool) {
+        long lines = 0;
+        for (final EventReceiver receiver : pool.getReceivers()) {
+            lines += receiver.getLines();
+        }
+        return lines;
+    }
+
+
+    public static void main(final String[] args) throws Exception {
+        final String host = System.getProperty("load.host");
+        final int port = Integer.getInteger("load.port", 7111).intValue();
+        final int threads = Integer.getInteger("load.threads", 4).intValue();
+        final long rate = Long.getLong("load.rate", 0).longValue();
+        final long warmup = Long.getLong("load.warmup", 5).longValue();
+        final long duration = Long.getLong("load.duration", 30).longValue();
+        final int buckets = Integer.getInteger("load.buckets", 1000).intValue();
+        final int linesPerPacket =
+            Integer.getInteger("load.linesPerPacket", 10).intValue();
+        final String mix =
+            System.getProperty("load.mix", "c:60,ms:20,g:10,s:10");
+        final int receiverThreads =
+            Integer.getInteger("load.receiverThreads", 1).intValue();
+        final int receiveBufferSize =
+            Integer.getInteger("load.receiveBufferSize", 4*1024*1024)
+                .intValue();
+
+        Aggregator aggregator = null;
+        EventReceiverPool pool = null;
+        final InetSocketAddress target;
+        if (null==host) {
+            final int localPort;
+            try (DatagramChannel probe = DatagramChannel.open()) {
+                probe.bind(new InetSocketAddress("127.0.0.1", 0));
+                localPort =
+                    ((InetSocketAddress) probe.getLocalAddress()).getPort();
+            }
+            aggregator =
+                new Aggregator(new NullBackend(null), 10, TimeUnit.SECONDS);
+            aggregator.start();
+            pool =
+                new EventReceiverPool(
+                    aggregator,
+                    new BucketTable(true),
+                    localPort,
+                    receiverThreads,
+                    65535,
+                    receiveBufferSize,
+                    true);
+            pool.start();
+            target = new InetSocketAddress("127.0.0.1", localPort);
+        } else {
+            target = new InetSocketAddress(host, port);
+        }
+
+        final LoadGenerator generator =
+            new LoadGenerator(
+                target, threads, rate, buckets, linesPerPacket, mix);
+        System.out.println(
+            "Sending to "+target+" from "+threads+" threads for "+warmup
+            +"s + "+duration+"s at "
+            +((rate>0) ? rate+" packets/s" : "full speed")+", "
+            +linesPerPacket+" lines per packet, mix "+mix+", "+buckets
+            +" buckets per type.");
+        generator.start();
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        final long baseSent = generator.getPackets();
+        final long baseLines = generator.getLines();
+        final long baseBytes = generator.getBytes();
+        final long baseErrors = generator.getSendErrors();
+        final long baseReceived = (null==pool) ? 0 : pool.getPackets();
+        final long baseReceivedLines = (null==pool) ? 0 : linesOf(pool);
+        final long baseMalformed = (null==pool) ? 0 : pool.getMalformedLines();
+
+        long lastSent = baseSent;
+        long lastReceived = baseReceived;
+        final long end = System.nanoTime()+TimeUnit.SECONDS.toNanos(duration);
+        while (System.nanoTime()<end) {
+            Thread.sleep(1000);
+            final long sent = generator.getPackets();
+            final long received = (null==pool) ? 0 : pool.getPackets();
+            System.out.println(
+                String.format(
+                    Locale.ENGLISH,
+                    "sent %,d packets/s%s",
+                    sent-lastSent,
+                    (null==pool)
+                        ? ""
+                        : String.format(
+                            Locale.ENGLISH,
+                            ", received %,d packets/s",
+                            received-lastReceived)));
+            lastSent = sent;
+            lastReceived = received;
+        }
+        generator.stop();
+        Thread.sleep(100);
+
+        final long sent = generator.getPackets()-baseSent;
+        System.out.println(
+            String.format(
+                Locale.ENGLISH,
+                "Sent %,d packets, %,d lines, %,d bytes: %,.0f packets/s; "
+                + "%,d send errors.",
+                sent,
+                generator.getLines()-baseLines,
+                generator.getBytes()-baseBytes,
+                sent/(double) duration,
+                generator.getSendErrors()-baseErrors));
+
+        if (null!=pool) {
+            // Give the receivers a moment to drain their socket buffers.
+            long received = pool.getPackets()-baseReceived;
+            for (int i=0; i<20 && received<sent; i++) {
+                Thread.sleep(100);
+                received = pool.getPackets()-baseReceived;
+            }
+            System.out.println(
+                String.format(
+                    Locale.ENGLISH,
+                    "Received %,d packets, %,d lines; lost %,d packets "
+                    + "(%.3f%%); %,d malformed lines.",
+                    received,
+                    linesOf(pool)-baseReceivedLines,
+                    sent-received,
+                    (0==sent) ? 0 : 100.0*(sent-received)/sent,
+                    pool.getMalformedLines()-baseMalformed));
+            pool.stop();
+            aggregator.stop();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd.bench;
+
+import org.openjdk.jmh.infra.Blackhole;
+import com.johnstok.jstatsd.Backend;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.Flush;
+import com.johnstok.jstatsd.FlushBackend;
+
+
+/**
+ * A back end that discards everything it receives.
+ * <p>
+ * If constructed with a JMH black hole, values are consumed by it so that
+ * the work that produced them can't be optimised away.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class NullBackend
+    implements
+        Backend,
+        FlushBackend {
+
+    private final Blackhole _blackhole;
+
+
+    /**
+     * Constructor.
+     *
+     * @param blackhole The black hole that consumes values; may be null.
+     */
+    public NullBackend(final Blackhole blackhole) {
+        _blackhole = blackhole;
+    }
+
+
+    private void consume(final Bucket bucket, final long value) {
+        if (null!=_blackhole) {
+            _blackhole.consume(bucket);
+            _blackhole.consume(value);
+        }
+    }
+
+
+    private void consume(final Bucket bucket, final double value) {
+        if (null!=_blackhole) {
+            _blackhole.consume(bucket);
+            _blackhole.consume(value);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final long i,
+                      final double sampleRate) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final long i) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final double i) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        consume(bucket, delta);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        consume(bucket, delta);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        consume(bucket, i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void set(final Bucket bucket, final long member) {
+        consume(bucket, member);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush(final Flush flush) {
+        if (null!=_blackhole) {
+            _blackhole.consume(flush);
+        }
+    }
+}
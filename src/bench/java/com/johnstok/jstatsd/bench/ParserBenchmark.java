@@ -0,0 +1,119 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.StatsdParser;
+
+
+/**
+ * Measures parsing of multi-metric packets, as done by each
+ * <code>EventReceiver</code>.
+ * <p>
+ * Parsed events are sent to a back end that does nothing, so the results
+ * cover only the parser and the bucket table.
+ *
+ * @author Keith Webster Johnston.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ParserBenchmark {
+
+    /** A packet of the sort sent by a client that batches its metrics. */
+    static final String MIXED =
+        "api.requests:1|c\n"
+        + "api.requests.sampled:1|c|@0.1\n"
+        + "api.errors:1|c\n"
+        + "api.latency:238|ms\n"
+        + "api.latency:12.5|ms|@0.5\n"
+        + "db.query.time:87|ms\n"
+        + "db.pool.active:12|g\n"
+        + "db.pool.idle:+3|g\n"
+        + "db.pool.waiting:-1|g\n"
+        + "jvm.heap.used:104857600|g\n"
+        + "cache.hit.ratio:0.973|g\n"
+        + "payload.size:4096|h\n"
+        + "payload.size:512|h\n"
+        + "users.unique:user-4711|s\n"
+        + "sessions.unique:9f8c2e|s\n"
+        + "queue.depth:42|g\n"
+        + "jobs.completed:17|c\n"
+        + "jobs.duration:1520|ms\n"
+        + "gc.pause:3|ms\n"
+        + "deploys:1|c";
+
+    /** A packet of counters only, the commonest case. */
+    static final String COUNTERS =
+        "a.b.c:1|c\na.b.d:1|c\na.b.e:2|c\na.b.f:1|c|@0.5\n"
+        + "a.c.c:1|c\na.c.d:1|c\na.c.e:5|c\na.c.f:1|c|@0.5\n"
+        + "a.d.c:1|c\na.d.d:1|c\na.d.e:7|c\na.d.f:1|c|@0.5";
+
+    @Param({"mixed", "counters"})
+    public String packet;
+
+    private StatsdParser _parser;
+    private byte[] _data;
+    private ByteBuffer _direct;
+
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        _parser =
+            new StatsdParser(
+                new NullBackend(blackhole), new BucketTable(true));
+        _data =
+            ("mixed".equals(packet) ? MIXED : COUNTERS)
+                .getBytes(StandardCharsets.US_ASCII);
+        _direct = ByteBuffer.allocateDirect(_data.length);
+        _direct.put(_data).flip();
+    }
+
+
+    @Benchmark
+    public void parseArray() {
+        _parser.parse(_data, 0, _data.length);
+    }
+
+
+    @Benchmark
+    public void parseDirectBuffer() {
+        _direct.rewind();
+        _parser.parse(_direct);
+    }
+}
@@ -0,0 +1,712 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.johnstok.utils.AtomicDouble;
+import com.johnstok.utils.HyperLogLog;
+import com.johnstok.utils.QuantileSketch;
+import com.johnstok.utils.Service;
+
+
+/**
+ * A backend that aggregates events per bucket and passes the aggregated
+ * values to a {@link FlushBackend} once per flush interval.
+ * <p>
+ * The work done by the flush backend is proportional to the number of
+ * distinct buckets, rather than to the number of events received.
+ * Histograms are aggregated as timers and marks as sets, following Statsd.
+ * Sampled counts are scaled by <code>1/sampleRate</code>; each sampled timer
+ * value is recorded once but adds <code>1/sampleRate</code> to the timer's
+ * count.
+ * <p>
+ * Timer values are summarised with a {@link QuantileSketch}, so memory per
+ * timer is bounded whatever the number of values received. Set members are
+ * counted with a {@link HyperLogLog}, so memory per set is fixed by its
+ * precision whatever the number of distinct members.
+ * Counters, timers and sets are reset after each flush; gauges keep their
+ * last value. Counters and gauges are updated with compare-and-set, so
+ * concurrent counts and gauge adjustments are never lost.
+ * <p>
+ * Cells are partitioned into shards by bucket id. At each flush the shards
+ * are snapshotted in parallel on a {@link ForkJoinPool}, so the time taken
+ * to flush hundreds of thousands of buckets grows with the number of
+ * buckets divided by the number of cores. A snapshot resets each cell
+ * atomically, or under the cell's own lock, so receivers are never blocked
+ * for a whole shard. The duration of the last flush can be queried.
+ * <p>
+ * An expired bucket's values are dropped, along with any events for it that
+ * are still in flight.
+ * <p>
+ * Only gauges are checkpointed: counters, timers and sets are reset by every
+ * flush, including the final flush on shutdown, so restoring them would
+ * count their values twice.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class Aggregator
+    extends
+        Service
+    implements
+        Backend,
+        Checkpointable {
+
+    /** The number of shards used if none is specified. */
+    public static final int DEFAULT_SHARDS =
+        powerOfTwo(Runtime.getRuntime().availableProcessors());
+
+
+    private static final class TimerCell {
+
+        private final double   _relativeAccuracy;
+        private final int      _maxBins;
+        private QuantileSketch _sketch;
+        private long           _sampleCount;
+        private double         _sum;
+
+
+        TimerCell(final double relativeAccuracy, final int maxBins) {
+            _relativeAccuracy = relativeAccuracy;
+            _maxBins = maxBins;
+            _sketch = new QuantileSketch(relativeAccuracy, maxBins);
+        }
+
+
+        synchronized void add(final double i, final double sampleRate) {
+            _sketch.add(i, 1/sampleRate);
+            _sampleCount++;
+            _sum += i;
+        }
+
+
+        synchronized TimerStats getAndReset() {
+            final TimerStats stats =
+                new TimerStats(_sketch, _sampleCount, _sum);
+            _sketch = new QuantileSketch(_relativeAccuracy, _maxBins);
+            _sampleCount = 0;
+            _sum = 0;
+            return stats;
+        }
+    }
+
+
+    private static final class SetCell {
+
+        private final HyperLogLog _members;
+
+
+        SetCell(final int precision) {
+            _members = new HyperLogLog(precision);
+        }
+
+
+        synchronized void add(final long member) {
+            _members.add(member);
+        }
+
+
+        synchronized long getAndReset() {
+            final long cardinality = _members.cardinality();
+            _members.clear();
+            return cardinality;
+        }
+    }
+
+
+    /* The values taken from a shard at a flush. */
+    private static final class Snapshot {
+
+        final Map<Bucket, Double>     _counters;
+        final Map<Bucket, Double>     _gauges;
+        final Map<Bucket, TimerStats> _timers;
+        final Map<Bucket, Long>       _sets;
+
+
+        Snapshot(final Shard shard) {
+            _counters = new HashMap<>(capacity(shard._counters));
+            for (final Map.Entry<Bucket, AtomicDouble> e
+                    : shard._counters.entrySet()) {
+                _counters.put(
+                    e.getKey(), Double.valueOf(e.getValue().getAndSet(0)));
+            }
+
+            _gauges = new HashMap<>(capacity(shard._gauges));
+            for (final Map.Entry<Bucket, AtomicDouble> e
+                    : shard._gauges.entrySet()) {
+                _gauges.put(e.getKey(), Double.valueOf(e.getValue().get()));
+            }
+
+            _timers = new HashMap<>(capacity(shard._timers));
+            for (final Map.Entry<Bucket, TimerCell> e
+                    : shard._timers.entrySet()) {
+                _timers.put(e.getKey(), e.getValue().getAndReset());
+            }
+
+            _sets = new HashMap<>(capacity(shard._sets));
+            for (final Map.Entry<Bucket, SetCell> e : shard._sets.entrySet()) {
+                _sets.put(
+                    e.getKey(), Long.valueOf(e.getValue().getAndReset()));
+            }
+        }
+    }
+
+
+    /* The cells for a subset of buckets. */
+    private static final class Shard {
+
+        final ConcurrentMap<Bucket, AtomicDouble> _counters =
+            new ConcurrentHashMap<>();
+        final ConcurrentMap<Bucket, AtomicDouble> _gauges =
+            new ConcurrentHashMap<>();
+        final ConcurrentMap<Bucket, TimerCell> _timers =
+            new ConcurrentHashMap<>();
+        final ConcurrentMap<Bucket, SetCell> _sets =
+            new ConcurrentHashMap<>();
+    }
+
+
+    /* Snapshots a range of shards, splitting it until one shard remains. */
+    private static final class SnapshotShards
+        extends
+            RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Shard[] _shards;
+        private final Snapshot[] _snapshots;
+        private final int _from;
+        private final int _to;
+
+
+        SnapshotShards(final Shard[] shards,
+                       final Snapshot[] snapshots,
+                       final int from,
+                       final int to) {
+            _shards = shards;
+            _snapshots = snapshots;
+            _from = from;
+            _to = to;
+        }
+
+
+        @Override
+        protected void compute() {
+            if (1==_to-_from) {
+                _snapshots[_from] = new Snapshot(_shards[_from]);
+                return;
+            }
+            final int mid = (_from+_to)>>>1;
+            invokeAll(
+                new SnapshotShards(_shards, _snapshots, _from, mid),
+                new SnapshotShards(_shards, _snapshots, mid, _to));
+        }
+    }
+
+
+    private final Shard[] _shards;
+    private final int _shardMask;
+    private final ForkJoinPool _pool;
+    private volatile long _lastFlushNanos;
+    private final FlushBackend _backend;
+    private final long _flushInterval;
+    private final double _relativeAccuracy;
+    private final int _maxBins;
+    private final int _setPrecision;
+    private final ScheduledExecutorService _executor;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend       The back end that receives each flush.
+     * @param flushInterval The length of the flush interval; at least 1ms.
+     * @param unit          The unit of the flush interval.
+     */
+    public Aggregator(final FlushBackend backend,
+                      final long flushInterval,
+                      final TimeUnit unit) {
+        this(
+            backend,
+            flushInterval,
+            unit,
+            QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+            QuantileSketch.DEFAULT_MAX_BINS,
+            HyperLogLog.DEFAULT_PRECISION);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend          The back end that receives each flush.
+     * @param flushInterval    The length of the flush interval; at least
+     *                         1ms.
+     * @param unit             The unit of the flush interval.
+     * @param relativeAccuracy The relative accuracy of timer percentiles.
+     * @param maxBins          The maximum number of sketch bins per sign for
+     *                         each timer.
+     * @param setPrecision     The precision of the sketch for each set.
+     */
+    public Aggregator(final FlushBackend backend,
+                      final long flushInterval,
+                      final TimeUnit unit,
+                      final double relativeAccuracy,
+                      final int maxBins,
+                      final int setPrecision) {
+        this(
+            backend,
+            flushInterval,
+            unit,
+            relativeAccuracy,
+            maxBins,
+            setPrecision,
+            DEFAULT_SHARDS);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend          The back end that receives each flush.
+     * @param flushInterval    The length of the flush interval; at least
+     *                         1ms.
+     * @param unit             The unit of the flush interval.
+     * @param relativeAccuracy The relative accuracy of timer percentiles.
+     * @param maxBins          The maximum number of sketch bins per sign for
+     *                         each timer.
+     * @param setPrecision     The precision of the sketch for each set.
+     * @param shards           The number of shards that buckets are
+     *                         partitioned into; rounded up to a power of
+     *                         two.
+     */
+    public Aggregator(final FlushBackend backend,
+                      final long flushInterval,
+                      final TimeUnit unit,
+                      final double relativeAccuracy,
+                      final int maxBins,
+                      final int setPrecision,
+                      final int shards) {
+        _flushInterval = unit.toMillis(flushInterval);
+        if (_flushInterval<1) {
+            throw new IllegalArgumentException(
+                "Flush interval must be at least 1ms: "
+                +flushInterval+" "+unit);
+        }
+        _backend = Objects.requireNonNull(backend);
+        // Fail fast on bad sketch parameters.
+        new QuantileSketch(relativeAccuracy, maxBins);
+        new HyperLogLog(setPrecision);
+        _relativeAccuracy = relativeAccuracy;
+        _maxBins = maxBins;
+        _setPrecision = setPrecision;
+        if (shards<1 || shards>1<<16) {
+            throw new IllegalArgumentException(
+                "Shards must be between 1 and 2^16: "+shards);
+        }
+        _shards = new Shard[powerOfTwo(shards)];
+        for (int i=0; i<_shards.length; i++) {
+            _shards[i] = new Shard();
+        }
+        _shardMask = _shards.length-1;
+        _pool =
+            (1==_shards.length)
+                ? null
+                : new ForkJoinPool(
+                    Math.min(
+                        _shards.length,
+                        Runtime.getRuntime().availableProcessors()));
+        _executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(r, "Aggregator Flush");
+                }
+            });
+    }
+
+
+    /**
+     * Start flushing aggregated values at the configured interval.
+     */
+    public void start() {
+        _executor.scheduleAtFixedRate(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (final RuntimeException e) {
+                        System.err.println("Error flushing: "+e.getMessage());
+                    }
+                }
+            },
+            _flushInterval,
+            _flushInterval,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Pass the values aggregated since the last flush to the back end, and
+     * reset them.
+     */
+    public void flush() {
+        final long started = System.nanoTime();
+        final Snapshot[] snapshots = new Snapshot[_shards.length];
+        if (null==_pool) {
+            snapshots[0] = new Snapshot(_shards[0]);
+        } else {
+            _pool.invoke(
+                new SnapshotShards(_shards, snapshots, 0, _shards.length));
+        }
+
+        int counterCount = 0;
+        int gaugeCount = 0;
+        int timerCount = 0;
+        int setCount = 0;
+        for (final Snapshot s : snapshots) {
+            counterCount += s._counters.size();
+            gaugeCount += s._gauges.size();
+            timerCount += s._timers.size();
+            setCount += s._sets.size();
+        }
+        final Map<Bucket, Double> counters =
+            new HashMap<>(capacity(counterCount));
+        final Map<Bucket, Double> gauges = new HashMap<>(capacity(gaugeCount));
+        final Map<Bucket, TimerStats> timers =
+            new HashMap<>(capacity(timerCount));
+        final Map<Bucket, Long> sets = new HashMap<>(capacity(setCount));
+        for (final Snapshot s : snapshots) {
+            counters.putAll(s._counters);
+            gauges.putAll(s._gauges);
+            timers.putAll(s._timers);
+            sets.putAll(s._sets);
+        }
+
+        _backend.flush(
+            new Flush(
+                System.currentTimeMillis(),
+                _flushInterval,
+                counters,
+                gauges,
+                timers,
+                sets,
+                HyperLogLog.standardError(_setPrecision)));
+        _lastFlushNanos = System.nanoTime()-started;
+    }
+
+
+    /**
+     * Query the time taken by the last flush, including passing the values
+     * to the flush backend.
+     *
+     * @return The duration, in nanoseconds.
+     */
+    public long getLastFlushNanos() {
+        return _lastFlushNanos;
+    }
+
+
+    /**
+     * Query the number of shards that buckets are partitioned into.
+     *
+     * @return The number of shards.
+     */
+    public int getShards() {
+        return _shards.length;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final long i,
+                      final double sampleRate) {
+        counter(bucket).addAndGet(i/sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        counter(bucket).addAndGet(i/sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final long i) {
+        gauge(bucket, (double) i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final double i) {
+        final ConcurrentMap<Bucket, AtomicDouble> cells = shard(bucket)._gauges;
+        final AtomicDouble gauge = cells.get(bucket);
+        if (null!=gauge) {
+            gauge.set(i);
+        } else {
+            final AtomicDouble created = new AtomicDouble(i);
+            final AtomicDouble raced = cells.putIfAbsent(bucket, created);
+            if (null!=raced) {
+                raced.set(i);
+            } else {
+                dropIfExpired(cells, bucket, created);
+            }
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        adjustGauge(bucket, (double) delta);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        final ConcurrentMap<Bucket, AtomicDouble> cells = shard(bucket)._gauges;
+        final AtomicDouble gauge = cells.get(bucket);
+        if (null!=gauge) {
+            gauge.addAndGet(delta);
+        } else {
+            final AtomicDouble created = new AtomicDouble(delta);
+            final AtomicDouble raced = cells.putIfAbsent(bucket, created);
+            if (null!=raced) {
+                raced.addAndGet(delta);
+            } else {
+                dropIfExpired(cells, bucket, created);
+            }
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        timer(bucket).add(i, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        timer(bucket).add(i, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        timer(bucket).add(i, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        timer(bucket).add(i, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        setCell(bucket).add(HyperLogLog.hash(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        if (i==(long) i) {
+            mark(bucket, (long) i);
+        } else {
+            setCell(bucket).add(HyperLogLog.hash(Double.doubleToLongBits(i)));
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void set(final Bucket bucket, final long member) {
+        setCell(bucket).add(member);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void expire(final Bucket bucket) {
+        final Shard shard = shard(bucket);
+        shard._counters.remove(bucket);
+        shard._gauges.remove(bucket);
+        shard._timers.remove(bucket);
+        shard._sets.remove(bucket);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void saveState(final Checkpoint.Visitor visitor) {
+        for (final Shard shard : _shards) {
+            for (final Map.Entry<Bucket, AtomicDouble> e
+                    : shard._gauges.entrySet()) {
+                visitor.gauge(e.getKey(), e.getValue().get());
+            }
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public Checkpoint.Visitor restorer() {
+        return new Checkpoint.Visitor() {
+
+            /** {@inheritDoc} */
+            @Override
+            public void counter(final Bucket bucket, final double value) {
+                // Counters are never checkpointed.
+            }
+
+
+            /** {@inheritDoc} */
+            @Override
+            public void gauge(final Bucket bucket, final double value) {
+                Aggregator.this.gauge(bucket, value);
+            }
+        };
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(_flushInterval, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (null!=_pool) {
+            _pool.shutdown();
+        }
+    }
+
+
+    private Shard shard(final Bucket bucket) {
+        return _shards[bucket.getId() & _shardMask];
+    }
+
+
+    private AtomicDouble counter(final Bucket bucket) {
+        final ConcurrentMap<Bucket, AtomicDouble> cells =
+            shard(bucket)._counters;
+        final AtomicDouble cell = cells.get(bucket);
+        if (null!=cell) { return cell; }
+        final AtomicDouble created = new AtomicDouble();
+        final AtomicDouble raced = cells.putIfAbsent(bucket, created);
+        return
+            (null==raced)
+                ? dropIfExpired(cells, bucket, created)
+                : raced;
+    }
+
+
+    private TimerCell timer(final Bucket bucket) {
+        final ConcurrentMap<Bucket, TimerCell> cells = shard(bucket)._timers;
+        final TimerCell cell = cells.get(bucket);
+        if (null!=cell) { return cell; }
+        final TimerCell created = new TimerCell(_relativeAccuracy, _maxBins);
+        final TimerCell raced = cells.putIfAbsent(bucket, created);
+        return
+            (null==raced)
+                ? dropIfExpired(cells, bucket, created)
+                : raced;
+    }
+
+
+    private SetCell setCell(final Bucket bucket) {
+        final ConcurrentMap<Bucket, SetCell> cells = shard(bucket)._sets;
+        final SetCell cell = cells.get(bucket);
+        if (null!=cell) { return cell; }
+        final SetCell created = new SetCell(_setPrecision);
+        final SetCell raced = cells.putIfAbsent(bucket, created);
+        return
+            (null==raced)
+                ? dropIfExpired(cells, bucket, created)
+                : raced;
+    }
+
+
+    /*
+     * A bucket is marked expired before expire() is called, so either
+     * expire() removes a newly created cell, or this check sees the mark and
+     * removes it; an expired bucket never keeps a cell. The caller updates
+     * the detached cell, which is simply discarded.
+     */
+    private static <T> T dropIfExpired(final ConcurrentMap<Bucket, T> cells,
+                                       final Bucket bucket,
+                                       final T created) {
+        if (bucket.isExpired()) {
+            cells.remove(bucket, created);
+        }
+        return created;
+    }
+
+
+    private static int capacity(final Map<?, ?> map) {
+        return capacity(map.size());
+    }
+
+
+    private static int capacity(final int size) {
+        return size*4/3+1;
+    }
+
+
+    private static int powerOfTwo(final int n) {
+        return (n<=1) ? 1 : Integer.highestOneBit(n-1)<<1;
+    }
+}
@@ -24,18 +24,155 @@ import java.math.BigDecimal;
 
 /**
  * API for a statistics backend.
+ * <p>
+ * Values are passed as primitives: a <code>long</code> for integer values
+ * and a <code>double</code> for fractional ones. The <code>BigDecimal</code>
+ * methods are kept for compatibility; they pass the value on using the
+ * cheapest primitive that represents it.
+ * <p>
+ * Counters, timers and histograms carry the sample rate supplied by the
+ * client: a rate of 0.1 means the event represents ten events. Backends are
+ * responsible for scaling counts by <code>1/sampleRate</code> and for
+ * weighting timer and histogram counts accordingly. Gauges, marks and sets
+ * are never sampled.
+ * <p>
+ * A gauge may be set to a value, or adjusted by a signed delta; adjusting a
+ * gauge that has no value yet adjusts it from zero. Concurrent adjustments
+ * must not be lost.
+ * <p>
+ * Set members are arbitrary strings, so they are passed to
+ * {@link #set(Bucket, long)} as a 64-bit hash (see
+ * {@link com.johnstok.utils.HyperLogLog#hash(byte[], int, int)}). Backends
+ * that don't count distinct values receive each member as a mark.
+ * <p>
+ * When a bucket expires (see {@link BucketTable#expire(int)}) it is passed
+ * to {@link #expire(Bucket)}, and backends that hold state per bucket should
+ * drop it. An event may still arrive for an expired bucket, from a thread
+ * that looked the bucket up just before it expired; backends may discard
+ * such events, but must not keep state for the bucket.
+ * <p>
+ * The daemon may run several receiver threads against a single backend, so
+ * implementations must be thread-safe.
  *
  * @author Keith Webster Johnston.
  */
 public interface Backend {
 
-    void count(String bucket, BigDecimal i);
+    void count(Bucket bucket, long i, double sampleRate);
 
-    void gauge(String bucket, BigDecimal i);
+    void count(Bucket bucket, double i, double sampleRate);
 
-    void time(String bucket, BigDecimal i);
+    void gauge(Bucket bucket, long i);
 
-    void histogram(String bucket, BigDecimal i);
+    void gauge(Bucket bucket, double i);
 
-    void mark(String bucket, BigDecimal i);
+    void adjustGauge(Bucket bucket, long delta);
+
+    void adjustGauge(Bucket bucket, double delta);
+
+    void time(Bucket bucket, long i, double sampleRate);
+
+    void time(Bucket bucket, double i, double sampleRate);
+
+    void histogram(Bucket bucket, long i, double sampleRate);
+
+    void histogram(Bucket bucket, double i, double sampleRate);
+
+    void mark(Bucket bucket, long i);
+
+    void mark(Bucket bucket, double i);
+
+
+    default void count(final Bucket bucket, final long i) {
+        count(bucket, i, 1);
+    }
+
+
+    default void count(final Bucket bucket, final double i) {
+        count(bucket, i, 1);
+    }
+
+
+    default void time(final Bucket bucket, final long i) {
+        time(bucket, i, 1);
+    }
+
+
+    default void time(final Bucket bucket, final double i) {
+        time(bucket, i, 1);
+    }
+
+
+    default void histogram(final Bucket bucket, final long i) {
+        histogram(bucket, i, 1);
+    }
+
+
+    default void histogram(final Bucket bucket, final double i) {
+        histogram(bucket, i, 1);
+    }
+
+
+    default void count(final Bucket bucket, final BigDecimal i) {
+        if (Values.isLong(i)) {
+            count(bucket, i.longValue());
+        } else {
+            count(bucket, i.doubleValue());
+        }
+    }
+
+
+    default void gauge(final Bucket bucket, final BigDecimal i) {
+        if (Values.isLong(i)) {
+            gauge(bucket, i.longValue());
+        } else {
+            gauge(bucket, i.doubleValue());
+        }
+    }
+
+
+    default void adjustGauge(final Bucket bucket, final BigDecimal delta) {
+        if (Values.isLong(delta)) {
+            adjustGauge(bucket, delta.longValue());
+        } else {
+            adjustGauge(bucket, delta.doubleValue());
+        }
+    }
+
+
+    default void time(final Bucket bucket, final BigDecimal i) {
+        if (Values.isLong(i)) {
+            time(bucket, i.longValue());
+        } else {
+            time(bucket, i.doubleValue());
+        }
+    }
+
+
+    default void histogram(final Bucket bucket, final BigDecimal i) {
+        if (Values.isLong(i)) {
+            histogram(bucket, i.longValue());
+        } else {
+            histogram(bucket, i.doubleValue());
+        }
+    }
+
+
+    default void mark(final Bucket bucket, final BigDecimal i) {
+        if (Values.isLong(i)) {
+            mark(bucket, i.longValue());
+        } else {
+            mark(bucket, i.doubleValue());
+        }
+    }
+
+
+    default void set(final Bucket bucket, final long member) {
+        mark(bucket, 1);
+    }
+
+
+    default void expire(final Bucket bucket) {
+        /* No state by default. */
+    }
 }
@@ -0,0 +1,72 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+
+/**
+ * API for querying a queue that decouples callers from a slow back end.
+ * <p>
+ * Implementations update their counters from a single thread where
+ * possible, so queries return recent, but not necessarily current, values.
+ *
+ * @author Keith Webster Johnston.
+ */
+public interface BackendQueue {
+
+    /**
+     * Query the number of items waiting to be applied.
+     *
+     * @return The queue depth.
+     */
+    int getDepth();
+
+
+    /**
+     * Query the number of items dropped because the queue was full, or
+     * because the back end had stopped.
+     *
+     * @return The number of items dropped.
+     */
+    long getDropped();
+
+
+    /**
+     * Query the number of items for which the back end threw an exception.
+     *
+     * @return The number of errors.
+     */
+    long getErrors();
+
+
+    /**
+     * Query the number of back end calls that have been timed.
+     *
+     * @return The number of timed calls.
+     */
+    long getLatencySamples();
+
+
+    /**
+     * Query the total duration of the timed back end calls.
+     *
+     * @return The duration, in nanoseconds.
+     */
+    long getLatencyNanos();
+}
@@ -0,0 +1,184 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+
+/**
+ * An adapter for backends written against the <code>BigDecimal</code>
+ * methods of {@link Backend}.
+ * <p>
+ * Subclasses implement the <code>BigDecimal</code> methods; primitive values
+ * are converted before being passed on. New backends should implement the
+ * primitive methods directly to avoid the conversion.
+ * <p>
+ * The <code>BigDecimal</code> methods have no sample rate, so sampled counts
+ * are scaled, with {@link MathContext#DECIMAL64 16 digits} of precision,
+ * before being passed on; sampled timings and histogram values are passed
+ * on once, unweighted. Infinite and NaN values have no
+ * <code>BigDecimal</code> form, so they are ignored.
+ *
+ * @author Keith Webster Johnston.
+ */
+public abstract class BigDecimalBackend
+    implements
+        Backend {
+
+    /** {@inheritDoc} */
+    @Override
+    public abstract void count(Bucket bucket, BigDecimal i);
+
+
+    /** {@inheritDoc} */
+    @Override
+    public abstract void gauge(Bucket bucket, BigDecimal i);
+
+
+    /** {@inheritDoc} */
+    @Override
+    public abstract void adjustGauge(Bucket bucket, BigDecimal delta);
+
+
+    /** {@inheritDoc} */
+    @Override
+    public abstract void time(Bucket bucket, BigDecimal i);
+
+
+    /** {@inheritDoc} */
+    @Override
+    public abstract void histogram(Bucket bucket, BigDecimal i);
+
+
+    /** {@inheritDoc} */
+    @Override
+    public abstract void mark(Bucket bucket, BigDecimal i);
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final long i,
+                      final double sampleRate) {
+        count(bucket, scale(BigDecimal.valueOf(i), sampleRate));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        if (!Double.isFinite(i)) { return; }
+        count(bucket, scale(BigDecimal.valueOf(i), sampleRate));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final long i) {
+        gauge(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final double i) {
+        if (!Double.isFinite(i)) { return; }
+        gauge(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        adjustGauge(bucket, BigDecimal.valueOf(delta));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        if (!Double.isFinite(delta)) { return; }
+        adjustGauge(bucket, BigDecimal.valueOf(delta));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        time(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        if (!Double.isFinite(i)) { return; }
+        time(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        histogram(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        if (!Double.isFinite(i)) { return; }
+        histogram(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        mark(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        if (!Double.isFinite(i)) { return; }
+        mark(bucket, BigDecimal.valueOf(i));
+    }
+
+
+    private static BigDecimal scale(final BigDecimal i,
+                                    final double sampleRate) {
+        if (1==sampleRate) { return i; }
+        return
+            i.divide(BigDecimal.valueOf(sampleRate), MathContext.DECIMAL64);
+    }
+}
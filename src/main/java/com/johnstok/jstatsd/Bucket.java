@@ -0,0 +1,190 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A canonical handle for a bucket name and, optionally, a set of tags.
+ * <p>
+ * Buckets are created by a {@link BucketTable}, which returns the same
+ * instance for every occurrence of a name and tag set, so buckets may be
+ * compared by identity and used as cheap hash keys. Tags are kept in
+ * canonical form: sorted, without duplicates and joined with ','. Each
+ * distinct name and tag set is a separate series with its own bucket.
+ * <p>
+ * A table may expire a bucket that hasn't been used for a while; the
+ * table then forgets the name, and may give the bucket's id to a new
+ * bucket. Backends should drop any state held for an expired bucket.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class Bucket {
+
+    private final int    _id;
+    private final String _name;
+    private final String _tags;
+    private volatile int _lastUsed;
+    private volatile boolean _pinned;
+    private volatile boolean _expired;
+    private int _aliases; // Guarded by the table.
+
+
+    /**
+     * Constructor.
+     *
+     * @param id    The bucket's id, unique among the live buckets in its
+     *              table.
+     * @param name  The bucket's name.
+     * @param tags  The bucket's canonical tags; empty for none.
+     * @param epoch The table's current epoch.
+     */
+    Bucket(final int id,
+           final String name,
+           final String tags,
+           final int epoch) {
+        _id = id;
+        _name = name;
+        _tags = tags;
+        _lastUsed = epoch;
+    }
+
+
+    /*
+     * Record use in an epoch. Only writes when the epoch changes, so busy
+     * buckets don't bounce a cache line between receiver threads.
+     */
+    void touch(final int epoch) {
+        if (_lastUsed!=epoch) {
+            _lastUsed = epoch;
+        }
+    }
+
+
+    int getLastUsed() {
+        return _lastUsed;
+    }
+
+
+    void pin() {
+        _pinned = true;
+    }
+
+
+    boolean isPinned() {
+        return _pinned;
+    }
+
+
+    void expire() {
+        _expired = true;
+    }
+
+
+    /* The number of raw spellings the table has indexed for the bucket. */
+    int addAlias() {
+        return ++_aliases;
+    }
+
+
+    /**
+     * Query whether the bucket has expired. A backend receiving an event
+     * for an expired bucket may discard it.
+     *
+     * @return True if the bucket has expired; false otherwise.
+     */
+    public boolean isExpired() {
+        return _expired;
+    }
+
+
+    /**
+     * Query the bucket's id. Ids are allocated sequentially from zero by the
+     * table that created the bucket, and the ids of expired buckets are
+     * reused, so ids stay dense and may be used as array indices.
+     *
+     * @return The id.
+     */
+    public int getId() {
+        return _id;
+    }
+
+
+    /**
+     * Query the bucket's name.
+     *
+     * @return The name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+
+    /**
+     * Query the bucket's tags, in canonical form: sorted, without
+     * duplicates and joined with ','. Tags are usually
+     * <code>key:value</code>, but a tag may be just a key.
+     *
+     * @return The tags; empty if the bucket has none.
+     */
+    public String getTags() {
+        return _tags;
+    }
+
+
+    /**
+     * Query the bucket's tags as a list.
+     *
+     * @return The tags, in canonical order; empty if the bucket has none.
+     */
+    public List<String> getTagList() {
+        return
+            (_tags.isEmpty())
+                ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(Arrays.asList(_tags.split(",")));
+    }
+
+
+    /**
+     * Query whether the bucket has tags.
+     *
+     * @return True if the bucket has at least one tag; false otherwise.
+     */
+    public boolean isTagged() {
+        return !_tags.isEmpty();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+        return _id;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return (_tags.isEmpty()) ? _name : _name+"|#"+_tags;
+    }
+}
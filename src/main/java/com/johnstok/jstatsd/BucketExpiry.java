@@ -0,0 +1,131 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.johnstok.utils.Service;
+
+
+/**
+ * Periodically expires buckets that have gone unused, so that memory is
+ * bounded by the buckets in use rather than by every bucket ever seen.
+ * <p>
+ * Each interval starts a new epoch in the bucket table; buckets not looked
+ * up for more than the configured number of intervals are removed from the
+ * table and passed to the back end, which drops their state.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class BucketExpiry
+    extends
+        Service {
+
+    private final BucketTable _buckets;
+    private final Backend _backend;
+    private final int _idleIntervals;
+    private final long _interval;
+    private final ScheduledExecutorService _executor;
+
+
+    /**
+     * Constructor.
+     *
+     * @param buckets       The table whose buckets expire.
+     * @param backend       The back end that holds state for the buckets.
+     * @param idleIntervals The number of whole intervals a bucket may go
+     *                      unused.
+     * @param interval      The interval, typically the flush interval; at
+     *                      least 1ms.
+     * @param unit          The unit of the interval.
+     */
+    public BucketExpiry(final BucketTable buckets,
+                        final Backend backend,
+                        final int idleIntervals,
+                        final long interval,
+                        final TimeUnit unit) {
+        _interval = unit.toMillis(interval);
+        if (idleIntervals<1 || _interval<1) {
+            throw new IllegalArgumentException(
+                "Idle intervals must be positive and interval at least 1ms: "
+                +idleIntervals+", "+interval+" "+unit);
+        }
+        _buckets = Objects.requireNonNull(buckets);
+        _backend = Objects.requireNonNull(backend);
+        _idleIntervals = idleIntervals;
+        _executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "Bucket Expiry");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+
+    /**
+     * Start expiring buckets at the configured interval.
+     */
+    public void start() {
+        _executor.scheduleAtFixedRate(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        expireIdle();
+                    } catch (final RuntimeException e) {
+                        System.err.println(
+                            "Error expiring buckets: "+e.getMessage());
+                    }
+                }
+            },
+            _interval,
+            _interval,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * End the current interval, expiring buckets that have been idle for
+     * too long. Should only be called by one thread at a time.
+     *
+     * @return The number of buckets expired.
+     */
+    public int expireIdle() {
+        int expired = 0;
+        for (final Bucket bucket : _buckets.expire(_idleIntervals)) {
+            _backend.expire(bucket);
+            expired++;
+        }
+        return expired;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        _executor.shutdown();
+    }
+}
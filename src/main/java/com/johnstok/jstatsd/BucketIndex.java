@@ -0,0 +1,147 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A map from {@link Bucket} to value, indexed by bucket id.
+ * <p>
+ * Reads are a bounds check and an array load, with no hashing or locking.
+ * Writes lock, so that growing the array never loses a concurrent write;
+ * they are expected to be rare, typically once per bucket.
+ * <p>
+ * Each value is stored with the bucket it belongs to. The ids of expired
+ * buckets are reused, so a value is only returned for the bucket that put
+ * it, and a value left by an expired bucket is replaced.
+ *
+ * @param <T> The type of value held.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class BucketIndex<T> {
+
+    /* A value and the bucket it belongs to. */
+    private static final class Slot<T> {
+
+        final Bucket _bucket;
+        final T      _value;
+
+
+        Slot(final Bucket bucket, final T value) {
+            _bucket = bucket;
+            _value = value;
+        }
+    }
+
+
+    private volatile AtomicReferenceArray<Slot<T>> _values =
+        new AtomicReferenceArray<>(64);
+
+
+    /**
+     * Look up the value for a bucket.
+     *
+     * @param bucket The bucket.
+     *
+     * @return The value, or null if there is none.
+     */
+    T get(final Bucket bucket) {
+        final AtomicReferenceArray<Slot<T>> values = _values;
+        final int id = bucket.getId();
+        if (id>=values.length()) { return null; }
+        final Slot<T> slot = values.get(id);
+        return (null!=slot && slot._bucket==bucket) ? slot._value : null;
+    }
+
+
+    /**
+     * Look up the value for a bucket id, whichever bucket it belongs to.
+     *
+     * @param id The bucket id.
+     *
+     * @return The value, or null if there is none.
+     */
+    T get(final int id) {
+        final AtomicReferenceArray<Slot<T>> values = _values;
+        if (id>=values.length()) { return null; }
+        final Slot<T> slot = values.get(id);
+        return (null!=slot) ? slot._value : null;
+    }
+
+
+    /**
+     * Set the value for a bucket, unless it already has one.
+     *
+     * @param bucket The bucket.
+     * @param value  The value to set.
+     *
+     * @return The existing value, or null if the value was set.
+     */
+    synchronized T putIfAbsent(final Bucket bucket, final T value) {
+        final int id = bucket.getId();
+        AtomicReferenceArray<Slot<T>> values = _values;
+        if (id>=values.length()) {
+            final AtomicReferenceArray<Slot<T>> grown =
+                new AtomicReferenceArray<>(
+                    Math.max(values.length()*2, Integer.highestOneBit(id)*2));
+            for (int i=0; i<values.length(); i++) {
+                grown.set(i, values.get(i));
+            }
+            _values = values = grown;
+        }
+        final Slot<T> existing = values.get(id);
+        if (null!=existing && existing._bucket==bucket) {
+            return existing._value;
+        }
+        values.set(id, new Slot<>(bucket, value));
+        return null;
+    }
+
+
+    /**
+     * Remove the value for a bucket, if it has one.
+     *
+     * @param bucket The bucket.
+     *
+     * @return The value removed, or null if there was none.
+     */
+    synchronized T remove(final Bucket bucket) {
+        final AtomicReferenceArray<Slot<T>> values = _values;
+        final int id = bucket.getId();
+        if (id>=values.length()) { return null; }
+        final Slot<T> slot = values.get(id);
+        if (null==slot || slot._bucket!=bucket) { return null; }
+        values.set(id, null);
+        return slot._value;
+    }
+
+
+    /**
+     * Query the number of ids the index can currently hold. Ids at or above
+     * this bound have no value.
+     *
+     * @return The capacity.
+     */
+    int capacity() {
+        return _values.length();
+    }
+}
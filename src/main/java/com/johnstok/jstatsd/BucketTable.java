@@ -0,0 +1,618 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A symbol table that maps raw bucket names to canonical {@link Bucket}s.
+ * <p>
+ * Lookups are keyed on the bucket name's bytes, exactly as received, so
+ * finding a bucket that has been seen before requires no allocation and no
+ * locking. Only the first occurrence of a name takes a lock, decodes the
+ * name and, optionally, sanitizes it.
+ * <p>
+ * Sanitization follows Statsd: runs of white space become '_', '/' becomes
+ * '-' and any other character outside <code>[a-zA-Z0-9_.-]</code> is
+ * removed. Raw names that sanitize to the same string share a bucket.
+ * <p>
+ * A name may be looked up with a set of tags, as sent by DogStatsD clients.
+ * The name and tag set are interned together: lookups are keyed on their
+ * raw bytes, so a repeated tag set costs no allocation, and on first
+ * occurrence the tags are put in canonical form - sorted, without
+ * duplicates - so that tag sets written in a different order share a
+ * bucket. Each bucket's canonical tag string is shared with every other
+ * bucket that has the same tags. Only the first
+ * {@value #MAX_ALIASES} raw spellings of a bucket are remembered, so
+ * clients sending tags in many orders can't grow the table without bound;
+ * further spellings take the lock on each lookup.
+ * <p>
+ * A table may limit the number of live buckets. Once the limit is reached a
+ * new name is either rejected, or folded into a single overflow bucket;
+ * either way it is counted. While the table is full, a spelling that isn't
+ * in the table is rejected or folded without taking the lock, decoding the
+ * name or allocating, so a flood of new names can't serialize the
+ * receivers; the cost is that a new spelling of an existing name, such as
+ * a different tag order, is also treated as new until room is freed.
+ * <p>
+ * Buckets that haven't been looked up for a number of epochs can be
+ * expired with {@link #expire(int)}, which is typically called once per
+ * flush interval. Each lookup records the current epoch in the bucket,
+ * writing only when the epoch has changed, so tracking use adds no lock
+ * and almost no contention to the lookup path. Expiry frees room under the
+ * limit, and the ids of expired buckets are reused. Pinned buckets, such as
+ * those for the daemon's own metrics, are never expired or limited.
+ * <p>
+ * A table may be shared by any number of threads. All buckets passed to a
+ * backend should come from the same table, so that their ids are unique.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class BucketTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_ALIASES = 8;
+
+
+    /**
+     * What to do with a new name once the table is full.
+     */
+    public static enum OverflowPolicy {
+        /** Discard events for the name. */
+        REJECT,
+        /** Count events for the name in the overflow bucket. */
+        OVERFLOW
+    }
+
+
+    /*
+     * An immutable hash chain entry, keyed on the raw bytes of a name
+     * followed by the raw bytes of its tags, if any.
+     */
+    private static final class Entry {
+
+        final byte[] _key;
+        final int    _nameLength;
+        final int    _hash;
+        final Bucket _bucket;
+        final Entry  _next;
+
+
+        Entry(final byte[] key,
+              final int nameLength,
+              final int hash,
+              final Bucket bucket,
+              final Entry next) {
+            _key = key;
+            _nameLength = nameLength;
+            _hash = hash;
+            _bucket = bucket;
+            _next = next;
+        }
+    }
+
+
+    private final boolean _sanitize;
+    private final int _maxBuckets;
+    private final OverflowPolicy _overflowPolicy;
+    private final Map<String, Bucket> _byName = new HashMap<>();
+    private final Map<String, String> _tagSets = new HashMap<>();
+    private final Deque<Integer> _freeIds = new ArrayDeque<>();
+    private volatile AtomicReferenceArray<Entry> _table =
+        new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private volatile int _epoch;
+    private final Bucket _overflow;
+    private int _entries;
+    private int _nextId;
+    private volatile int _buckets; // Written under the lock.
+    private final LongAdder _rejected = new LongAdder();
+    private final LongAdder _overflowed = new LongAdder();
+    private long _expired;
+
+
+    /**
+     * Constructor.
+     *
+     * @param sanitize True if bucket names should be sanitized.
+     */
+    public BucketTable(final boolean sanitize) {
+        this(sanitize, Integer.MAX_VALUE, OverflowPolicy.REJECT, null);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param sanitize       True if bucket names should be sanitized.
+     * @param maxBuckets     The most buckets the table may hold, not
+     *                       counting pinned buckets.
+     * @param overflowPolicy What to do with new names once the table is
+     *                       full.
+     * @param overflowName   The name of the overflow bucket; only used with
+     *                       {@link OverflowPolicy#OVERFLOW}.
+     */
+    public BucketTable(final boolean sanitize,
+                       final int maxBuckets,
+                       final OverflowPolicy overflowPolicy,
+                       final String overflowName) {
+        if (maxBuckets<1) {
+            throw new IllegalArgumentException(
+                "Max buckets must be positive: "+maxBuckets);
+        }
+        _sanitize = sanitize;
+        _maxBuckets = maxBuckets;
+        _overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        _overflow =
+            (OverflowPolicy.OVERFLOW==overflowPolicy)
+                ? pin(overflowName)
+                : null;
+    }
+
+
+    /**
+     * Look up the bucket for a raw, UTF-8 encoded name.
+     *
+     * @param data   The array containing the name.
+     * @param offset The index of the first byte of the name.
+     * @param length The length of the name, in bytes.
+     *
+     * @return The canonical bucket for the name; the overflow bucket if the
+     *  table is full; or null if the table is full and new names are
+     *  rejected.
+     */
+    public Bucket get(final byte[] data, final int offset, final int length) {
+        return get(data, offset, length, offset, 0);
+    }
+
+
+    /**
+     * Look up the bucket for a raw, UTF-8 encoded name and tag set.
+     * <p>
+     * The tags are separated by ',' and may be in any order; white space
+     * around each tag is ignored.
+     *
+     * @param data        The array containing the name and tags.
+     * @param offset      The index of the first byte of the name.
+     * @param length      The length of the name, in bytes.
+     * @param tagsOffset  The index of the first byte of the tags.
+     * @param tagsLength  The length of the tags, in bytes; zero for none.
+     *
+     * @return The canonical bucket for the name and tags; the overflow
+     *  bucket if the table is full; or null if the table is full and new
+     *  names are rejected.
+     */
+    public Bucket get(final byte[] data,
+                      final int offset,
+                      final int length,
+                      final int tagsOffset,
+                      final int tagsLength) {
+        final int hash = hash(data, offset, length, tagsOffset, tagsLength);
+        final Bucket bucket =
+            find(_table, data, offset, length, tagsOffset, tagsLength, hash);
+        if (null!=bucket && !bucket.isExpired()) {
+            bucket.touch(_epoch);
+            return bucket;
+        }
+        if (_buckets>=_maxBuckets) {
+            return full();
+        }
+        return
+            insert(
+                data, offset, length, tagsOffset, tagsLength, hash, false);
+    }
+
+
+    /**
+     * Look up the bucket for a name.
+     * <p>
+     * This method encodes the name and is intended for callers that don't
+     * have the raw bytes.
+     *
+     * @param name The name.
+     *
+     * @return The canonical bucket for the name; the overflow bucket if the
+     *  table is full; or null if the table is full and new names are
+     *  rejected.
+     */
+    public Bucket get(final String name) {
+        final byte[] data = name.getBytes(StandardCharsets.UTF_8);
+        return get(data, 0, data.length);
+    }
+
+
+    /**
+     * Look up the bucket for a name, and pin it, so that it is never
+     * expired. Pinned buckets don't count towards the table's limit.
+     *
+     * @param name The name.
+     *
+     * @return The canonical bucket for the name.
+     */
+    public Bucket pin(final String name) {
+        final byte[] data = name.getBytes(StandardCharsets.UTF_8);
+        return
+            insert(
+                data,
+                0,
+                data.length,
+                0,
+                0,
+                hash(data, 0, data.length, 0, 0),
+                true);
+    }
+
+
+    /**
+     * Expire buckets that haven't been looked up for more than the
+     * specified number of epochs, and start a new epoch.
+     *
+     * @param maxIdle The number of whole epochs a bucket may go unused.
+     *
+     * @return The buckets expired; the caller should pass each to the
+     *  backend, so that it can drop their state.
+     */
+    public synchronized List<Bucket> expire(final int maxIdle) {
+        final int epoch = _epoch+1;
+        _epoch = epoch;
+
+        final List<Bucket> expired = new ArrayList<>();
+        final Iterator<Bucket> i = _byName.values().iterator();
+        while (i.hasNext()) {
+            final Bucket bucket = i.next();
+            if (!bucket.isPinned() && epoch-bucket.getLastUsed()>maxIdle) {
+                bucket.expire();
+                i.remove();
+                _freeIds.push(Integer.valueOf(bucket.getId()));
+                expired.add(bucket);
+            }
+        }
+        if (!expired.isEmpty()) {
+            _buckets -= expired.size();
+            _expired += expired.size();
+            _tagSets.clear();
+            for (final Bucket bucket : _byName.values()) {
+                if (bucket.isTagged()) {
+                    _tagSets.put(bucket.getTags(), bucket.getTags());
+                }
+            }
+            rebuild();
+        }
+        return expired;
+    }
+
+
+    /**
+     * Query the number of live buckets in the table, including pinned
+     * buckets.
+     *
+     * @return The number of buckets.
+     */
+    public synchronized int size() {
+        return _byName.size();
+    }
+
+
+    /**
+     * Query the number of lookups rejected because the table was full.
+     *
+     * @return The number of rejected lookups.
+     */
+    public long getRejected() {
+        return _rejected.sum();
+    }
+
+
+    /**
+     * Query the number of lookups folded into the overflow bucket because
+     * the table was full.
+     *
+     * @return The number of folded lookups.
+     */
+    public long getOverflowed() {
+        return _overflowed.sum();
+    }
+
+
+    /**
+     * Query the number of buckets expired.
+     *
+     * @return The number of expired buckets.
+     */
+    public synchronized long getExpired() {
+        return _expired;
+    }
+
+
+    private static Bucket find(final AtomicReferenceArray<Entry> table,
+                               final byte[] data,
+                               final int offset,
+                               final int length,
+                               final int tagsOffset,
+                               final int tagsLength,
+                               final int hash) {
+        Entry e = table.get(hash & (table.length()-1));
+        while (null!=e) {
+            if (e._hash==hash
+                && e._nameLength==length
+                && e._key.length==length+tagsLength
+                && matches(e._key, 0, data, offset, length)
+                && matches(e._key, length, data, tagsOffset, tagsLength)) {
+                return e._bucket;
+            }
+            e = e._next;
+        }
+        return null;
+    }
+
+
+    private synchronized Bucket insert(final byte[] data,
+                                       final int offset,
+                                       final int length,
+                                       final int tagsOffset,
+                                       final int tagsLength,
+                                       final int hash,
+                                       final boolean pin) {
+        AtomicReferenceArray<Entry> table = _table;
+        final Bucket existing =
+            find(table, data, offset, length, tagsOffset, tagsLength, hash);
+        if (null!=existing && !existing.isExpired()) {
+            existing.touch(_epoch);
+            if (pin) { pinBucket(existing); }
+            return existing;
+        }
+
+        String name = new String(data, offset, length, StandardCharsets.UTF_8);
+        if (_sanitize) { name = sanitize(name); }
+        final String tags = canonicalTags(data, tagsOffset, tagsLength);
+        final String series = (tags.isEmpty()) ? name : name+'\n'+tags;
+        Bucket bucket = _byName.get(series);
+        if (null==bucket) {
+            if (!pin && _buckets>=_maxBuckets) {
+                return full();
+            }
+            final Integer free = _freeIds.poll();
+            bucket =
+                new Bucket(
+                    (null==free) ? _nextId++ : free.intValue(),
+                    name,
+                    internTags(tags),
+                    _epoch);
+            _byName.put(series, bucket);
+            if (pin) {
+                bucket.pin();
+            } else {
+                _buckets++;
+            }
+        } else {
+            bucket.touch(_epoch);
+            if (pin) { pinBucket(bucket); }
+        }
+        if (bucket.addAlias()>MAX_ALIASES) {
+            return bucket; // Found, but not remembered.
+        }
+
+        final byte[] key = new byte[length+tagsLength];
+        System.arraycopy(data, offset, key, 0, length);
+        System.arraycopy(data, tagsOffset, key, length, tagsLength);
+        if (++_entries>table.length()*3/4) {
+            table = resize(table);
+        }
+        final int index = hash & (table.length()-1);
+        table.set(
+            index, new Entry(key, length, hash, bucket, table.get(index)));
+        return bucket;
+    }
+
+
+    private Bucket full() {
+        if (null==_overflow) {
+            _rejected.increment();
+        } else {
+            _overflowed.increment();
+        }
+        return _overflow;
+    }
+
+
+    private void pinBucket(final Bucket bucket) {
+        if (!bucket.isPinned()) {
+            bucket.pin();
+            _buckets--;
+        }
+    }
+
+
+    /*
+     * Drop the entries of expired buckets. As with resize(), readers still
+     * holding the old table may find an expired bucket; they check for that
+     * and fall back to insert().
+     */
+    private void rebuild() {
+        final AtomicReferenceArray<Entry> old = _table;
+        final AtomicReferenceArray<Entry> table =
+            new AtomicReferenceArray<>(old.length());
+        int entries = 0;
+        for (int i=0; i<old.length(); i++) {
+            for (Entry e = old.get(i); null!=e; e = e._next) {
+                if (!e._bucket.isExpired()) {
+                    table.set(
+                        i,
+                        new Entry(
+                            e._key,
+                            e._nameLength,
+                            e._hash,
+                            e._bucket,
+                            table.get(i)));
+                    entries++;
+                }
+            }
+        }
+        _entries = entries;
+        _table = table;
+    }
+
+
+    /*
+     * Entries are immutable, so readers still holding the old table see a
+     * consistent, if stale, view; a miss sends them to insert(), which
+     * re-checks the current table under the lock.
+     */
+    private AtomicReferenceArray<Entry> resize(
+                                    final AtomicReferenceArray<Entry> old) {
+        final AtomicReferenceArray<Entry> table =
+            new AtomicReferenceArray<>(old.length()*2);
+        for (int i=0; i<old.length(); i++) {
+            for (Entry e = old.get(i); null!=e; e = e._next) {
+                final int index = e._hash & (table.length()-1);
+                table.set(
+                    index,
+                    new Entry(
+                        e._key,
+                        e._nameLength,
+                        e._hash,
+                        e._bucket,
+                        table.get(index)));
+            }
+        }
+        _table = table;
+        return table;
+    }
+
+
+    /* Share one string among the buckets with the same tags. */
+    private String internTags(final String tags) {
+        if (tags.isEmpty()) { return tags; }
+        final String existing = _tagSets.get(tags);
+        if (null!=existing) { return existing; }
+        _tagSets.put(tags, tags);
+        return tags;
+    }
+
+
+    private static boolean matches(final byte[] key,
+                                   final int keyOffset,
+                                   final byte[] data,
+                                   final int offset,
+                                   final int length) {
+        for (int i=0; i<length; i++) {
+            if (key[keyOffset+i]!=data[offset+i]) { return false; }
+        }
+        return true;
+    }
+
+
+    /*
+     * FNV-1a over the name then, if there are any, a separator and the
+     * tags; an untagged name hashes as it always has.
+     */
+    private static int hash(final byte[] data,
+                            final int offset,
+                            final int length,
+                            final int tagsOffset,
+                            final int tagsLength) {
+        int h = 0x811c9dc5;
+        for (int i=offset; i<offset+length; i++) {
+            h = (h^data[i])*0x01000193;
+        }
+        if (tagsLength>0) {
+            h = (h^'#')*0x01000193;
+            for (int i=tagsOffset; i<tagsOffset+tagsLength; i++) {
+                h = (h^data[i])*0x01000193;
+            }
+        }
+        return h^(h>>>16);
+    }
+
+
+    /**
+     * Put a raw tag set in canonical form: each tag trimmed, empty tags
+     * dropped, then sorted, without duplicates and joined with ','.
+     *
+     * @param data   The array containing the tags.
+     * @param offset The index of the first byte of the tags.
+     * @param length The length of the tags, in bytes.
+     *
+     * @return The canonical tags; empty if there are none.
+     */
+    static String canonicalTags(final byte[] data,
+                                final int offset,
+                                final int length) {
+        if (0==length) { return ""; }
+        final String[] tags =
+            new String(data, offset, length, StandardCharsets.UTF_8)
+                .split(",");
+        int count = 0;
+        for (final String tag : tags) {
+            final String t = tag.trim();
+            if (!t.isEmpty()) { tags[count++] = t; }
+        }
+        Arrays.sort(tags, 0, count);
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i=0; i<count; i++) {
+            if (i>0 && tags[i].equals(tags[i-1])) { continue; }
+            if (sb.length()>0) { sb.append(','); }
+            sb.append(tags[i]);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Sanitize a bucket name, following Statsd.
+     *
+     * @param name The name to sanitize.
+     *
+     * @return The sanitized name.
+     */
+    static String sanitize(final String name) {
+        final StringBuilder sb = new StringBuilder(name.length());
+        boolean whitespace = false;
+        for (int i=0; i<name.length(); i++) {
+            final char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (!whitespace) { sb.append('_'); }
+                whitespace = true;
+                continue;
+            }
+            whitespace = false;
+            if (c=='/') {
+                sb.append('-');
+            } else if ((c>='a' && c<='z')
+                       || (c>='A' && c<='Z')
+                       || (c>='0' && c<='9')
+                       || c=='_' || c=='-' || c=='.') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
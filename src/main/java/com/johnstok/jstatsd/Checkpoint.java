@@ -0,0 +1,328 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+
+/**
+ * A compact binary snapshot of backend state, written and read through
+ * memory-mapped regions.
+ * <p>
+ * A checkpoint starts with a fixed header: a magic number, a format
+ * version, the CRC-32 of the records, the time written, the number of
+ * records and the length of the records in bytes. Mapped regions are
+ * allocated in whole chunks, so the file may be longer than the records it
+ * holds; anything past the recorded length is ignored. Each record is a
+ * kind byte, the bucket name as an unsigned 16-bit length followed by UTF-8
+ * bytes, and an 8-byte double value. The name of a tagged bucket is
+ * followed by a '\n', which can't appear in a name, and its canonical tags.
+ * <p>
+ * A checkpoint is written to a temporary file, forced to disk and then
+ * moved over the previous one, so a crash while writing leaves the previous
+ * checkpoint intact. A checkpoint that is truncated or fails its checksum is
+ * rejected as a whole.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class Checkpoint {
+
+    /** The magic number at the start of a checkpoint: "JSTATSD1". */
+    public static final long MAGIC = 0x4A53544154534431L;
+
+    /** The current format version. */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int CHUNK_SIZE = 1<<20;
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+    private static final byte COUNTER = 1;
+    private static final byte GAUGE = 2;
+    private static final char TAG_SEPARATOR = '\n';
+
+
+    /**
+     * Receives the state of a backend, one bucket at a time.
+     */
+    public interface Visitor {
+
+        void counter(Bucket bucket, double value);
+
+        void gauge(Bucket bucket, double value);
+    }
+
+
+    /*
+     * Writes records through successive mapped chunks of the file, growing
+     * it as needed, and checksums each chunk as it is finished.
+     */
+    private static final class Writer
+        implements
+            Visitor {
+
+        private final FileChannel _channel;
+        private final CRC32 _crc = new CRC32();
+        private MappedByteBuffer _chunk;
+        private long _base = HEADER_SIZE;
+        private long _records;
+        private IOException _error;
+
+
+        Writer(final FileChannel channel) throws IOException {
+            _channel = channel;
+            _chunk =
+                channel.map(FileChannel.MapMode.READ_WRITE, _base, CHUNK_SIZE);
+        }
+
+
+        /** {@inheritDoc} */
+        @Override
+        public void counter(final Bucket bucket, final double value) {
+            record(COUNTER, bucket, value);
+        }
+
+
+        /** {@inheritDoc} */
+        @Override
+        public void gauge(final Bucket bucket, final double value) {
+            record(GAUGE, bucket, value);
+        }
+
+
+        private void record(final byte kind,
+                            final Bucket bucket,
+                            final double value) {
+            if (null!=_error) { return; }
+            final byte[] name =
+                (bucket.isTagged()
+                    ? bucket.getName()+TAG_SEPARATOR+bucket.getTags()
+                    : bucket.getName()).getBytes(StandardCharsets.UTF_8);
+            if (name.length>MAX_NAME_LENGTH) { return; }
+            try {
+                ensure(1+2+name.length+8);
+            } catch (final IOException e) {
+                _error = e;
+                return;
+            }
+            _chunk.put(kind);
+            _chunk.putShort((short) name.length);
+            _chunk.put(name);
+            _chunk.putDouble(value);
+            _records++;
+        }
+
+
+        private void ensure(final int length) throws IOException {
+            if (_chunk.remaining()>=length) { return; }
+            finishChunk();
+            _chunk =
+                _channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    _base,
+                    Math.max(CHUNK_SIZE, length));
+        }
+
+
+        private void finishChunk() {
+            final ByteBuffer written = _chunk.duplicate();
+            written.flip();
+            _crc.update(written);
+            _chunk.force();
+            _base += _chunk.position();
+        }
+
+
+        void finish(final long timestamp) throws IOException {
+            if (null!=_error) { throw _error; }
+            finishChunk();
+            final MappedByteBuffer header =
+                _channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putLong(MAGIC);
+            header.putInt(VERSION);
+            header.putInt((int) _crc.getValue());
+            header.putLong(timestamp);
+            header.putLong(_records);
+            header.putLong(_base-HEADER_SIZE);
+            header.force();
+        }
+    }
+
+
+    private Checkpoint() {
+        super();
+    }
+
+
+    /**
+     * Write a checkpoint of a backend's state.
+     *
+     * @param file   The checkpoint file; it is replaced atomically.
+     * @param source The backend.
+     *
+     * @return The number of records written.
+     *
+     * @throws IOException If the checkpoint can't be written.
+     */
+    public static long write(final Path file,
+                             final Checkpointable source) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+        final long records;
+        try (FileChannel channel =
+                FileChannel.open(
+                    tmp,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+            final Writer writer = new Writer(channel);
+            source.saveState(writer);
+            writer.finish(System.currentTimeMillis());
+            records = writer._records;
+        }
+        Files.move(
+            tmp,
+            file,
+            StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+        return records;
+    }
+
+
+    /**
+     * Read a checkpoint, passing each record to a visitor.
+     * <p>
+     * The whole checkpoint is validated before any record is passed on.
+     * Records for names the table rejects are skipped.
+     *
+     * @param file    The checkpoint file.
+     * @param buckets The table used to look up bucket names.
+     * @param target  The visitor that receives the state.
+     *
+     * @return The number of records read, or -1 if there is no checkpoint.
+     *
+     * @throws IOException If the checkpoint can't be read or is invalid.
+     */
+    public static long read(final Path file,
+                            final BucketTable buckets,
+                            final Visitor target) throws IOException {
+        final ByteBuffer data;
+        try (FileChannel channel =
+                FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size<HEADER_SIZE || size>Integer.MAX_VALUE) {
+                throw new IOException("Invalid checkpoint size: "+size);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (final NoSuchFileException e) {
+            return -1;
+        }
+
+        if (MAGIC!=data.getLong(0) || VERSION!=data.getInt(8)) {
+            throw new IOException("Not a version "+VERSION+" checkpoint.");
+        }
+        final int crc = data.getInt(12);
+        final long records = data.getLong(24);
+        final long length = data.getLong(32);
+        if (length<0 || HEADER_SIZE+length>data.capacity()) {
+            throw new IOException("Truncated checkpoint.");
+        }
+        data.position(HEADER_SIZE).limit((int) (HEADER_SIZE+length));
+        final CRC32 actual = new CRC32();
+        actual.update(data.duplicate());
+        if (crc!=(int) actual.getValue()) {
+            throw new IOException("Checkpoint checksum mismatch.");
+        }
+        validate(data.duplicate(), records);
+
+        byte[] name = new byte[64];
+        for (long r=0; r<records; r++) {
+            final byte kind = data.get();
+            final int nameLength = data.getShort() & MAX_NAME_LENGTH;
+            if (name.length<nameLength) { name = new byte[nameLength]; }
+            data.get(name, 0, nameLength);
+            final double value = data.getDouble();
+            int separator = 0;
+            while (separator<nameLength && TAG_SEPARATOR!=name[separator]) {
+                separator++;
+            }
+            final Bucket bucket =
+                (separator==nameLength)
+                    ? buckets.get(name, 0, nameLength)
+                    : buckets.get(
+                        name,
+                        0,
+                        separator,
+                        separator+1,
+                        nameLength-separator-1);
+            if (null==bucket) { continue; }
+            switch (kind) {
+                case COUNTER:
+                    target.counter(bucket, value);
+                    break;
+                case GAUGE:
+                    target.gauge(bucket, value);
+                    break;
+                default:
+                    throw new IOException("Unknown record kind: "+kind);
+            }
+        }
+        return records;
+    }
+
+
+    /**
+     * Check that the records fit their length and have known kinds.
+     *
+     * @param data    The records, from the current position to the limit.
+     * @param records The number of records expected.
+     *
+     * @throws IOException If a record is truncated or of an unknown kind.
+     */
+    private static void validate(final ByteBuffer data,
+                                 final long records) throws IOException {
+        for (long r=0; r<records; r++) {
+            if (data.remaining()<3) {
+                throw new IOException("Truncated checkpoint record: "+r);
+            }
+            final byte kind = data.get();
+            if (COUNTER!=kind && GAUGE!=kind) {
+                throw new IOException("Unknown record kind: "+kind);
+            }
+            final int nameLength = data.getShort() & MAX_NAME_LENGTH;
+            if (data.remaining()<nameLength+8) {
+                throw new IOException("Truncated checkpoint record: "+r);
+            }
+            data.position(data.position()+nameLength+8);
+        }
+        if (data.hasRemaining()) {
+            throw new IOException("Checkpoint length doesn't match records.");
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+
+/**
+ * API for a backend whose state can be saved to, and restored from, a
+ * {@link Checkpoint}.
+ * <p>
+ * Only state that outlives a flush or report needs saving: values that are
+ * reset each interval have already been passed on.
+ *
+ * @author Keith Webster Johnston.
+ */
+public interface Checkpointable {
+
+    /**
+     * Pass the backend's current state to a visitor, one bucket at a time.
+     * May be called while events are being received.
+     *
+     * @param visitor The visitor.
+     */
+    void saveState(Checkpoint.Visitor visitor);
+
+
+    /**
+     * Create a visitor that merges restored state into the backend.
+     *
+     * @return The visitor.
+     */
+    Checkpoint.Visitor restorer();
+}
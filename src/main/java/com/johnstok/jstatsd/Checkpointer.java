@@ -0,0 +1,155 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.johnstok.utils.Service;
+
+
+/**
+ * Periodically writes a {@link Checkpoint} of a backend's state, so that a
+ * restarted daemon can pick up where it left off.
+ * <p>
+ * A final checkpoint is written when the service stops, so it should be
+ * stopped after any service that flushes the backend.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class Checkpointer
+    extends
+        Service {
+
+    private final Path _file;
+    private final Checkpointable _source;
+    private final long _interval;
+    private final ScheduledExecutorService _executor;
+
+
+    /**
+     * Constructor.
+     *
+     * @param file     The checkpoint file.
+     * @param source   The backend to checkpoint.
+     * @param interval The interval between checkpoints; at least 1ms.
+     * @param unit     The unit of the interval.
+     */
+    public Checkpointer(final Path file,
+                        final Checkpointable source,
+                        final long interval,
+                        final TimeUnit unit) {
+        _interval = unit.toMillis(interval);
+        if (_interval<1) {
+            throw new IllegalArgumentException(
+                "Interval must be at least 1ms: "+interval+" "+unit);
+        }
+        _file = Objects.requireNonNull(file);
+        _source = Objects.requireNonNull(source);
+        _executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "Checkpoint");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+
+    /**
+     * Restore the backend's state from the checkpoint file, if there is
+     * one. An invalid checkpoint is reported and ignored.
+     *
+     * @param buckets The table used to look up bucket names.
+     *
+     * @return The number of records restored.
+     */
+    public long restore(final BucketTable buckets) {
+        final long start = System.nanoTime();
+        try {
+            final long records =
+                Checkpoint.read(_file, buckets, _source.restorer());
+            if (records<0) { return 0; }
+            System.out.println(
+                "Restored "+records+" records from "+_file+" in "
+                +TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start)
+                +"ms.");
+            return records;
+        } catch (final IOException | RuntimeException e) {
+            System.err.println(
+                "Ignoring checkpoint "+_file+": "+e.getMessage());
+            return 0;
+        }
+    }
+
+
+    /**
+     * Start writing checkpoints at the configured interval.
+     */
+    public void start() {
+        _executor.scheduleAtFixedRate(
+            new Runnable() {
+                @Override
+                public void run() {
+                    checkpoint();
+                }
+            },
+            _interval,
+            _interval,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Write a checkpoint now. Should only be called by one thread at a
+     * time.
+     *
+     * @return True if the checkpoint was written, false otherwise.
+     */
+    public boolean checkpoint() {
+        try {
+            Checkpoint.write(_file, _source);
+            return true;
+        } catch (final IOException | RuntimeException e) {
+            System.err.println(
+                "Error writing checkpoint "+_file+": "+e.getMessage());
+            return false;
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        _executor.shutdown();
+        try {
+            _executor.awaitTermination(_interval, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+    }
+}
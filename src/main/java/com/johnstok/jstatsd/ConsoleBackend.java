@@ -19,50 +19,404 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.jstatsd;
 
-import java.math.BigDecimal;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.johnstok.utils.AsciiBuffer;
+import com.johnstok.utils.Service;
 
 
 /**
- * A backend that writes events to the console.
+ * A backend that writes events, or aggregated flushes, to the console or
+ * another stream.
+ * <p>
+ * Events are formatted straight into a shared byte buffer, without
+ * creating strings for bucket names or integral values, and the buffer is
+ * written in large chunks: when it fills, at a fixed interval, and when the
+ * back end stops. Standard output is written directly rather than through
+ * {@link System#out}, which is synchronized and flushes often. A tagged
+ * bucket is written as <code>name|#tags</code>.
  *
  * @author Keith Webster Johnston.
  */
 public class ConsoleBackend
+    extends
+        Service
     implements
-        Backend {
+        Backend, FlushBackend {
+
+    /** The buffer size used if none is specified, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+
+    /** The interval between flushes used if none is specified, in ms. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private final OutputStream _out;
+    private final int _bufferSize;
+    private final AsciiBuffer _buffer;
+    private final BucketIndex<byte[]> _names = new BucketIndex<>();
+    private final AtomicLong _writeErrors = new AtomicLong();
+    private final ScheduledExecutorService _flusher;
+
+
+    /**
+     * Constructor.
+     * <p>
+     * Writes to standard output.
+     */
+    public ConsoleBackend() {
+        this(
+            new FileOutputStream(FileDescriptor.out),
+            DEFAULT_BUFFER_SIZE,
+            DEFAULT_FLUSH_INTERVAL,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param out           The stream to write to, e.g. a file or a pipe. It
+     *                      is closed when the back end stops, unless it is
+     *                      standard output.
+     * @param bufferSize    The number of bytes buffered before they are
+     *                      written.
+     * @param flushInterval The longest time output is buffered; zero or
+     *                      less to flush only when the buffer fills.
+     * @param unit          The unit of the flush interval.
+     */
+    public ConsoleBackend(final OutputStream out,
+                          final int bufferSize,
+                          final long flushInterval,
+                          final TimeUnit unit) {
+        if (bufferSize<1) {
+            throw new IllegalArgumentException(
+                "Buffer size must be positive: "+bufferSize);
+        }
+        _out = Objects.requireNonNull(out);
+        _bufferSize = bufferSize;
+        _buffer = new AsciiBuffer(bufferSize+256);
+        if (flushInterval>0) {
+            _flusher =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "Console Flush");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            _flusher.scheduleAtFixedRate(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        flushOutput();
+                    }
+                },
+                flushInterval,
+                flushInterval,
+                unit);
+        } else {
+            _flusher = null;
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|h");
+            endEvent(sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|h");
+            endEvent(sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final long i,
+                      final double sampleRate) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|c");
+            endEvent(sampleRate);
+        }
+    }
 
 
     /** {@inheritDoc} */
     @Override
-    public void histogram(final String bucket, final BigDecimal i) {
-        System.out.println(bucket+":"+i+"|h");
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|c");
+            endEvent(sampleRate);
+        }
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void count(final String bucket, final BigDecimal i) {
-        System.out.println(bucket+":"+i+"|c");
+    public void gauge(final Bucket bucket, final long i) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|g");
+            endEvent(1);
+        }
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void gauge(final String bucket, final BigDecimal i) {
-        System.out.println(bucket+":"+i+"|g");
+    public void gauge(final Bucket bucket, final double i) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|g");
+            endEvent(1);
+        }
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void time(final String bucket, final BigDecimal i) {
-        System.out.println(bucket+":"+i+"|ms");
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        synchronized (_buffer) {
+            event(bucket);
+            if (delta>=0) { _buffer.append('+'); }
+            _buffer.append(delta).appendAscii("|g");
+            endEvent(1);
+        }
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void mark(final String bucket, final BigDecimal i) {
-        System.out.println(bucket+":"+i+"|s");
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        synchronized (_buffer) {
+            event(bucket);
+            if (delta>=0) { _buffer.append('+'); }
+            _buffer.append(delta).appendAscii("|g");
+            endEvent(1);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|ms");
+            endEvent(sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|ms");
+            endEvent(sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|s");
+            endEvent(1);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        synchronized (_buffer) {
+            event(bucket).append(i).appendAscii("|s");
+            endEvent(1);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void set(final Bucket bucket, final long member) {
+        synchronized (_buffer) {
+            event(bucket)
+                .append('#')
+                .appendAscii(Long.toHexString(member))
+                .appendAscii("|s");
+            endEvent(1);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush(final Flush flush) {
+        synchronized (_buffer) {
+            _buffer.appendAscii("flush@")
+                   .append(flush.getTimestamp())
+                   .append('\n');
+            for (final Map.Entry<Bucket, Double> e : flush.getCounters().entrySet()) {
+                final double total = e.getValue().doubleValue();
+                event(e.getKey())
+                    .append(total)
+                    .appendAscii("|c rate=")
+                    .append(flush.perSecond(total))
+                    .append('\n');
+                writeIfFull();
+            }
+            for (final Map.Entry<Bucket, Double> e : flush.getGauges().entrySet()) {
+                event(e.getKey())
+                    .append(e.getValue().doubleValue())
+                    .appendAscii("|g\n");
+                writeIfFull();
+            }
+            for (final Map.Entry<Bucket, TimerStats> e : flush.getTimers().entrySet()) {
+                final TimerStats t = e.getValue();
+                final double count = t.getCount();
+                _buffer.append(name(e.getKey()))
+                       .appendAscii(": count=").append(count)
+                       .appendAscii(" rate=").append(flush.perSecond(count))
+                       .appendAscii(" min=").append(t.getMin())
+                       .appendAscii(" max=").append(t.getMax())
+                       .appendAscii(" mean=").append(t.getMean())
+                       .appendAscii(" p50=").append(t.getPercentile(.5))
+                       .appendAscii(" p90=").append(t.getPercentile(.9))
+                       .appendAscii(" p99=").append(t.getPercentile(.99))
+                       .appendAscii("|ms\n");
+                writeIfFull();
+            }
+            for (final Map.Entry<Bucket, Long> e : flush.getSets().entrySet()) {
+                event(e.getKey())
+                    .append(e.getValue().longValue())
+                    .appendAscii("|s error=")
+                    .append(flush.getSetError())
+                    .append('\n');
+                writeIfFull();
+            }
+        }
+    }
+
+
+    /**
+     * Write any buffered output to the stream.
+     */
+    public void flushOutput() {
+        synchronized (_buffer) {
+            write();
+            try {
+                _out.flush();
+            } catch (final IOException e) {
+                _writeErrors.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Query the number of failed writes; output that fails to write is
+     * discarded.
+     *
+     * @return The number of errors.
+     */
+    public long getWriteErrors() {
+        return _writeErrors.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        if (null!=_flusher) { _flusher.shutdown(); }
+        flushOutput();
+        try {
+            if (!isStandardOutput()) { _out.close(); }
+        } catch (final IOException e) {
+            _writeErrors.incrementAndGet();
+        }
+    }
+
+
+    /* Start an event line; the caller must hold the buffer's lock. */
+    private AsciiBuffer event(final Bucket bucket) {
+        return _buffer.append(name(bucket)).append(':');
+    }
+
+
+    /* End an event line; the caller must hold the buffer's lock. */
+    private void endEvent(final double sampleRate) {
+        if (1!=sampleRate) {
+            _buffer.appendAscii("|@").append(sampleRate);
+        }
+        _buffer.append('\n');
+        writeIfFull();
+    }
+
+
+    private void writeIfFull() {
+        if (_buffer.length()>=_bufferSize) { write(); }
+    }
+
+
+    private void write() {
+        if (0==_buffer.length()) { return; }
+        try {
+            _buffer.writeTo(_out);
+        } catch (final IOException e) {
+            _writeErrors.incrementAndGet();
+        }
+        _buffer.clear();
+    }
+
+
+    private byte[] name(final Bucket bucket) {
+        final byte[] name = _names.get(bucket);
+        if (null!=name) { return name; }
+        final byte[] created =
+            bucket.toString().getBytes(StandardCharsets.UTF_8);
+        _names.putIfAbsent(bucket, created);
+        return created;
+    }
+
+
+    private boolean isStandardOutput() {
+        try {
+            return
+                _out instanceof FileOutputStream
+                && FileDescriptor.out==((FileOutputStream) _out).getFD();
+        } catch (final IOException e) {
+            return false;
+        }
     }
 }
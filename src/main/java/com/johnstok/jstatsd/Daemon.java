@@ -19,18 +19,472 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.jstatsd;
 
+import java.io.FileOutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.johnstok.utils.DatagramReceiver;
+import com.johnstok.utils.HyperLogLog;
+import com.johnstok.utils.QuantileSketch;
+import com.johnstok.utils.Service;
+import com.johnstok.utils.TcpReceiver;
+
 
 /**
- * A daemon that listens for Statsd messages over UDP.
+ * A daemon that listens for Statsd messages over UDP and, optionally,
+ * TCP.
+ * <p>
+ * The daemon is configured with the following system properties:
+ * <ul>
+ * <li><code>jstatsd.port</code> - the UDP port to listen on.</li>
+ * <li><code>jstatsd.maxDatagramSize</code> - the largest datagram, in bytes,
+ * that is processed without truncation (at most 65535).</li>
+ * <li><code>jstatsd.receiveBufferSize</code> - the SO_RCVBUF size, in bytes;
+ * zero keeps the OS default.</li>
+ * <li><code>jstatsd.receiverThreads</code> - the number of receiver
+ * threads.</li>
+ * <li><code>jstatsd.reusePort</code> - whether each receiver thread should
+ * have its own SO_REUSEPORT socket, when supported.</li>
+ * <li><code>jstatsd.tcpPort</code> - if positive, the TCP port to also
+ * accept newline-delimited messages on.</li>
+ * <li><code>jstatsd.tcpThreads</code> - the number of TCP selector
+ * threads.</li>
+ * <li><code>jstatsd.tcpBufferSize</code> - the size of each TCP connection's
+ * buffer, in bytes, which is also the longest line accepted over TCP.</li>
+ * <li><code>jstatsd.relayPort</code> - if positive, the UDP port to accept
+ * messages on for relaying, by a consistent hash of each bucket, to the
+ * nodes in <code>jstatsd.relayNodes</code>.</li>
+ * <li><code>jstatsd.relayNodes</code> - a comma-separated list of the
+ * <code>host:port</code> UDP addresses of the downstream nodes.</li>
+ * <li><code>jstatsd.relayThreads</code> - the number of relay receiver
+ * threads.</li>
+ * <li><code>jstatsd.relayDatagramSize</code> - the size, in bytes, that
+ * relayed datagrams are batched up to.</li>
+ * <li><code>jstatsd.relayFlushInterval</code> - the longest, in
+ * milliseconds, that a line waits to be relayed.</li>
+ * <li><code>jstatsd.relayHealthInterval</code> - the interval, in
+ * milliseconds, between TCP health checks of the downstream nodes; zero,
+ * the default, disables them.</li>
+ * <li><code>jstatsd.backends</code> - a comma-separated list of the
+ * backends to send events to: <code>console</code>, <code>graphite</code>,
+ * <code>http</code> and <code>yammer</code>. Defaults to <code>graphite</code> if
+ * <code>jstatsd.graphiteHost</code> is specified, otherwise
+ * <code>console</code> if <code>jstatsd.flushInterval</code> is positive,
+ * otherwise <code>yammer</code>. Each of several backends gets its own
+ * queue and thread, so a slow backend doesn't hold up the others.</li>
+ * <li><code>jstatsd.flushInterval</code> - the interval, in milliseconds,
+ * at which aggregated events are flushed to the console or Graphite;
+ * defaults to ten seconds when either is used.</li>
+ * <li><code>jstatsd.flushShards</code> - the number of shards the
+ * aggregator partitions buckets into; shards are snapshotted in parallel
+ * at each flush.</li>
+ * <li><code>jstatsd.consoleFile</code> - if specified, console output is
+ * appended to this file, or named pipe, rather than standard output.</li>
+ * <li><code>jstatsd.graphiteHost</code> - the Carbon host that Graphite
+ * flushes are sent to.</li>
+ * <li><code>jstatsd.graphitePort</code> - the Carbon plaintext port.</li>
+ * <li><code>jstatsd.httpPort</code> - the port the <code>http</code>
+ * backend serves the last flush on, at <code>/metrics</code>.</li>
+ * <li><code>jstatsd.graphitePrefix</code> - the prefix for metric names sent
+ * to Carbon.</li>
+ * <li><code>jstatsd.ringCapacity</code> - if positive, events are queued
+ * in a ring buffer of this many slots and applied to the backend on a
+ * separate thread; otherwise receiver threads apply them directly. With
+ * several backends, the capacity of each backend's ring buffer.</li>
+ * <li><code>jstatsd.ringOverloadPolicy</code> - what to do when the ring
+ * buffer is full: <code>DROP_NEWEST</code>, <code>DROP_OLDEST</code> or
+ * <code>BLOCK</code>.</li>
+ * <li><code>jstatsd.ringWaitStrategy</code> - how threads wait on the ring
+ * buffer: <code>SPIN</code>, <code>YIELD</code> or <code>PARK</code>.</li>
+ * <li><code>jstatsd.sanitizeBuckets</code> - whether bucket names are
+ * sanitized, as Statsd does.</li>
+ * <li><code>jstatsd.bucketIdleIntervals</code> - if positive, buckets not
+ * updated for this many flush intervals (or Yammer report intervals) are
+ * expired and their state dropped.</li>
+ * <li><code>jstatsd.maxBuckets</code> - if positive, the most buckets held
+ * at once.</li>
+ * <li><code>jstatsd.bucketOverflowPolicy</code> - what to do with new
+ * buckets once <code>jstatsd.maxBuckets</code> is reached:
+ * <code>REJECT</code> or <code>OVERFLOW</code>, which counts them in the
+ * bucket <code>&lt;selfMetricsPrefix&gt;.overflow</code>.</li>
+ * <li><code>jstatsd.sketchAccuracy</code> - the relative accuracy of timer
+ * and histogram percentiles.</li>
+ * <li><code>jstatsd.sketchBins</code> - the maximum number of sketch bins per
+ * sign for each timer and histogram, which bounds memory per bucket.</li>
+ * <li><code>jstatsd.setPrecision</code> - the precision of the HyperLogLog
+ * sketch for each set; a set uses <code>2^precision</code> bytes.</li>
+ * <li><code>jstatsd.setError</code> - if specified, the required standard
+ * error of set counts, e.g. 0.01; overrides
+ * <code>jstatsd.setPrecision</code>.</li>
+ * <li><code>jstatsd.selfMetricsPrefix</code> - the bucket prefix for the
+ * daemon's own metrics.</li>
+ * <li><code>jstatsd.selfMetricsInterval</code> - the interval, in
+ * milliseconds, at which the daemon's own metrics are reported to the
+ * backend; zero disables them.</li>
+ * <li><code>jstatsd.checkpointFile</code> - if specified, the backend's
+ * gauges and cumulative counters are checkpointed to this file and
+ * restored from it on startup.</li>
+ * <li><code>jstatsd.checkpointInterval</code> - the interval, in
+ * milliseconds, between checkpoints; a final checkpoint is always written
+ * on shutdown.</li>
+ * </ul>
  *
  * @author Keith Webster Johnston.
  */
 public class Daemon {
 
+    private static final int DEFAULT_RING_CAPACITY = 65536;
+
+
     public static void main(final String args[]) throws Exception {
-        new Thread(
-            new EventReceiver(new YammerBackend()),
-            "Event Receiver")
-            .start();
+        final int port =
+            Integer.getInteger(
+                "jstatsd.port", DatagramReceiver.DEFAULT_PORT).intValue();
+        final int maxDatagramSize =
+            Integer.getInteger(
+                "jstatsd.maxDatagramSize",
+                DatagramReceiver.DEFAULT_MAX_DATAGRAM_SIZE).intValue();
+        final int receiveBufferSize =
+            Integer.getInteger("jstatsd.receiveBufferSize", 0).intValue();
+        final int receiverThreads =
+            Integer.getInteger("jstatsd.receiverThreads", 1).intValue();
+        final boolean reusePort =
+            Boolean.parseBoolean(
+                System.getProperty("jstatsd.reusePort", "true"));
+
+        final int tcpPort = Integer.getInteger("jstatsd.tcpPort", 0).intValue();
+        final int tcpThreads =
+            Integer.getInteger("jstatsd.tcpThreads", 1).intValue();
+        final int tcpBufferSize =
+            Integer.getInteger(
+                "jstatsd.tcpBufferSize", TcpReceiver.DEFAULT_BUFFER_SIZE)
+                .intValue();
+
+        final int relayPort =
+            Integer.getInteger("jstatsd.relayPort", 0).intValue();
+        final String relayNodes = System.getProperty("jstatsd.relayNodes");
+        final int relayThreads =
+            Integer.getInteger("jstatsd.relayThreads", 1).intValue();
+        final int relayDatagramSize =
+            Integer.getInteger(
+                "jstatsd.relayDatagramSize",
+                RelayReceiverPool.DEFAULT_DATAGRAM_SIZE).intValue();
+        final long relayFlushInterval =
+            Long.getLong(
+                "jstatsd.relayFlushInterval",
+                RelayReceiverPool.DEFAULT_FLUSH_INTERVAL).longValue();
+        final long relayHealthInterval =
+            Long.getLong(
+                "jstatsd.relayHealthInterval",
+                RelayReceiverPool.DEFAULT_HEALTH_INTERVAL).longValue();
+
+        final String graphiteHost = System.getProperty("jstatsd.graphiteHost");
+        final int graphitePort =
+            Integer.getInteger("jstatsd.graphitePort", 2003).intValue();
+        final String graphitePrefix =
+            System.getProperty("jstatsd.graphitePrefix", "stats");
+        final int httpPort =
+            Integer.getInteger("jstatsd.httpPort", HttpBackend.DEFAULT_PORT)
+                .intValue();
+        final long flushIntervalProperty =
+            Long.getLong("jstatsd.flushInterval", 0).longValue();
+        final String[] backendNames =
+            System.getProperty(
+                "jstatsd.backends",
+                (null!=graphiteHost)
+                    ? "graphite"
+                    : (flushIntervalProperty>0) ? "console" : "yammer")
+                .split(",");
+        final long flushInterval =
+            (flushIntervalProperty>0) ? flushIntervalProperty : 10000;
+        final int flushShards =
+            Integer.getInteger("jstatsd.flushShards", Aggregator.DEFAULT_SHARDS)
+                .intValue();
+        final double sketchAccuracy =
+            Double.parseDouble(
+                System.getProperty(
+                    "jstatsd.sketchAccuracy",
+                    String.valueOf(QuantileSketch.DEFAULT_RELATIVE_ACCURACY)));
+        final int sketchBins =
+            Integer.getInteger(
+                "jstatsd.sketchBins", QuantileSketch.DEFAULT_MAX_BINS)
+                .intValue();
+        final String setError = System.getProperty("jstatsd.setError");
+        final int setPrecision =
+            (null==setError)
+                ? Integer.getInteger(
+                    "jstatsd.setPrecision", HyperLogLog.DEFAULT_PRECISION)
+                    .intValue()
+                : HyperLogLog.precisionFor(Double.parseDouble(setError));
+        final int ringCapacity =
+            Integer.getInteger("jstatsd.ringCapacity", 0).intValue();
+        final RingBufferBackend.OverloadPolicy ringOverloadPolicy =
+            RingBufferBackend.OverloadPolicy.valueOf(
+                System.getProperty(
+                    "jstatsd.ringOverloadPolicy", "DROP_NEWEST"));
+        final RingBufferBackend.WaitStrategy ringWaitStrategy =
+            RingBufferBackend.WaitStrategy.valueOf(
+                System.getProperty("jstatsd.ringWaitStrategy", "PARK"));
+        final String consoleFile = System.getProperty("jstatsd.consoleFile");
+        final boolean sanitizeBuckets =
+            Boolean.parseBoolean(
+                System.getProperty("jstatsd.sanitizeBuckets", "true"));
+        final int bucketIdleIntervals =
+            Integer.getInteger("jstatsd.bucketIdleIntervals", 0).intValue();
+        final int maxBuckets =
+            Integer.getInteger("jstatsd.maxBuckets", 0).intValue();
+        final BucketTable.OverflowPolicy bucketOverflowPolicy =
+            BucketTable.OverflowPolicy.valueOf(
+                System.getProperty("jstatsd.bucketOverflowPolicy", "OVERFLOW"));
+        final String selfMetricsPrefix =
+            System.getProperty(
+                "jstatsd.selfMetricsPrefix", SelfMonitor.DEFAULT_PREFIX);
+        final long selfMetricsInterval =
+            Long.getLong(
+                "jstatsd.selfMetricsInterval", SelfMonitor.DEFAULT_INTERVAL)
+                .longValue();
+        final String checkpointFile =
+            System.getProperty("jstatsd.checkpointFile");
+        final long checkpointInterval =
+            Long.getLong("jstatsd.checkpointInterval", 60000).longValue();
+
+        final Deque<Service> services = new ArrayDeque<>();
+        final Map<String, FlushBackend> flushBackends = new LinkedHashMap<>();
+        final Map<String, Backend> backends = new LinkedHashMap<>();
+        YammerBackend yammer = null;
+        for (final String backendName : backendNames) {
+            final String name = backendName.trim().toLowerCase(Locale.ENGLISH);
+            if ("console".equals(name)) {
+                final ConsoleBackend console =
+                    (null==consoleFile)
+                        ? new ConsoleBackend()
+                        : new ConsoleBackend(
+                            new FileOutputStream(consoleFile, true),
+                            ConsoleBackend.DEFAULT_BUFFER_SIZE,
+                            ConsoleBackend.DEFAULT_FLUSH_INTERVAL,
+                            TimeUnit.MILLISECONDS);
+                services.push(console);
+                flushBackends.put(name, console);
+            } else if ("graphite".equals(name)) {
+                if (null==graphiteHost) {
+                    throw new IllegalArgumentException(
+                        "The graphite backend needs jstatsd.graphiteHost.");
+                }
+                final GraphiteBackend graphite =
+                    new GraphiteBackend(
+                        graphiteHost, graphitePort, graphitePrefix);
+                graphite.start();
+                services.push(graphite);
+                flushBackends.put(name, graphite);
+            } else if ("http".equals(name)) {
+                final HttpBackend http =
+                    new HttpBackend(httpPort, HttpBackend.DEFAULT_PREFIX);
+                http.start();
+                services.push(http);
+                flushBackends.put(name, http);
+            } else if ("yammer".equals(name)) {
+                yammer =
+                    new YammerBackend(sketchAccuracy, sketchBins, setPrecision);
+                services.push(yammer);
+                backends.put(name, yammer);
+            } else {
+                throw new IllegalArgumentException(
+                    "Unknown backend: "+backendName);
+            }
+        }
+
+        FanOutFlushBackend flushFanOut = null;
+        Aggregator aggregator = null;
+        if (!flushBackends.isEmpty()) {
+            final FlushBackend flushBackend;
+            if (1==flushBackends.size()) {
+                flushBackend = flushBackends.values().iterator().next();
+            } else {
+                flushFanOut =
+                    new FanOutFlushBackend(
+                        flushBackends, FanOutFlushBackend.DEFAULT_CAPACITY);
+                flushFanOut.start();
+                services.push(flushFanOut);
+                flushBackend = flushFanOut;
+            }
+            aggregator =
+                new Aggregator(
+                    flushBackend,
+                    flushInterval,
+                    TimeUnit.MILLISECONDS,
+                    sketchAccuracy,
+                    sketchBins,
+                    setPrecision,
+                    flushShards);
+            aggregator.start();
+            services.push(aggregator);
+            backends.put("aggregator", aggregator);
+        }
+        // Only one backend's state is checkpointed.
+        final Checkpointable stateful =
+            (null!=yammer) ? (Checkpointable) yammer : aggregator;
+
+        Backend backend;
+        FanOutBackend fanOut = null;
+        if (1==backends.size()) {
+            backend = backends.values().iterator().next();
+        } else {
+            fanOut =
+                new FanOutBackend(
+                    backends,
+                    (ringCapacity>0) ? ringCapacity : DEFAULT_RING_CAPACITY,
+                    ringOverloadPolicy,
+                    ringWaitStrategy);
+            fanOut.start();
+            services.push(fanOut);
+            backend = fanOut;
+        }
+        RingBufferBackend ring = null;
+        if (ringCapacity>0 && null==fanOut) {
+            ring =
+                new RingBufferBackend(
+                    backend,
+                    ringCapacity,
+                    ringOverloadPolicy,
+                    ringWaitStrategy);
+            ring.start();
+            services.push(ring);
+            backend = ring;
+        }
+
+        final BucketTable buckets =
+            (maxBuckets>0)
+                ? new BucketTable(
+                    sanitizeBuckets,
+                    maxBuckets,
+                    bucketOverflowPolicy,
+                    selfMetricsPrefix+".overflow")
+                : new BucketTable(sanitizeBuckets);
+
+        if (null!=checkpointFile) {
+            final Checkpointer checkpointer =
+                new Checkpointer(
+                    Paths.get(checkpointFile),
+                    stateful,
+                    checkpointInterval,
+                    TimeUnit.MILLISECONDS);
+            checkpointer.restore(buckets);
+            checkpointer.start();
+            services.addLast(checkpointer); // After the final flush.
+        }
+        final EventReceiverPool pool =
+            new EventReceiverPool(
+                backend,
+                buckets,
+                port,
+                receiverThreads,
+                maxDatagramSize,
+                receiveBufferSize,
+                reusePort);
+        services.push(pool);
+
+        TcpEventReceiverPool tcp = null;
+        if (tcpPort>0) {
+            tcp =
+                new TcpEventReceiverPool(
+                    backend,
+                    buckets,
+                    tcpPort,
+                    tcpThreads,
+                    tcpBufferSize,
+                    receiveBufferSize);
+            services.push(tcp);
+        }
+
+        RelayReceiverPool relay = null;
+        if (relayPort>0) {
+            if (null==relayNodes) {
+                throw new IllegalArgumentException(
+                    "jstatsd.relayNodes must be specified with"
+                    + " jstatsd.relayPort.");
+            }
+            relay =
+                new RelayReceiverPool(
+                    RelayReceiverPool.parseNodes(relayNodes),
+                    relayPort,
+                    relayThreads,
+                    maxDatagramSize,
+                    receiveBufferSize,
+                    reusePort,
+                    relayDatagramSize,
+                    relayFlushInterval,
+                    relayHealthInterval);
+            services.push(relay);
+        }
+
+        if (bucketIdleIntervals>0) {
+            final BucketExpiry expiry =
+                new BucketExpiry(
+                    buckets,
+                    backend,
+                    bucketIdleIntervals,
+                    flushInterval,
+                    TimeUnit.MILLISECONDS);
+            expiry.start();
+            services.push(expiry);
+        }
+
+        if (selfMetricsInterval>0) {
+            final SelfMonitor monitor =
+                new SelfMonitor(
+                    backend,
+                    buckets,
+                    selfMetricsPrefix,
+                    selfMetricsInterval,
+                    TimeUnit.MILLISECONDS);
+            monitor.monitor(pool);
+            if (null!=ring) {
+                monitor.monitor(ring);
+            }
+            if (null!=tcp) {
+                monitor.monitor(tcp);
+            }
+            if (null!=relay) {
+                monitor.monitor(relay);
+            }
+            if (null!=aggregator) {
+                monitor.monitor(aggregator);
+            }
+            if (null!=fanOut) {
+                for (final Map.Entry<String, BackendQueue> e
+                        : fanOut.getQueues().entrySet()) {
+                    monitor.monitor(e.getKey(), e.getValue());
+                }
+            }
+            if (null!=flushFanOut) {
+                for (final Map.Entry<String, BackendQueue> e
+                        : flushFanOut.getQueues().entrySet()) {
+                    monitor.monitor(e.getKey(), e.getValue());
+                }
+            }
+            monitor.start();
+            services.push(monitor);
+        }
+
+        // Stop receiving first, then drain each stage into the next.
+        Runtime.getRuntime().addShutdownHook(new Thread("Shutdown") {
+            @Override
+            public void run() {
+                for (final Service service : services) {
+                    service.stop();
+                }
+            }
+        });
+        if (null!=tcp) {
+            tcp.start();
+        }
+        if (null!=relay) {
+            relay.start();
+        }
+        pool.start();
     }
 }
@@ -19,12 +19,9 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.jstatsd;
 
-import java.math.BigDecimal;
-import java.net.DatagramPacket;
-import java.net.SocketException;
-import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import com.johnstok.utils.DatagramReceiver;
 
 
@@ -37,60 +34,122 @@ public class EventReceiver
     extends
         DatagramReceiver {
 
-    private static final Pattern EVENT =
-        Pattern.compile(
-            "([^:]+):(-?\\d+(?:\\.\\d+)?)\\|(c|g|h|ms|s)(?:@(\\d+(?:\\.\\d+)?))?");
-
-    private final Backend _backend;
+    private final StatsdParser _parser;
 
 
     /**
      * Constructor.
      *
      * @param backend The back end used to process events.
+     * @param buckets The table used to look up bucket names.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket.
+     */
+    public EventReceiver(final Backend backend,
+                         final BucketTable buckets) throws IOException {
+        _parser = new StatsdParser(backend, buckets);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend           The back end used to process events.
+     * @param buckets           The table used to look up bucket names.
+     * @param port              The UDP port to listen on.
+     * @param maxDatagramSize   The largest datagram, in bytes, that will be
+     *                          processed in full.
+     * @param receiveBufferSize The SO_RCVBUF size to request, in bytes; zero
+     *                          or less leaves the OS default in place.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket.
+     */
+    public EventReceiver(final Backend backend,
+                         final BucketTable buckets,
+                         final int port,
+                         final int maxDatagramSize,
+                         final int receiveBufferSize) throws IOException {
+        super(port, maxDatagramSize, receiveBufferSize);
+        _parser = new StatsdParser(backend, buckets);
+    }
+
+
+    /**
+     * Constructor.
      *
-     * @throws SocketException If it isn't possible to open a UDP socket.
+     * @param backend         The back end used to process events.
+     * @param buckets         The table used to look up bucket names.
+     * @param channel         A bound channel to receive from; it may be shared
+     *                        with other receivers.
+     * @param maxDatagramSize The largest datagram, in bytes, that will be
+     *                        processed in full.
      */
-    public EventReceiver(final Backend backend) throws SocketException {
-        _backend = backend; // TODO: Check not null.
+    public EventReceiver(final Backend backend,
+                         final BucketTable buckets,
+                         final DatagramChannel channel,
+                         final int maxDatagramSize) {
+        super(channel, maxDatagramSize);
+        _parser = new StatsdParser(backend, buckets);
     }
 
 
     /** {@inheritDoc} */
     @Override
-    protected void processPacket(final DatagramPacket receivePacket) {
-        final String sentence =
-            new String(receivePacket.getData(), StandardCharsets.UTF_8).trim();
-        final String[] events = sentence.split("\n");
-        for (final String event : events) {
-            if (event.isEmpty()) { continue; }
-            final Matcher m = EVENT.matcher(event.trim());
-            if (m.matches()) {
-                final String bucket = m.group(1);
-                final BigDecimal i = new BigDecimal(m.group(2));
-                final String eventType = m.group(3);
-                switch (eventType) {
-                    case "h":
-                        _backend.histogram(bucket, i);
-                        break;
-                    case "c":
-                        _backend.count(bucket, i);
-                        break;
-                    case "g":
-                        _backend.gauge(bucket, i);
-                        break;
-                    case "ms":
-                        _backend.time(bucket, i);
-                        break;
-                    case "s":
-                        _backend.mark(bucket, i);
-                        break;
-                    default:
-                        System.err.println("Bad event type: "+eventType);
-                }
-            } else {
-                System.err.println("Bad event: " + event);
-            }
-        }
+    protected void processPacket(final ByteBuffer packet) {
+        _parser.parse(packet);
+    }
+
+
+    /**
+     * Query the number of received lines that didn't match the Statsd
+     * grammar.
+     *
+     * @return The number of malformed lines.
+     */
+    public long getMalformedLines() {
+        return _parser.getMalformedLines();
+    }
+
+
+    /**
+     * Query the number of received lines that didn't match the Statsd
+     * grammar for the specified reason.
+     *
+     * @param failure The reason.
+     *
+     * @return The number of malformed lines.
+     */
+    public long getMalformedLines(final StatsdParser.Failure failure) {
+        return _parser.getMalformedLines(failure);
+    }
+
+
+    /**
+     * Query the number of non-empty lines received.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        return _parser.getLines();
+    }
+
+
+    /**
+     * Query the number of back end calls that have been timed.
+     *
+     * @return The number of timed calls.
+     */
+    public long getLatencySamples() {
+        return _parser.getLatencySamples();
+    }
+
+
+    /**
+     * Query the total duration of the timed back end calls.
+     *
+     * @return The duration, in nanoseconds.
+     */
+    public long getLatencyNanos() {
+        return _parser.getLatencyNanos();
     }
 }
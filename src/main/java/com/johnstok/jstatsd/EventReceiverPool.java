@@ -0,0 +1,208 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.johnstok.utils.DatagramReceiver;
+import com.johnstok.utils.Service;
+
+
+/**
+ * A group of event receivers, each with its own thread, listening on the
+ * same UDP port.
+ * <p>
+ * When SO_REUSEPORT is available each receiver gets its own socket and the
+ * kernel shards incoming datagrams between them (by source address and
+ * port). Otherwise all receivers drain a single shared channel.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class EventReceiverPool
+    extends
+        Service {
+
+    private final List<EventReceiver> _receivers;
+    private final List<Thread> _threads;
+    private final boolean _reusePort;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend           The back end used to process events; it is
+     *                          shared by all receivers.
+     * @param buckets           The table used to look up bucket names; it
+     *                          is shared by all receivers.
+     * @param port              The UDP port to listen on.
+     * @param threads           The number of receiver threads.
+     * @param maxDatagramSize   The largest datagram, in bytes, that will be
+     *                          processed in full.
+     * @param receiveBufferSize The SO_RCVBUF size to request, in bytes; zero
+     *                          or less leaves the OS default in place.
+     * @param reusePort         True if SO_REUSEPORT should be used when the
+     *                          platform supports it.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket.
+     */
+    public EventReceiverPool(final Backend backend,
+                             final BucketTable buckets,
+                             final int port,
+                             final int threads,
+                             final int maxDatagramSize,
+                             final int receiveBufferSize,
+                             final boolean reusePort) throws IOException {
+        if (threads<1) {
+            throw new IllegalArgumentException(
+                "Thread count must be positive: "+threads);
+        }
+        _reusePort =
+            reusePort && threads>1 && DatagramReceiver.isReusePortSupported();
+
+        final List<EventReceiver> receivers = new ArrayList<>(threads);
+        final List<Thread> threadList = new ArrayList<>(threads);
+        DatagramChannel pending = null; // Opened, but not yet owned.
+        try {
+            DatagramChannel shared = null;
+            for (int i=0; i<threads; i++) {
+                final DatagramChannel channel;
+                if (_reusePort) {
+                    channel =
+                        DatagramReceiver.openChannel(
+                            port, receiveBufferSize, true);
+                    pending = channel;
+                } else {
+                    if (null==shared) {
+                        shared =
+                            DatagramReceiver.openChannel(
+                                port, receiveBufferSize, false);
+                        pending = shared;
+                    }
+                    channel = shared;
+                }
+                final EventReceiver receiver =
+                    new EventReceiver(
+                        backend, buckets, channel, maxDatagramSize);
+                pending = null;
+                receivers.add(receiver);
+                threadList.add(new Thread(receiver, "Event Receiver-"+i));
+            }
+        } catch (final IOException | RuntimeException e) {
+            for (final EventReceiver receiver : receivers) {
+                receiver.stop();
+            }
+            if (null!=pending) {
+                try {
+                    pending.close();
+                } catch (final IOException ce) {
+                    e.addSuppressed(ce);
+                }
+            }
+            throw e;
+        }
+        _receivers = Collections.unmodifiableList(receivers);
+        _threads = Collections.unmodifiableList(threadList);
+    }
+
+
+    /**
+     * Start all receiver threads.
+     */
+    public void start() {
+        for (final Thread t : _threads) {
+            t.start();
+        }
+    }
+
+
+    /**
+     * Query the receivers in this pool.
+     *
+     * @return An unmodifiable list of receivers, one per thread.
+     */
+    public List<EventReceiver> getReceivers() {
+        return _receivers;
+    }
+
+
+    /**
+     * Query the number of packets received by each thread.
+     *
+     * @return An array with one packet count per receiver thread.
+     */
+    public long[] getPacketCounts() {
+        final long[] counts = new long[_receivers.size()];
+        for (int i=0; i<counts.length; i++) {
+            counts[i] = _receivers.get(i).getPackets();
+        }
+        return counts;
+    }
+
+
+    /**
+     * Query the total number of packets received by all threads.
+     *
+     * @return The number of packets received.
+     */
+    public long getPackets() {
+        long total = 0;
+        for (final EventReceiver receiver : _receivers) {
+            total += receiver.getPackets();
+        }
+        return total;
+    }
+
+
+    /**
+     * Query the total number of malformed lines received by all threads.
+     *
+     * @return The number of malformed lines.
+     */
+    public long getMalformedLines() {
+        long total = 0;
+        for (final EventReceiver receiver : _receivers) {
+            total += receiver.getMalformedLines();
+        }
+        return total;
+    }
+
+
+    /**
+     * Query whether receivers have their own SO_REUSEPORT sockets.
+     *
+     * @return True if each receiver has its own socket; false if they share
+     *  a single channel.
+     */
+    public boolean isReusePort() {
+        return _reusePort;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        for (final EventReceiver receiver : _receivers) {
+            receiver.stop();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.johnstok.utils.Service;
+
+
+/**
+ * A backend that sends every event to several other backends.
+ * <p>
+ * Each backend gets its own {@link RingBufferBackend}, so it is called from
+ * its own thread and a slow or failing backend only fills, and drops from,
+ * its own queue: the other backends, and the receivers, carry on. Each
+ * queue's depth, drops, errors and latency can be queried by name.
+ * <p>
+ * Expiry is passed straight to every backend, as for a single ring buffer.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class FanOutBackend
+    extends
+        Service
+    implements
+        Backend {
+
+    private final RingBufferBackend[] _branches;
+    private final Map<String, BackendQueue> _queues;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backends The backends to send events to, by name.
+     * @param capacity The number of events that may be queued for each
+     *                 backend.
+     * @param policy   What to do when a backend's queue is full.
+     * @param wait     How to wait when a queue is full or empty.
+     */
+    public FanOutBackend(final Map<String, ? extends Backend> backends,
+                         final int capacity,
+                         final RingBufferBackend.OverloadPolicy policy,
+                         final RingBufferBackend.WaitStrategy wait) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("No backends specified.");
+        }
+        _branches = new RingBufferBackend[backends.size()];
+        final Map<String, BackendQueue> queues = new LinkedHashMap<>();
+        int i = 0;
+        for (final Map.Entry<String, ? extends Backend> e
+                : backends.entrySet()) {
+            _branches[i] =
+                new RingBufferBackend(
+                    e.getValue(),
+                    capacity,
+                    policy,
+                    wait,
+                    "Backend Ring "+e.getKey());
+            queues.put(e.getKey(), _branches[i]);
+            i++;
+        }
+        _queues = Collections.unmodifiableMap(queues);
+    }
+
+
+    /**
+     * Start applying queued events to the backends.
+     */
+    public void start() {
+        for (final RingBufferBackend branch : _branches) {
+            branch.start();
+        }
+    }
+
+
+    /**
+     * Query the queue for each backend.
+     *
+     * @return The queues, by backend name.
+     */
+    public Map<String, BackendQueue> getQueues() {
+        return _queues;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final long i,
+                      final double sampleRate) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.count(bucket, i, sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.count(bucket, i, sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final long i) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.gauge(bucket, i);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final double i) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.gauge(bucket, i);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.adjustGauge(bucket, delta);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.adjustGauge(bucket, delta);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.time(bucket, i, sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.time(bucket, i, sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.histogram(bucket, i, sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.histogram(bucket, i, sampleRate);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.mark(bucket, i);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.mark(bucket, i);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void set(final Bucket bucket, final long member) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.set(bucket, member);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void expire(final Bucket bucket) {
+        for (final RingBufferBackend branch : _branches) {
+            branch.expire(bucket);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        // The other rings keep draining while each stop waits.
+        for (final RingBufferBackend branch : _branches) {
+            branch.stop();
+        }
+    }
+}
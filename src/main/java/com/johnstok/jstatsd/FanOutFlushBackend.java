@@ -0,0 +1,222 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.johnstok.utils.Service;
+
+
+/**
+ * A flush backend that sends every flush to several other flush backends.
+ * <p>
+ * Each backend gets its own bounded queue and thread, so a slow backend,
+ * such as Graphite during a network outage, only delays its own flushes.
+ * If a backend's queue is full the new flush is dropped for that backend
+ * alone. A flush is immutable, so the backends share it.
+ * <p>
+ * When stopped, each backend is given up to {@value #STOP_TIMEOUT}ms to
+ * process the flushes already queued for it.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class FanOutFlushBackend
+    extends
+        Service
+    implements
+        FlushBackend {
+
+    /** The number of flushes queued per backend if none is specified. */
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private static final long STOP_TIMEOUT = 5000;
+    private static final long POLL_INTERVAL = 100;
+
+
+    /* A backend with its own queue and thread. */
+    private final class Branch
+        implements
+            BackendQueue,
+            Runnable {
+
+        private final FlushBackend _backend;
+        private final BlockingQueue<Flush> _queue;
+        private final Thread _thread;
+        private final AtomicLong _dropped = new AtomicLong();
+        private final AtomicLong _errors = new AtomicLong();
+        private final AtomicLong _latencySamples = new AtomicLong();
+        private final AtomicLong _latencyNanos = new AtomicLong();
+
+
+        Branch(final String name,
+               final FlushBackend backend,
+               final int capacity) {
+            _backend = Objects.requireNonNull(backend);
+            _queue = new ArrayBlockingQueue<>(capacity);
+            _thread = new Thread(this, "Flush Fan-out "+name);
+        }
+
+
+        void offer(final Flush flush) {
+            if (!isRunning() || !_queue.offer(flush)) {
+                _dropped.incrementAndGet();
+            }
+        }
+
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning() || !_queue.isEmpty()) {
+                    final Flush flush =
+                        _queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (null==flush) { continue; }
+                    final long started = System.nanoTime();
+                    try {
+                        _backend.flush(flush);
+                    } catch (final RuntimeException e) {
+                        _errors.incrementAndGet();
+                        System.err.println(
+                            _thread.getName()+" failed: "+e.getMessage());
+                    }
+                    _latencyNanos.addAndGet(System.nanoTime()-started);
+                    _latencySamples.incrementAndGet();
+                }
+            } catch (final InterruptedException e) {
+                _dropped.addAndGet(_queue.size());
+            }
+        }
+
+
+        @Override
+        public int getDepth() {
+            return _queue.size();
+        }
+
+
+        @Override
+        public long getDropped() {
+            return _dropped.get();
+        }
+
+
+        @Override
+        public long getErrors() {
+            return _errors.get();
+        }
+
+
+        @Override
+        public long getLatencySamples() {
+            return _latencySamples.get();
+        }
+
+
+        @Override
+        public long getLatencyNanos() {
+            return _latencyNanos.get();
+        }
+    }
+
+
+    private final Branch[] _branches;
+    private final Map<String, BackendQueue> _queues;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backends The backends to send flushes to, by name.
+     * @param capacity The number of flushes that may be queued for each
+     *                 backend.
+     */
+    public FanOutFlushBackend(
+                final Map<String, ? extends FlushBackend> backends,
+                final int capacity) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("No backends specified.");
+        }
+        if (capacity<1) {
+            throw new IllegalArgumentException(
+                "Capacity must be positive: "+capacity);
+        }
+        _branches = new Branch[backends.size()];
+        final Map<String, BackendQueue> queues = new LinkedHashMap<>();
+        int i = 0;
+        for (final Map.Entry<String, ? extends FlushBackend> e
+                : backends.entrySet()) {
+            _branches[i] = new Branch(e.getKey(), e.getValue(), capacity);
+            queues.put(e.getKey(), _branches[i]);
+            i++;
+        }
+        _queues = Collections.unmodifiableMap(queues);
+    }
+
+
+    /**
+     * Start passing flushes to the backends.
+     */
+    public void start() {
+        for (final Branch branch : _branches) {
+            branch._thread.start();
+        }
+    }
+
+
+    /**
+     * Query the queue for each backend.
+     *
+     * @return The queues, by backend name.
+     */
+    public Map<String, BackendQueue> getQueues() {
+        return _queues;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush(final Flush flush) {
+        for (final Branch branch : _branches) {
+            branch.offer(flush);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        final long deadline = System.currentTimeMillis()+STOP_TIMEOUT;
+        for (final Branch branch : _branches) {
+            try {
+                branch._thread.join(
+                    Math.max(1, deadline-System.currentTimeMillis()));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            branch._thread.interrupt();
+        }
+    }
+}
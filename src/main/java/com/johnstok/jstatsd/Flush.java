@@ -0,0 +1,175 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.Collections;
+import java.util.Map;
+
+
+/**
+ * The values aggregated during a single flush interval.
+ * <p>
+ * Counters hold the total for the interval; gauges hold the latest value;
+ * timers hold summary statistics for the values recorded in the interval;
+ * sets hold the estimated number of distinct values seen in the interval.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class Flush {
+
+    private final long                    _timestamp;
+    private final long                    _interval;
+    private final Map<Bucket, Double>     _counters;
+    private final Map<Bucket, Double>     _gauges;
+    private final Map<Bucket, TimerStats> _timers;
+    private final Map<Bucket, Long>       _sets;
+    private final double                  _setError;
+
+
+    /**
+     * Constructor.
+     *
+     * @param timestamp The time of the flush, in milliseconds since the epoch.
+     * @param interval  The length of the flush interval, in milliseconds.
+     * @param counters  Counter totals, by bucket.
+     * @param gauges    Gauge values, by bucket.
+     * @param timers    Timer statistics, by bucket.
+     * @param sets      Distinct value counts, by bucket.
+     */
+    public Flush(final long timestamp,
+                 final long interval,
+                 final Map<Bucket, Double> counters,
+                 final Map<Bucket, Double> gauges,
+                 final Map<Bucket, TimerStats> timers,
+                 final Map<Bucket, Long> sets) {
+        this(timestamp, interval, counters, gauges, timers, sets, 0);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param timestamp The time of the flush, in milliseconds since the epoch.
+     * @param interval  The length of the flush interval, in milliseconds.
+     * @param counters  Counter totals, by bucket.
+     * @param gauges    Gauge values, by bucket.
+     * @param timers    Timer statistics, by bucket.
+     * @param sets      Estimated distinct value counts, by bucket.
+     * @param setError  The standard error of the set estimates.
+     */
+    public Flush(final long timestamp,
+                 final long interval,
+                 final Map<Bucket, Double> counters,
+                 final Map<Bucket, Double> gauges,
+                 final Map<Bucket, TimerStats> timers,
+                 final Map<Bucket, Long> sets,
+                 final double setError) {
+        _timestamp = timestamp;
+        _interval = interval;
+        _counters = Collections.unmodifiableMap(counters);
+        _gauges = Collections.unmodifiableMap(gauges);
+        _timers = Collections.unmodifiableMap(timers);
+        _sets = Collections.unmodifiableMap(sets);
+        _setError = setError;
+    }
+
+
+    /**
+     * Query the time of the flush.
+     *
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return _timestamp;
+    }
+
+
+    /**
+     * Query the length of the flush interval.
+     *
+     * @return The interval in milliseconds.
+     */
+    public long getInterval() {
+        return _interval;
+    }
+
+
+    /**
+     * Query the counter totals for the interval.
+     *
+     * @return An unmodifiable map from bucket to total.
+     */
+    public Map<Bucket, Double> getCounters() {
+        return _counters;
+    }
+
+
+    /**
+     * Query the per-second rate of a counter total over the interval.
+     *
+     * @param total The counter total.
+     *
+     * @return The rate per second.
+     */
+    public double perSecond(final double total) {
+        return (0==_interval) ? 0 : total*1000/_interval;
+    }
+
+
+    /**
+     * Query the gauge values.
+     *
+     * @return An unmodifiable map from bucket to value.
+     */
+    public Map<Bucket, Double> getGauges() {
+        return _gauges;
+    }
+
+
+    /**
+     * Query the timer statistics for the interval.
+     *
+     * @return An unmodifiable map from bucket to statistics.
+     */
+    public Map<Bucket, TimerStats> getTimers() {
+        return _timers;
+    }
+
+
+    /**
+     * Query the number of distinct values seen by each set in the interval.
+     *
+     * @return An unmodifiable map from bucket to distinct value count.
+     */
+    public Map<Bucket, Long> getSets() {
+        return _sets;
+    }
+
+
+    /**
+     * Query the standard error of the set estimates.
+     *
+     * @return The relative error, e.g. 0.01 for 1%; zero if the counts are
+     *         exact.
+     */
+    public double getSetError() {
+        return _setError;
+    }
+}
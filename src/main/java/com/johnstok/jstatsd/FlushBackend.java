@@ -0,0 +1,38 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+
+/**
+ * API for a backend that receives aggregated values once per flush interval.
+ * <p>
+ * Flushes are delivered by a single thread, one at a time.
+ *
+ * @author Keith Webster Johnston.
+ */
+public interface FlushBackend {
+
+    /**
+     * Process the values aggregated during a flush interval.
+     *
+     * @param flush The aggregated values.
+     */
+    void flush(Flush flush);
+}
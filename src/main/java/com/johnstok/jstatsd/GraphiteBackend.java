@@ -0,0 +1,476 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.johnstok.utils.AsciiBuffer;
+import com.johnstok.utils.Service;
+
+
+/**
+ * A flush back end that sends aggregated values to Graphite, or any
+ * server that accepts Carbon's plaintext protocol, over TCP.
+ * <p>
+ * Each flush is rendered on the flushing thread into a fixed pool of
+ * reusable byte buffers, one line per value:
+ * <pre>
+ *   prefix.counters.bucket.count 42 1370000000
+ *   prefix.counters.bucket.rate 4.2 1370000000
+ *   prefix.gauges.bucket 7 1370000000
+ *   prefix.timers.bucket.count 20 1370000000
+ *   prefix.timers.bucket.upper_90 11.5 1370000000
+ *   prefix.sets.bucket.count 3 1370000000
+ * </pre>
+ * Timers also report <code>count_ps</code>, <code>lower</code>,
+ * <code>upper</code>, <code>mean</code>, <code>sum</code>,
+ * <code>median</code> and <code>upper_99</code>. Bucket names are
+ * sanitized even if the daemon was told not to, since a space or ';' in a
+ * name would break the line or be read as a tag. The tags of a tagged
+ * bucket follow the metric name in Graphite's tag format,
+ * <code>;key=value</code>; a tag without a value is sent as
+ * <code>;key=true</code>. Keys and values are sanitized like bucket names,
+ * so they can't contain ';' or '=', and a tag whose key or value is then
+ * empty is left out.
+ * Filled buffers are written by a dedicated I/O thread, which connects
+ * lazily and reconnects with exponential back-off after an error; a buffer
+ * that fails part way through is written again in full on the next
+ * connection, which Carbon treats as an idempotent update.
+ * <p>
+ * Rendering never waits for the network. If the I/O thread falls behind
+ * and no free buffer is available the remaining lines of the flush are
+ * dropped and counted, so the memory used is bounded by the buffer pool.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class GraphiteBackend
+    extends
+        Service
+    implements
+        FlushBackend {
+
+    /** The buffer size used if none is specified, in bytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+
+    /** The number of buffers used if none is specified. */
+    public static final int DEFAULT_BUFFERS = 64;
+
+    private static final int  CONNECT_TIMEOUT = 5000;
+    private static final long MIN_BACKOFF     = 100;
+    private static final long MAX_BACKOFF     = 10000;
+    private static final long POLL_INTERVAL   = 100;
+    private static final long STOP_TIMEOUT    = 5000;
+    private static final byte[] NO_TAGS       = new byte[0];
+
+
+    /* A buffer and the number of complete lines it holds. */
+    private static final class Batch {
+
+        final ByteBuffer _buffer;
+        int              _lines;
+
+
+        Batch(final int size) {
+            _buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+
+    private final String _host;
+    private final int _port;
+    private final byte[] _prefix;
+    private final BlockingQueue<Batch> _free;
+    private final BlockingQueue<Batch> _filled;
+    private final BucketIndex<byte[]> _names = new BucketIndex<>();
+    private final BucketIndex<byte[]> _tags = new BucketIndex<>();
+    private final Thread _writer;
+    private final AtomicLong _linesWritten = new AtomicLong();
+    private final AtomicLong _linesDropped = new AtomicLong();
+    private final AtomicLong _bytesWritten = new AtomicLong();
+    private final AtomicLong _connections = new AtomicLong();
+    private final AtomicLong _writeErrors = new AtomicLong();
+
+    // Rendering state; only touched while holding the lock on this.
+    private final AsciiBuffer _line = new AsciiBuffer(256);
+    private Batch _current;
+    private boolean _dropping;
+
+    // Owned by the writer thread.
+    private SocketChannel _channel;
+
+
+    /**
+     * Constructor.
+     *
+     * @param host   The Carbon host.
+     * @param port   The Carbon plaintext port, usually 2003.
+     * @param prefix The prefix for every metric name, e.g. "stats"; may be
+     *               empty.
+     */
+    public GraphiteBackend(final String host,
+                           final int port,
+                           final String prefix) {
+        this(host, port, prefix, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param host       The Carbon host.
+     * @param port       The Carbon plaintext port, usually 2003.
+     * @param prefix     The prefix for every metric name, e.g. "stats"; may
+     *                   be empty.
+     * @param bufferSize The size of each buffer, in bytes; longer lines are
+     *                   dropped.
+     * @param buffers    The number of buffers, which bounds the data waiting
+     *                   to be written.
+     */
+    public GraphiteBackend(final String host,
+                           final int port,
+                           final String prefix,
+                           final int bufferSize,
+                           final int buffers) {
+        if (bufferSize<1) {
+            throw new IllegalArgumentException(
+                "Buffer size must be positive: "+bufferSize);
+        }
+        if (buffers<1) {
+            throw new IllegalArgumentException(
+                "Buffer count must be positive: "+buffers);
+        }
+        _host = Objects.requireNonNull(host);
+        _port = port;
+        _prefix =
+            (prefix.isEmpty() ? "" : prefix+".")
+                .getBytes(StandardCharsets.UTF_8);
+        _free = new ArrayBlockingQueue<>(buffers);
+        _filled = new ArrayBlockingQueue<>(buffers);
+        for (int i=0; i<buffers; i++) {
+            _free.add(new Batch(bufferSize));
+        }
+        _writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "Graphite Writer");
+        _writer.setDaemon(true);
+    }
+
+
+    /**
+     * Start the I/O thread.
+     */
+    public void start() {
+        _writer.start();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void flush(final Flush flush) {
+        final long timestamp = flush.getTimestamp()/1000;
+        _dropping = false;
+
+        for (final Map.Entry<Bucket, Double> e : flush.getCounters().entrySet()) {
+            final Bucket b = e.getKey();
+            final double total = e.getValue().doubleValue();
+            line("counters.", b, ".count", total, timestamp);
+            line("counters.", b, ".rate", flush.perSecond(total), timestamp);
+        }
+        for (final Map.Entry<Bucket, Double> e : flush.getGauges().entrySet()) {
+            final Bucket b = e.getKey();
+            line("gauges.", b, "", e.getValue().doubleValue(), timestamp);
+        }
+        for (final Map.Entry<Bucket, TimerStats> e : flush.getTimers().entrySet()) {
+            final Bucket b = e.getKey();
+            final TimerStats t = e.getValue();
+            final double count = t.getCount();
+            line("timers.", b, ".count", count, timestamp);
+            line("timers.", b, ".count_ps", flush.perSecond(count), timestamp);
+            line("timers.", b, ".lower", t.getMin(), timestamp);
+            line("timers.", b, ".upper", t.getMax(), timestamp);
+            line("timers.", b, ".mean", t.getMean(), timestamp);
+            line("timers.", b, ".sum", t.getSum(), timestamp);
+            line("timers.", b, ".median", t.getPercentile(.5), timestamp);
+            line("timers.", b, ".upper_90", t.getPercentile(.9), timestamp);
+            line("timers.", b, ".upper_99", t.getPercentile(.99), timestamp);
+        }
+        for (final Map.Entry<Bucket, Long> e : flush.getSets().entrySet()) {
+            line(
+                "sets.",
+                e.getKey(),
+                ".count",
+                e.getValue().longValue(),
+                timestamp);
+        }
+
+        if (null!=_current) {
+            submit(_current);
+            _current = null;
+        }
+    }
+
+
+    /**
+     * Query the number of lines written to the server.
+     *
+     * @return The number of lines.
+     */
+    public long getLinesWritten() {
+        return _linesWritten.get();
+    }
+
+
+    /**
+     * Query the number of lines dropped, because no buffer was free, a line
+     * was longer than a buffer, or the back end stopped before they could
+     * be written.
+     *
+     * @return The number of lines.
+     */
+    public long getLinesDropped() {
+        return _linesDropped.get();
+    }
+
+
+    /**
+     * Query the number of bytes written to the server.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytesWritten() {
+        return _bytesWritten.get();
+    }
+
+
+    /**
+     * Query the number of connections made to the server.
+     *
+     * @return The number of connections.
+     */
+    public long getConnections() {
+        return _connections.get();
+    }
+
+
+    /**
+     * Query the number of failed connection attempts and writes.
+     *
+     * @return The number of errors.
+     */
+    public long getWriteErrors() {
+        return _writeErrors.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        try {
+            _writer.join(STOP_TIMEOUT);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _writer.interrupt();
+    }
+
+
+    /*
+     * Render a line into the current buffer, moving to a free buffer if it
+     * doesn't fit.
+     */
+    private void line(final String section,
+                      final Bucket bucket,
+                      final String suffix,
+                      final double value,
+                      final long timestamp) {
+        _line.clear();
+        _line.append(_prefix)
+             .appendAscii(section)
+             .append(name(bucket))
+             .appendAscii(suffix)
+             .append(tags(bucket))
+             .append(' ')
+             .append(value)
+             .append(' ')
+             .append(timestamp)
+             .append('\n');
+        final int length = _line.length();
+
+        if (_dropping) {
+            _linesDropped.incrementAndGet();
+            return;
+        }
+        if (null!=_current && _current._buffer.remaining()<length) {
+            submit(_current);
+            _current = null;
+        }
+        if (null==_current) {
+            _current = _free.poll();
+            if (null==_current) {
+                _dropping = true;
+                _linesDropped.incrementAndGet();
+                return;
+            }
+        }
+        if (_current._buffer.remaining()<length) {
+            _linesDropped.incrementAndGet();
+            return;
+        }
+        _current._buffer.put(_line.array(), 0, length);
+        _current._lines++;
+    }
+
+
+    private void submit(final Batch batch) {
+        batch._buffer.flip();
+        _filled.add(batch); // Never full: there are only as many batches.
+    }
+
+
+    private byte[] name(final Bucket bucket) {
+        final byte[] name = _names.get(bucket);
+        if (null!=name) { return name; }
+        final byte[] created =
+            BucketTable.sanitize(bucket.getName())
+                .getBytes(StandardCharsets.UTF_8);
+        _names.putIfAbsent(bucket, created);
+        return created;
+    }
+
+
+    private byte[] tags(final Bucket bucket) {
+        if (!bucket.isTagged()) { return NO_TAGS; }
+        final byte[] tags = _tags.get(bucket);
+        if (null!=tags) { return tags; }
+        final StringBuilder sb = new StringBuilder();
+        for (final String tag : bucket.getTagList()) {
+            final int colon = tag.indexOf(':');
+            final String key =
+                BucketTable.sanitize((colon<0) ? tag : tag.substring(0, colon));
+            final String value =
+                (colon<0)
+                    ? "true"
+                    : BucketTable.sanitize(tag.substring(colon+1));
+            if (key.isEmpty() || value.isEmpty()) { continue; }
+            sb.append(';').append(key).append('=').append(value);
+        }
+        final byte[] created = sb.toString().getBytes(StandardCharsets.UTF_8);
+        _tags.putIfAbsent(bucket, created);
+        return created;
+    }
+
+
+    /*
+     * The I/O loop. Runs until the back end stops and every filled buffer
+     * has been written, or until interrupted.
+     */
+    private void write() {
+        try {
+            while (isRunning() || !_filled.isEmpty()) {
+                final Batch batch;
+                try {
+                    batch =
+                        _filled.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    break;
+                }
+                if (null==batch) { continue; }
+                write(batch);
+                batch._buffer.clear();
+                batch._lines = 0;
+                _free.add(batch);
+            }
+        } finally {
+            close();
+            Batch batch;
+            while (null!=(batch = _filled.poll())) {
+                _linesDropped.addAndGet(batch._lines);
+            }
+        }
+    }
+
+
+    private void write(final Batch batch) {
+        long backoff = MIN_BACKOFF;
+        for (;;) {
+            try {
+                if (null==_channel) { connect(); }
+                while (batch._buffer.hasRemaining()) {
+                    _bytesWritten.addAndGet(_channel.write(batch._buffer));
+                }
+                _linesWritten.addAndGet(batch._lines);
+                return;
+            } catch (final IOException e) {
+                _writeErrors.incrementAndGet();
+                close();
+                if (!isRunning() || Thread.currentThread().isInterrupted()) {
+                    _linesDropped.addAndGet(batch._lines);
+                    return;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    _linesDropped.addAndGet(batch._lines);
+                    return;
+                }
+                backoff = Math.min(MAX_BACKOFF, backoff*2);
+                batch._buffer.rewind();
+            }
+        }
+    }
+
+
+    private void connect() throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(
+                new InetSocketAddress(_host, _port), CONNECT_TIMEOUT);
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        _channel = channel;
+        _connections.incrementAndGet();
+    }
+
+
+    private void close() {
+        if (null==_channel) { return; }
+        try {
+            _channel.close();
+        } catch (final IOException e) {
+            // Nothing more to do.
+        }
+        _channel = null;
+    }
+}
@@ -0,0 +1,494 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import com.johnstok.utils.AsciiBuffer;
+import com.johnstok.utils.Service;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * A flush back end that serves the values of the last flush over HTTP, in
+ * the Prometheus text exposition format, using the JDK's built-in server.
+ * <p>
+ * Each flush is rendered once, on the flushing thread, and the body is
+ * kept both as plain text and gzipped. Requests to
+ * <code>/metrics</code> are served from this cached rendering, so the cost
+ * of a scrape doesn't depend on the number of buckets or scrapers. Every
+ * rendering has its own entity tag, so a scraper that sends
+ * <code>If-None-Match</code> gets <code>304 Not Modified</code> until the
+ * next flush. Clients that accept gzip get the compressed body.
+ * <p>
+ * Values describe the last flush interval, following the names used by
+ * {@link GraphiteBackend}, and are exposed as gauges labelled with the
+ * bucket name:
+ * <pre>
+ *   prefix_counter{bucket="requests",stat="count"} 42
+ *   prefix_counter{bucket="requests",stat="rate"} 4.2
+ *   prefix_gauge{bucket="queue"} 7
+ *   prefix_timer{bucket="latency",stat="upper_90"} 11.5
+ *   prefix_set{bucket="users"} 3
+ * </pre>
+ * The tags of a tagged bucket become further labels: characters not
+ * allowed in a label name become '_'; a tag without a value has the value
+ * <code>true</code>; keys that clash with <code>bucket</code>,
+ * <code>stat</code> or the reserved <code>__</code> prefix get a
+ * <code>tag_</code> prefix; and the values of all tags that end up with
+ * the same label name are joined with ',', so each label appears once.
+ * Tag labels are sorted by name.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class HttpBackend
+    extends
+        Service
+    implements
+        FlushBackend {
+
+    /** The port used if none is specified. */
+    public static final int DEFAULT_PORT = 9102;
+
+    /** The metric name prefix used if none is specified. */
+    public static final String DEFAULT_PREFIX = "statsd";
+
+    /** The path that metrics are served from. */
+    public static final String PATH = "/metrics";
+
+    private static final String CONTENT_TYPE =
+        "text/plain; version=0.0.4; charset=utf-8";
+    private static final int SERVER_THREADS = 2;
+
+    private static final String[] TIMER_STATS = {
+        "count", "count_ps", "lower", "upper", "mean", "sum", "median",
+        "upper_90", "upper_99"
+    };
+
+
+    /* An immutable rendering of a flush. */
+    private static final class Rendering {
+
+        final byte[] _plain;
+        final byte[] _gzipped;
+        final String _etag;
+        final String _gzippedEtag;
+
+
+        Rendering(final byte[] plain,
+                  final byte[] gzipped,
+                  final String etag) {
+            _plain = plain;
+            _gzipped = gzipped;
+            _etag = "\""+etag+"\"";
+            // Each representation needs its own strong entity tag.
+            _gzippedEtag = "\""+etag+"-gz\"";
+        }
+    }
+
+
+    private final String _prefix;
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final BucketIndex<byte[]> _labels = new BucketIndex<>();
+    private final AsciiBuffer _buffer = new AsciiBuffer(64*1024);
+    private final String _epoch =
+        Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private long _renderings;
+    private volatile Rendering _current;
+    private final AtomicLong _requests = new AtomicLong();
+    private final AtomicLong _notModified = new AtomicLong();
+    private final AtomicLong _bytesSent = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     *
+     * @param port   The TCP port to listen on; zero picks a free port.
+     * @param prefix The prefix for metric names.
+     *
+     * @throws IOException If it isn't possible to bind the port.
+     */
+    public HttpBackend(final int port,
+                       final String prefix) throws IOException {
+        _prefix = Objects.requireNonNull(prefix);
+        _current = render(null);
+        _server = HttpServer.create(new InetSocketAddress(port), 0);
+        _executor =
+            Executors.newFixedThreadPool(SERVER_THREADS, new ThreadFactory() {
+                private final AtomicInteger _count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t =
+                        new Thread(r, "HTTP-"+_count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        _server.setExecutor(_executor);
+        _server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                                                        throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Start serving requests.
+     */
+    public void start() {
+        _server.start();
+    }
+
+
+    /**
+     * Query the port the server is bound to.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return _server.getAddress().getPort();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void flush(final Flush flush) {
+        _current = render(flush);
+    }
+
+
+    /**
+     * Query the number of requests served.
+     *
+     * @return The number of requests.
+     */
+    public long getRequests() {
+        return _requests.get();
+    }
+
+
+    /**
+     * Query the number of requests answered with <code>304 Not
+     * Modified</code>.
+     *
+     * @return The number of requests.
+     */
+    public long getNotModified() {
+        return _notModified.get();
+    }
+
+
+    /**
+     * Query the number of body bytes sent.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytesSent() {
+        return _bytesSent.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        _server.stop(0);
+        _executor.shutdown();
+    }
+
+
+    private void serve(final HttpExchange exchange) throws IOException {
+        _requests.incrementAndGet();
+        final Headers response = exchange.getResponseHeaders();
+        final String method = exchange.getRequestMethod();
+        final boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            response.set("Allow", "GET, HEAD");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        if (!PATH.equals(exchange.getRequestURI().getPath())) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        final Rendering rendering = _current;
+        final Headers request = exchange.getRequestHeaders();
+        final boolean gzip = accepts(request.get("Accept-Encoding"), "gzip");
+        final String etag = (gzip) ? rendering._gzippedEtag : rendering._etag;
+        response.set("ETag", etag);
+        response.set("Vary", "Accept-Encoding");
+        response.set("Cache-Control", "no-cache");
+        if (matches(request.get("If-None-Match"), etag)) {
+            _notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        final byte[] body = (gzip) ? rendering._gzipped : rendering._plain;
+        response.set("Content-Type", CONTENT_TYPE);
+        if (gzip) {
+            response.set("Content-Encoding", "gzip");
+        }
+        if (head) {
+            response.set("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        _bytesSent.addAndGet(body.length);
+    }
+
+
+    /*
+     * Render a flush, or an empty body if there has been no flush yet. Only
+     * called by one thread at a time.
+     */
+    private Rendering render(final Flush flush) {
+        final AsciiBuffer b = _buffer;
+        b.clear();
+        if (null!=flush) {
+            family("counter", "Counts in the last flush interval.");
+            for (final Map.Entry<Bucket, Double> e
+                    : flush.getCounters().entrySet()) {
+                final double total = e.getValue().doubleValue();
+                line("counter", e.getKey(), "count", total);
+                line("counter", e.getKey(), "rate", flush.perSecond(total));
+            }
+
+            family("gauge", "Gauge values.");
+            for (final Map.Entry<Bucket, Double> e
+                    : flush.getGauges().entrySet()) {
+                line("gauge", e.getKey(), null, e.getValue().doubleValue());
+            }
+
+            family("timer", "Timer statistics for the last flush interval.");
+            final double[] values = new double[TIMER_STATS.length];
+            for (final Map.Entry<Bucket, TimerStats> e
+                    : flush.getTimers().entrySet()) {
+                final TimerStats t = e.getValue();
+                values[0] = t.getCount();
+                values[1] = flush.perSecond(t.getCount());
+                values[2] = t.getMin();
+                values[3] = t.getMax();
+                values[4] = t.getMean();
+                values[5] = t.getSum();
+                values[6] = t.getPercentile(.5);
+                values[7] = t.getPercentile(.9);
+                values[8] = t.getPercentile(.99);
+                for (int i=0; i<TIMER_STATS.length; i++) {
+                    line("timer", e.getKey(), TIMER_STATS[i], values[i]);
+                }
+            }
+
+            family("set", "Distinct members in the last flush interval.");
+            for (final Map.Entry<Bucket, Long> e : flush.getSets().entrySet()) {
+                line("set", e.getKey(), null, e.getValue().longValue());
+            }
+        }
+
+        final byte[] plain = new byte[b.length()];
+        System.arraycopy(b.array(), 0, plain, 0, plain.length);
+        final ByteArrayOutputStream gzipped =
+            new ByteArrayOutputStream(plain.length/4+64);
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(plain);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e); // Can't happen in memory.
+        }
+        return
+            new Rendering(
+                plain,
+                gzipped.toByteArray(),
+                _epoch+"-"+Long.toString(_renderings++, Character.MAX_RADIX));
+    }
+
+
+    private void family(final String type, final String help) {
+        _buffer.appendAscii("# HELP ")
+               .appendAscii(_prefix).append('_').appendAscii(type)
+               .append(' ').appendAscii(help).append('\n')
+               .appendAscii("# TYPE ")
+               .appendAscii(_prefix).append('_').appendAscii(type)
+               .appendAscii(" gauge\n");
+    }
+
+
+    private void line(final String type,
+                      final Bucket bucket,
+                      final String stat,
+                      final double value) {
+        final AsciiBuffer b = _buffer;
+        b.appendAscii(_prefix).append('_').appendAscii(type)
+         .append(label(bucket));
+        if (null!=stat) {
+            b.appendAscii(",stat=\"").appendAscii(stat).append('"');
+        }
+        b.appendAscii("} ");
+        if (Double.isNaN(value)) {
+            b.appendAscii("NaN");
+        } else if (Double.isInfinite(value)) {
+            b.appendAscii((value>0) ? "+Inf" : "-Inf");
+        } else {
+            b.append(value);
+        }
+        b.append('\n');
+    }
+
+
+    /* The opening of a line's labels: {bucket="name"[,key="value"]... */
+    private byte[] label(final Bucket bucket) {
+        final byte[] label = _labels.get(bucket);
+        if (null!=label) { return label; }
+        final String name = bucket.getName();
+        final StringBuilder s = new StringBuilder(name.length()+10);
+        s.append("{bucket=\"");
+        escape(s, name);
+        s.append('"');
+        final Map<String, StringBuilder> values = new TreeMap<>();
+        for (final String tag : bucket.getTagList()) {
+            final int colon = tag.indexOf(':');
+            final String key =
+                labelName((colon<0) ? tag : tag.substring(0, colon));
+            final String value = (colon<0) ? "true" : tag.substring(colon+1);
+            StringBuilder v = values.get(key);
+            if (null==v) {
+                v = new StringBuilder();
+                values.put(key, v);
+            } else {
+                v.append(',');
+            }
+            escape(v, value);
+        }
+        for (final Map.Entry<String, StringBuilder> e : values.entrySet()) {
+            s.append(',')
+             .append(e.getKey())
+             .append("=\"")
+             .append(e.getValue())
+             .append('"');
+        }
+        final byte[] created = s.toString().getBytes(StandardCharsets.UTF_8);
+        _labels.putIfAbsent(bucket, created);
+        return created;
+    }
+
+
+    private static void escape(final StringBuilder s, final String value) {
+        for (int i=0; i<value.length(); i++) {
+            final char c = value.charAt(i);
+            if ('\\'==c || '"'==c) {
+                s.append('\\').append(c);
+            } else if ('\n'==c) {
+                s.append("\\n");
+            } else {
+                s.append(c);
+            }
+        }
+    }
+
+
+    private static String labelName(final String key) {
+        final StringBuilder s = new StringBuilder(key.length()+4);
+        for (int i=0; i<key.length(); i++) {
+            final char c = key.charAt(i);
+            final boolean valid =
+                (c>='a' && c<='z') || (c>='A' && c<='Z') || '_'==c
+                || (i>0 && c>='0' && c<='9');
+            s.append((valid) ? c : '_');
+        }
+        final String label = s.toString();
+        return
+            ("bucket".equals(label)
+             || "stat".equals(label)
+             || label.startsWith("__")
+             || label.isEmpty())
+                ? "tag_"+label
+                : label;
+    }
+
+
+    private static boolean accepts(final Iterable<String> headers,
+                                   final String coding) {
+        if (null==headers) { return false; }
+        for (final String header : headers) {
+            for (final String part : header.split(",")) {
+                final String[] params = part.trim().split(";");
+                if (!coding.equalsIgnoreCase(params[0].trim())) { continue; }
+                for (int i=1; i<params.length; i++) {
+                    if (isZeroQuality(params[i])) { return false; }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean isZeroQuality(final String param) {
+        final String p = param.replace(" ", "");
+        if (!p.startsWith("q=")) { return false; }
+        try {
+            return 0==Double.parseDouble(p.substring(2));
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+
+    private static boolean matches(final Iterable<String> headers,
+                                   final String etag) {
+        if (null==headers) { return false; }
+        for (final String header : headers) {
+            for (final String part : header.split(",")) {
+                String tag = part.trim();
+                if ("*".equals(tag)) { return true; }
+                if (tag.startsWith("W/")) { tag = tag.substring(2); }
+                if (etag.equals(tag)) { return true; }
+            }
+        }
+        return false;
+    }
+}
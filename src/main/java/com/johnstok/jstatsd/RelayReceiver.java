@@ -0,0 +1,254 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import com.johnstok.utils.ConsistentHashRing;
+import com.johnstok.utils.DatagramReceiver;
+
+
+/**
+ * A receiver that relays Statsd messages to downstream nodes, rather than
+ * processing them, so that several daemons can share the load.
+ * <p>
+ * Each line is routed by hashing its bucket name on a
+ * {@link ConsistentHashRing}, so a bucket always reaches the same node
+ * while that node is healthy, and is aggregated in one place. Lines are
+ * not otherwise parsed. They are appended to a per-node batch, which is
+ * sent as a single multi-metric datagram when the next line would take it
+ * past the datagram size, or when the batch is older than the flush
+ * interval (see {@link #flushStale(long)}). A line longer than the
+ * datagram size is sent on its own.
+ * <p>
+ * Lines without a bucket name, and lines for which no node is healthy,
+ * are dropped and counted.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class RelayReceiver
+    extends
+        DatagramReceiver {
+
+    private final ConsistentHashRing _ring;
+    private final InetSocketAddress[] _nodes;
+    private final DatagramChannel _out;
+    private final int _datagramSize;
+    private final byte[] _packet;
+    private final ByteBuffer[] _batches;
+    private final long[] _batchStarted;
+    // Written while holding the lock, so a lazy set is enough.
+    private final AtomicLong _lines = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _malformed = new AtomicLong();
+    private final AtomicLong _datagrams = new AtomicLong();
+    private final AtomicLong _sendErrors = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     *
+     * @param ring            The ring that maps buckets to nodes; it may be
+     *                        shared with other receivers.
+     * @param nodes           The nodes' addresses, in ring order.
+     * @param channel         A bound channel to receive from; it may be
+     *                        shared with other receivers.
+     * @param maxDatagramSize The largest datagram, in bytes, that will be
+     *                        received in full.
+     * @param datagramSize    The size, in bytes, that batches sent to a
+     *                        node are kept within.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket for
+     *  sending.
+     */
+    public RelayReceiver(final ConsistentHashRing ring,
+                         final List<InetSocketAddress> nodes,
+                         final DatagramChannel channel,
+                         final int maxDatagramSize,
+                         final int datagramSize) throws IOException {
+        super(channel, maxDatagramSize);
+        if (datagramSize<1 || datagramSize>MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException(
+                "Datagram size must be between 1 and "+MAX_DATAGRAM_SIZE
+                +": "+datagramSize);
+        }
+        if (ring.size()!=nodes.size()) {
+            throw new IllegalArgumentException(
+                "The ring has "+ring.size()+" nodes, not "+nodes.size());
+        }
+        _ring = ring;
+        _nodes = nodes.toArray(new InetSocketAddress[nodes.size()]);
+        _datagramSize = datagramSize;
+        _packet = new byte[maxDatagramSize];
+        _batches = new ByteBuffer[_nodes.length];
+        _batchStarted = new long[_nodes.length];
+        for (int i=0; i<_batches.length; i++) {
+            _batches[i] =
+                ByteBuffer.allocateDirect(
+                    Math.max(datagramSize, maxDatagramSize));
+        }
+        _out = DatagramChannel.open();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected synchronized void processPacket(final ByteBuffer packet) {
+        final int length = packet.remaining();
+        packet.get(_packet, 0, length);
+        int from = 0;
+        for (int i=0; i<=length; i++) {
+            if (i==length || '\n'==_packet[i]) {
+                relay(from, i);
+                from = i+1;
+            }
+        }
+    }
+
+
+    /**
+     * Send every batch that was started at least the specified time ago.
+     *
+     * @param maxAgeNanos The maximum age of a batch, in nanoseconds.
+     */
+    public synchronized void flushStale(final long maxAgeNanos) {
+        final long now = System.nanoTime();
+        for (int n=0; n<_batches.length; n++) {
+            if (_batches[n].position()>0 && now-_batchStarted[n]>=maxAgeNanos) {
+                send(n);
+            }
+        }
+    }
+
+
+    /**
+     * Query the number of lines relayed.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        return _lines.get();
+    }
+
+
+    /**
+     * Query the number of lines dropped because no node was healthy.
+     *
+     * @return The number of lines.
+     */
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+
+    /**
+     * Query the number of lines dropped because they had no bucket name.
+     *
+     * @return The number of lines.
+     */
+    public long getMalformedLines() {
+        return _malformed.get();
+    }
+
+
+    /**
+     * Query the number of datagrams sent to nodes.
+     *
+     * @return The number of datagrams.
+     */
+    public long getDatagrams() {
+        return _datagrams.get();
+    }
+
+
+    /**
+     * Query the number of datagrams that couldn't be sent.
+     *
+     * @return The number of errors.
+     */
+    public long getSendErrors() {
+        return _sendErrors.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        super.doStop();
+        flushStale(0);
+        try {
+            _out.close();
+        } catch (final IOException e) {
+            System.err.println("Error closing channel: "+e.getMessage());
+        }
+    }
+
+
+    private void relay(final int from, final int to) {
+        int end = to;
+        if (end>from && '\r'==_packet[end-1]) { end--; }
+        if (end==from) { return; } // Blank line.
+
+        int colon = from;
+        while (colon<end && ':'!=_packet[colon]) { colon++; }
+        if (colon==end || colon==from) {
+            _malformed.lazySet(_malformed.get()+1);
+            return;
+        }
+        final int node = _ring.node(_packet, from, colon-from);
+        if (node<0) {
+            _dropped.lazySet(_dropped.get()+1);
+            return;
+        }
+
+        final ByteBuffer batch = _batches[node];
+        final int length = end-from;
+        if (batch.position()>0 && batch.position()+1+length>_datagramSize) {
+            send(node);
+        }
+        if (0==batch.position()) {
+            _batchStarted[node] = System.nanoTime();
+        } else {
+            batch.put((byte) '\n');
+        }
+        batch.put(_packet, from, length);
+        _lines.lazySet(_lines.get()+1);
+        if (batch.position()>=_datagramSize) {
+            send(node); // Too long to share a datagram.
+        }
+    }
+
+
+    private void send(final int node) {
+        final ByteBuffer batch = _batches[node];
+        batch.flip();
+        try {
+            _out.send(batch, _nodes[node]);
+            _datagrams.lazySet(_datagrams.get()+1);
+        } catch (final IOException | RuntimeException e) {
+            _sendErrors.lazySet(_sendErrors.get()+1);
+        }
+        batch.clear();
+    }
+}
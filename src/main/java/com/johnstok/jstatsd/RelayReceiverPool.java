@@ -0,0 +1,336 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.johnstok.utils.ConsistentHashRing;
+import com.johnstok.utils.DatagramReceiver;
+import com.johnstok.utils.Service;
+
+
+/**
+ * A group of relay receivers, each with its own thread, listening on the
+ * same UDP port and sharing a consistent-hash ring of downstream nodes.
+ * <p>
+ * A scheduler thread sends batches that have waited longer than the flush
+ * interval. Optionally, a second thread checks each node's health by
+ * opening a TCP connection to the node's address, so a slow check never
+ * delays a flush: a jstatsd node must then listen for TCP on the same port
+ * number as UDP (see <code>jstatsd.tcpPort</code>). A node is removed from
+ * the ring after {@value #FAILURES_TO_REMOVE} consecutive failed checks,
+ * and returned to it after one that succeeds. Health checks are off by
+ * default, since a node without a TCP listener would always fail them.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class RelayReceiverPool
+    extends
+        Service {
+
+    /** The datagram size used if none is specified, to avoid fragmentation. */
+    public static final int DEFAULT_DATAGRAM_SIZE = 1432;
+
+    /** The flush interval used if none is specified, in ms. */
+    public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+    /** The health check interval used if none is specified: disabled. */
+    public static final long DEFAULT_HEALTH_INTERVAL = 0;
+
+    private static final int FAILURES_TO_REMOVE = 2;
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private final List<InetSocketAddress> _nodes;
+    private final ConsistentHashRing _ring;
+    private final List<RelayReceiver> _receivers;
+    private final List<Thread> _threads;
+    private final long _flushInterval;
+    private final long _healthInterval;
+    private final int[] _failures; // Only touched by the health checker.
+    private final ScheduledExecutorService _executor;
+    private final ScheduledExecutorService _healthExecutor;
+
+
+    /**
+     * Constructor.
+     *
+     * @param nodes             The downstream nodes.
+     * @param port              The UDP port to listen on.
+     * @param threads           The number of receiver threads.
+     * @param maxDatagramSize   The largest datagram, in bytes, that will be
+     *                          received in full.
+     * @param receiveBufferSize The SO_RCVBUF size to request, in bytes; zero
+     *                          or less leaves the OS default in place.
+     * @param reusePort         True if SO_REUSEPORT should be used when the
+     *                          platform supports it.
+     * @param datagramSize      The size, in bytes, that batches sent to a
+     *                          node are kept within.
+     * @param flushInterval     The longest a line waits in a batch, in ms.
+     * @param healthInterval    The interval between health checks, in ms;
+     *                          zero or less disables them.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket.
+     */
+    public RelayReceiverPool(final List<InetSocketAddress> nodes,
+                             final int port,
+                             final int threads,
+                             final int maxDatagramSize,
+                             final int receiveBufferSize,
+                             final boolean reusePort,
+                             final int datagramSize,
+                             final long flushInterval,
+                             final long healthInterval) throws IOException {
+        if (threads<1) {
+            throw new IllegalArgumentException(
+                "Thread count must be positive: "+threads);
+        }
+        if (flushInterval<1) {
+            throw new IllegalArgumentException(
+                "Flush interval must be positive: "+flushInterval);
+        }
+        _nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        final List<String> names = new ArrayList<>(nodes.size());
+        for (final InetSocketAddress node : nodes) {
+            names.add(node.getHostString()+":"+node.getPort());
+        }
+        _ring =
+            new ConsistentHashRing(names, ConsistentHashRing.DEFAULT_REPLICAS);
+        _failures = new int[nodes.size()];
+        _flushInterval = flushInterval;
+        _healthInterval = healthInterval;
+
+        final boolean shareable =
+            reusePort && threads>1 && DatagramReceiver.isReusePortSupported();
+        final List<RelayReceiver> receivers = new ArrayList<>(threads);
+        final List<Thread> threadList = new ArrayList<>(threads);
+        DatagramChannel pending = null; // Opened, but not yet owned.
+        try {
+            DatagramChannel shared = null;
+            for (int i=0; i<threads; i++) {
+                final DatagramChannel channel;
+                if (shareable) {
+                    channel =
+                        DatagramReceiver.openChannel(
+                            port, receiveBufferSize, true);
+                    pending = channel;
+                } else {
+                    if (null==shared) {
+                        shared =
+                            DatagramReceiver.openChannel(
+                                port, receiveBufferSize, false);
+                        pending = shared;
+                    }
+                    channel = shared;
+                }
+                final RelayReceiver receiver =
+                    new RelayReceiver(
+                        _ring, _nodes, channel, maxDatagramSize, datagramSize);
+                pending = null;
+                receivers.add(receiver);
+                threadList.add(new Thread(receiver, "Relay Receiver-"+i));
+            }
+        } catch (final IOException | RuntimeException e) {
+            for (final RelayReceiver receiver : receivers) {
+                receiver.stop();
+            }
+            if (null!=pending) {
+                try {
+                    pending.close();
+                } catch (final IOException ce) {
+                    e.addSuppressed(ce);
+                }
+            }
+            throw e;
+        }
+        _receivers = Collections.unmodifiableList(receivers);
+        _threads = Collections.unmodifiableList(threadList);
+        _executor = newScheduler("Relay");
+        _healthExecutor = newScheduler("Relay Health");
+    }
+
+
+    /**
+     * Parse a comma-separated list of nodes, each <code>host:port</code>.
+     *
+     * @param nodes The list.
+     *
+     * @return The nodes' addresses.
+     */
+    public static List<InetSocketAddress> parseNodes(final String nodes) {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (final String node : nodes.split(",")) {
+            final String n = node.trim();
+            final int colon = n.lastIndexOf(':');
+            if (colon<1) {
+                throw new IllegalArgumentException(
+                    "Nodes must be host:port: "+node);
+            }
+            addresses.add(
+                new InetSocketAddress(
+                    n.substring(0, colon),
+                    Integer.parseInt(n.substring(colon+1))));
+        }
+        return addresses;
+    }
+
+
+    /**
+     * Start all receiver threads, the scheduler and the health checker.
+     */
+    public void start() {
+        for (final Thread t : _threads) {
+            t.start();
+        }
+        _executor.scheduleWithFixedDelay(
+            new Runnable() {
+                @Override
+                public void run() {
+                    flushStale();
+                }
+            },
+            _flushInterval,
+            _flushInterval,
+            TimeUnit.MILLISECONDS);
+        if (_healthInterval>0) {
+            _healthExecutor.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        checkHealth();
+                    }
+                },
+                0,
+                _healthInterval,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Check each node's health once, updating the ring. Should only be
+     * called by one thread at a time.
+     *
+     * @return The number of healthy nodes.
+     */
+    public int checkHealth() {
+        for (int n=0; n<_nodes.size(); n++) {
+            if (isReachable(_nodes.get(n))) {
+                _failures[n] = 0;
+                if (_ring.setHealthy(n, true)) {
+                    System.out.println("Relay node up: "+_nodes.get(n));
+                }
+            } else if (++_failures[n]>=FAILURES_TO_REMOVE) {
+                if (_ring.setHealthy(n, false)) {
+                    System.err.println("Relay node down: "+_nodes.get(n));
+                }
+            }
+        }
+        return _ring.getHealthyNodes();
+    }
+
+
+    /**
+     * Query the receivers in this pool.
+     *
+     * @return An unmodifiable list of receivers, one per thread.
+     */
+    public List<RelayReceiver> getReceivers() {
+        return _receivers;
+    }
+
+
+    /**
+     * Query the ring shared by the receivers.
+     *
+     * @return The ring.
+     */
+    public ConsistentHashRing getRing() {
+        return _ring;
+    }
+
+
+    /**
+     * Query the total number of lines relayed by all threads.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        long total = 0;
+        for (final RelayReceiver receiver : _receivers) {
+            total += receiver.getLines();
+        }
+        return total;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        _executor.shutdown();
+        _healthExecutor.shutdown();
+        for (final RelayReceiver receiver : _receivers) {
+            receiver.stop();
+        }
+    }
+
+
+    private static ScheduledExecutorService newScheduler(final String name) {
+        return
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+
+    private void flushStale() {
+        final long maxAge = TimeUnit.MILLISECONDS.toNanos(_flushInterval);
+        for (final RelayReceiver receiver : _receivers) {
+            try {
+                receiver.flushStale(maxAge);
+            } catch (final RuntimeException e) {
+                System.err.println("Error relaying: "+e.getMessage());
+            }
+        }
+    }
+
+
+    private static boolean isReachable(final InetSocketAddress node) {
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.socket().connect(node, CONNECT_TIMEOUT);
+            return true;
+        } catch (final IOException | RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,565 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import com.johnstok.utils.Service;
+
+
+/**
+ * A backend that queues events in a pre-allocated ring buffer and applies
+ * them to another backend on a dedicated thread.
+ * <p>
+ * Receiver threads only parse and enqueue, so a slow backend no longer
+ * backs up the socket. Any number of threads may enqueue: each claims a
+ * sequence number with compare-and-set, copies the event's primitive
+ * fields into the slot for that sequence, and publishes it. No objects are
+ * allocated per event.
+ * <p>
+ * When the buffer is full the {@link OverloadPolicy} decides what happens:
+ * the new event is dropped, the oldest queued event is dropped, or the
+ * producer waits for space. Producers waiting for space, and the consumer
+ * waiting for events, idle according to the {@link WaitStrategy}. Dropped
+ * events are counted, and one event in every
+ * {@value #LATENCY_SAMPLE_INTERVAL} is timed as it is applied.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class RingBufferBackend
+    extends
+        Service
+    implements
+        Backend,
+        BackendQueue {
+
+    /**
+     * What to do with an event when the buffer is full.
+     */
+    public static enum OverloadPolicy {
+        /** Drop the event being enqueued. */
+        DROP_NEWEST,
+        /** Drop the oldest queued event to make room. */
+        DROP_OLDEST,
+        /** Wait for the consumer to make room. */
+        BLOCK
+    }
+
+
+    /**
+     * How a thread waits for the buffer to change state.
+     */
+    public static enum WaitStrategy {
+        /** Spin; lowest latency, but burns a core while idle. */
+        SPIN {
+            @Override
+            void idle(final int attempts) {
+                // Spin.
+            }
+        },
+        /** Spin briefly, then yield the processor. */
+        YIELD {
+            @Override
+            void idle(final int attempts) {
+                if (attempts>SPIN_TRIES) { Thread.yield(); }
+            }
+        },
+        /** Spin, then yield, then park for progressively longer. */
+        PARK {
+            @Override
+            void idle(final int attempts) {
+                if (attempts>2*SPIN_TRIES) {
+                    LockSupport.parkNanos(
+                        Math.min(
+                            MAX_PARK_NANOS,
+                            1000L<<Math.min(20, attempts-2*SPIN_TRIES)));
+                } else if (attempts>SPIN_TRIES) {
+                    Thread.yield();
+                }
+            }
+        };
+
+        private static final int  SPIN_TRIES     = 100;
+        private static final long MAX_PARK_NANOS = 1000000;
+
+
+        /*
+         * Wait once. 'attempts' counts the consecutive waits so far, so
+         * strategies can back off.
+         */
+        abstract void idle(int attempts);
+    }
+
+
+    private static final int COUNT_LONG       = 0;
+    private static final int COUNT_DOUBLE     = 1;
+    private static final int GAUGE_LONG       = 2;
+    private static final int GAUGE_DOUBLE     = 3;
+    private static final int ADJUST_LONG      = 4;
+    private static final int ADJUST_DOUBLE    = 5;
+    private static final int TIME_LONG        = 6;
+    private static final int TIME_DOUBLE      = 7;
+    private static final int HISTOGRAM_LONG   = 8;
+    private static final int HISTOGRAM_DOUBLE = 9;
+    private static final int MARK_LONG        = 10;
+    private static final int MARK_DOUBLE      = 11;
+    private static final int SET              = 12;
+
+    private static final long STOP_TIMEOUT = 5000;
+    private static final int  LATENCY_SAMPLE_INTERVAL = 64;
+
+
+    /* A pre-allocated event. */
+    private static final class Slot {
+
+        int    _type;
+        Bucket _bucket;
+        long   _long;
+        double _double;
+        double _sampleRate;
+
+
+        void copyFrom(final Slot other) {
+            _type = other._type;
+            _bucket = other._bucket;
+            _long = other._long;
+            _double = other._double;
+            _sampleRate = other._sampleRate;
+        }
+    }
+
+
+    private final Backend _backend;
+    private final int _capacity;
+    private final int _mask;
+    private final Slot[] _slots;
+    /* The last sequence written to each slot. */
+    private final AtomicLongArray _published;
+    private final OverloadPolicy _policy;
+    private final WaitStrategy _wait;
+    /* The next sequence to claim. */
+    private final AtomicLong _head = new AtomicLong();
+    /* The next sequence to consume. */
+    private final AtomicLong _tail = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _processed = new AtomicLong();
+    private final AtomicLong _errors = new AtomicLong();
+    private final AtomicLong _latencySamples = new AtomicLong();
+    private final AtomicLong _latencyNanos = new AtomicLong();
+    private final Thread _consumer;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend  The back end that events are applied to; it is only
+     *                 called from this back end's consumer thread.
+     * @param capacity The number of events that may be queued; rounded up
+     *                 to a power of two.
+     * @param policy   What to do when the buffer is full.
+     * @param wait     How to wait when the buffer is full or empty.
+     */
+    public RingBufferBackend(final Backend backend,
+                             final int capacity,
+                             final OverloadPolicy policy,
+                             final WaitStrategy wait) {
+        this(backend, capacity, policy, wait, "Backend Ring");
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend    The back end that events are applied to; it is
+     *                   only called from this back end's consumer thread.
+     * @param capacity   The number of events that may be queued; rounded
+     *                   up to a power of two.
+     * @param policy     What to do when the buffer is full.
+     * @param wait       How to wait when the buffer is full or empty.
+     * @param threadName The name of the consumer thread.
+     */
+    public RingBufferBackend(final Backend backend,
+                             final int capacity,
+                             final OverloadPolicy policy,
+                             final WaitStrategy wait,
+                             final String threadName) {
+        if (capacity<1 || capacity>1<<30) {
+            throw new IllegalArgumentException(
+                "Capacity must be between 1 and 2^30: "+capacity);
+        }
+        _backend = Objects.requireNonNull(backend);
+        _policy = Objects.requireNonNull(policy);
+        _wait = Objects.requireNonNull(wait);
+        _capacity = (1==capacity) ? 1 : Integer.highestOneBit(capacity-1)<<1;
+        _mask = _capacity-1;
+        _slots = new Slot[_capacity];
+        _published = new AtomicLongArray(_capacity);
+        for (int i=0; i<_capacity; i++) {
+            _slots[i] = new Slot();
+            _published.set(i, i-_capacity);
+        }
+        _consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, threadName);
+    }
+
+
+    /**
+     * Start applying queued events to the back end.
+     */
+    public void start() {
+        _consumer.start();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final long i,
+                      final double sampleRate) {
+        enqueue(COUNT_LONG, bucket, i, 0, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        enqueue(COUNT_DOUBLE, bucket, 0, i, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final long i) {
+        enqueue(GAUGE_LONG, bucket, i, 0, 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final double i) {
+        enqueue(GAUGE_DOUBLE, bucket, 0, i, 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        enqueue(ADJUST_LONG, bucket, delta, 0, 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        enqueue(ADJUST_DOUBLE, bucket, 0, delta, 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        enqueue(TIME_LONG, bucket, i, 0, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        enqueue(TIME_DOUBLE, bucket, 0, i, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        enqueue(HISTOGRAM_LONG, bucket, i, 0, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        enqueue(HISTOGRAM_DOUBLE, bucket, 0, i, sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        enqueue(MARK_LONG, bucket, i, 0, 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        enqueue(MARK_DOUBLE, bucket, 0, i, 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void set(final Bucket bucket, final long member) {
+        enqueue(SET, bucket, member, 0, 1);
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Expiry is passed straight to the back end, rather than queued. Events
+     * still queued for the bucket are discarded by the back end.
+     */
+    @Override
+    public void expire(final Bucket bucket) {
+        _backend.expire(bucket);
+    }
+
+
+    /**
+     * Query the number of slots in the buffer.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return _capacity;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public int getDepth() {
+        final long tail = _tail.get();
+        return (int) Math.max(0, Math.min(_capacity, _head.get()-tail));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+
+    /**
+     * Query the number of events applied to the back end.
+     *
+     * @return The number of events.
+     */
+    public long getProcessed() {
+        return _processed.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getErrors() {
+        return _errors.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLatencySamples() {
+        return _latencySamples.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLatencyNanos() {
+        return _latencyNanos.get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        try {
+            _consumer.join(STOP_TIMEOUT);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _consumer.interrupt();
+    }
+
+
+    private void enqueue(final int type,
+                         final Bucket bucket,
+                         final long l,
+                         final double d,
+                         final double sampleRate) {
+        final long sequence = claim();
+        if (sequence<0) { return; }
+        final int index = (int) (sequence&_mask);
+        final Slot slot = _slots[index];
+        slot._type = type;
+        slot._bucket = bucket;
+        slot._long = l;
+        slot._double = d;
+        slot._sampleRate = sampleRate;
+        _published.lazySet(index, sequence);
+    }
+
+
+    /*
+     * Claim the next sequence, applying the overload policy if the buffer is
+     * full. Returns -1 if the event should be dropped.
+     */
+    private long claim() {
+        for (int attempts=0;; attempts++) {
+            final long head = _head.get();
+            final long tail = _tail.get();
+            if (head-tail>=_capacity) {
+                switch (_policy) {
+                    case DROP_NEWEST:
+                        _dropped.incrementAndGet();
+                        return -1;
+                    case DROP_OLDEST:
+                        // The consumer only applies an event if it moves
+                        // the tail past it, so a stolen event is never
+                        // applied.
+                        if (_tail.compareAndSet(tail, tail+1)) {
+                            _dropped.incrementAndGet();
+                        }
+                        continue;
+                    default:
+                        if (!isRunning()) {
+                            _dropped.incrementAndGet();
+                            return -1;
+                        }
+                        _wait.idle(attempts);
+                        continue;
+                }
+            }
+            if (_head.compareAndSet(head, head+1)) {
+                // A producer from the previous lap may still be writing.
+                final int index = (int) (head&_mask);
+                for (int n=0; _published.get(index)!=head-_capacity; n++) {
+                    _wait.idle(n);
+                }
+                return head;
+            }
+        }
+    }
+
+
+    /*
+     * The consumer loop. Runs until the back end stops and the buffer is
+     * empty, or until interrupted.
+     */
+    private void consume() {
+        final Slot event = new Slot();
+        int attempts = 0;
+        int untilLatencySample = LATENCY_SAMPLE_INTERVAL;
+        while (!Thread.currentThread().isInterrupted()) {
+            final long tail = _tail.get();
+            final int index = (int) (tail&_mask);
+            if (_published.get(index)!=tail) {
+                if (!isRunning() && _head.get()<=tail) { break; }
+                _wait.idle(attempts++);
+                continue;
+            }
+            attempts = 0;
+            event.copyFrom(_slots[index]);
+            if (!_tail.compareAndSet(tail, tail+1)) {
+                continue; // Dropped by a producer while being copied.
+            }
+            final boolean timed = 0==--untilLatencySample;
+            final long started = (timed) ? System.nanoTime() : 0;
+            try {
+                apply(event);
+                _processed.incrementAndGet();
+            } catch (final RuntimeException e) {
+                _errors.incrementAndGet();
+            }
+            if (timed) {
+                untilLatencySample = LATENCY_SAMPLE_INTERVAL;
+                // Only this thread writes the counters.
+                _latencyNanos.lazySet(
+                    _latencyNanos.get()+System.nanoTime()-started);
+                _latencySamples.lazySet(_latencySamples.get()+1);
+            }
+        }
+    }
+
+
+    private void apply(final Slot e) {
+        switch (e._type) {
+            case COUNT_LONG:
+                _backend.count(e._bucket, e._long, e._sampleRate);
+                break;
+            case COUNT_DOUBLE:
+                _backend.count(e._bucket, e._double, e._sampleRate);
+                break;
+            case GAUGE_LONG:
+                _backend.gauge(e._bucket, e._long);
+                break;
+            case GAUGE_DOUBLE:
+                _backend.gauge(e._bucket, e._double);
+                break;
+            case ADJUST_LONG:
+                _backend.adjustGauge(e._bucket, e._long);
+                break;
+            case ADJUST_DOUBLE:
+                _backend.adjustGauge(e._bucket, e._double);
+                break;
+            case TIME_LONG:
+                _backend.time(e._bucket, e._long, e._sampleRate);
+                break;
+            case TIME_DOUBLE:
+                _backend.time(e._bucket, e._double, e._sampleRate);
+                break;
+            case HISTOGRAM_LONG:
+                _backend.histogram(e._bucket, e._long, e._sampleRate);
+                break;
+            case HISTOGRAM_DOUBLE:
+                _backend.histogram(e._bucket, e._double, e._sampleRate);
+                break;
+            case MARK_LONG:
+                _backend.mark(e._bucket, e._long);
+                break;
+            case MARK_DOUBLE:
+                _backend.mark(e._bucket, e._double);
+                break;
+            case SET:
+                _backend.set(e._bucket, e._long);
+                break;
+            default:
+                throw new IllegalStateException("Unknown type: "+e._type);
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.johnstok.jstatsd.StatsdParser.Failure;
+import com.johnstok.utils.Service;
+
+
+/**
+ * Reports the daemon's own metrics through a back end, alongside the
+ * metrics it receives.
+ * <p>
+ * At each interval the monitor reads the counters kept by the receivers
+ * and, if present, the ring buffer, and sends the change since the last
+ * report as Statsd events under a prefix:
+ * <ul>
+ * <li><code>prefix.packets</code>, <code>prefix.bytes</code>,
+ * <code>prefix.lines</code> - counters of traffic received.</li>
+ * <li><code>prefix.truncated_packets</code>,
+ * <code>prefix.receive_errors</code> - counters of receive problems.</li>
+ * <li><code>prefix.malformed.bucket</code>, <code>.type</code>,
+ * <code>.value</code>, <code>.rate</code>, <code>.tags</code> - counters
+ * of lines that failed to parse, by reason.</li>
+ * <li><code>prefix.backend.latency_ns</code> - a gauge of the mean time a
+ * receiver spent in a back end call, from a sample of calls.</li>
+ * <li><code>prefix.queue.depth</code> - a gauge of the ring buffer's depth;
+ * <code>prefix.queue.dropped</code> and <code>prefix.queue.errors</code> -
+ * counters of events it dropped, or that failed.</li>
+ * <li><code>prefix.backend.&lt;name&gt;.depth</code> and
+ * <code>.latency_ns</code> - gauges of the depth of a named back end's
+ * queue and the mean time taken to apply an item from it;
+ * <code>.dropped</code> and <code>.errors</code> - counters of items it
+ * dropped, or that failed.</li>
+ * <li><code>prefix.flush.duration_ns</code> - a gauge of the time taken by
+ * the aggregator's last flush.</li>
+ * <li><code>prefix.tcp.connections</code> - a gauge of open TCP
+ * connections; <code>prefix.tcp.bytes</code>, <code>.lines</code>,
+ * <code>.malformed</code> and <code>.oversized_lines</code> - counters of
+ * traffic received over TCP.</li>
+ * <li><code>prefix.relay.healthy_nodes</code> - a gauge of the relay's
+ * healthy downstream nodes; <code>prefix.relay.lines</code>,
+ * <code>.dropped</code>, <code>.malformed</code>, <code>.datagrams</code>
+ * and <code>.send_errors</code> - counters of lines relayed, dropped for
+ * want of a healthy node or unparseable, and of datagrams sent or that
+ * failed.</li>
+ * <li><code>prefix.buckets</code> - a gauge of the number of distinct
+ * buckets; <code>prefix.buckets.expired</code>, <code>.rejected</code>
+ * and <code>.overflowed</code> - counters of buckets expired, and of
+ * lookups rejected or folded into the overflow bucket because the bucket
+ * table was full.</li>
+ * </ul>
+ * The counters are read without locking, so monitoring adds nothing to the
+ * receive path beyond the counters themselves. The monitor's own buckets
+ * are pinned, so they never expire and don't count towards the bucket
+ * table's limit.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class SelfMonitor
+    extends
+        Service {
+
+    /** The prefix used if none is specified. */
+    public static final String DEFAULT_PREFIX = "jstatsd";
+
+    /** The reporting interval used if none is specified, in ms. */
+    public static final long DEFAULT_INTERVAL = 10000;
+
+
+    /* A named back end queue and its totals at the last report. */
+    private static final class QueueMetrics {
+
+        final BackendQueue _queue;
+        final Bucket _depth;
+        final Bucket _dropped;
+        final Bucket _errors;
+        final Bucket _latency;
+        long _lastDropped;
+        long _lastErrors;
+        long _lastLatencySamples;
+        long _lastLatencyNanos;
+
+
+        QueueMetrics(final BackendQueue queue,
+                     final BucketTable buckets,
+                     final String prefix) {
+            _queue = queue;
+            _depth = buckets.pin(prefix+"depth");
+            _dropped = buckets.pin(prefix+"dropped");
+            _errors = buckets.pin(prefix+"errors");
+            _latency = buckets.pin(prefix+"latency_ns");
+        }
+    }
+
+
+    private final Backend _backend;
+    private final BucketTable _buckets;
+    private final long _interval;
+    private final ScheduledExecutorService _executor;
+    private final String _prefix;
+
+    private final Bucket _packets;
+    private final Bucket _bytes;
+    private final Bucket _lines;
+    private final Bucket _truncatedPackets;
+    private final Bucket _receiveErrors;
+    private final Bucket[] _malformed;
+    private final Bucket _latency;
+    private final Bucket _queueDepth;
+    private final Bucket _queueDropped;
+    private final Bucket _queueErrors;
+    private final Bucket _bucketCount;
+    private final Bucket _bucketsExpired;
+    private final Bucket _bucketsRejected;
+    private final Bucket _bucketsOverflowed;
+    private final Bucket _flushDuration;
+    private final Bucket _tcpConnections;
+    private final Bucket _tcpBytes;
+    private final Bucket _tcpLines;
+    private final Bucket _tcpMalformed;
+    private final Bucket _tcpOversizedLines;
+    private final Bucket _relayHealthyNodes;
+    private final Bucket _relayLines;
+    private final Bucket _relayDropped;
+    private final Bucket _relayMalformed;
+    private final Bucket _relayDatagrams;
+    private final Bucket _relaySendErrors;
+
+    private volatile EventReceiverPool _pool;
+    private volatile RingBufferBackend _ring;
+    private volatile TcpEventReceiverPool _tcp;
+    private volatile Aggregator _aggregator;
+    private volatile RelayReceiverPool _relay;
+    private final List<QueueMetrics> _queues = new CopyOnWriteArrayList<>();
+
+    // Totals at the last report; only touched by the reporting thread.
+    private long _lastPackets;
+    private long _lastBytes;
+    private long _lastLines;
+    private long _lastTruncatedPackets;
+    private long _lastReceiveErrors;
+    private final long[] _lastMalformed = new long[Failure.values().length];
+    private long _lastLatencySamples;
+    private long _lastLatencyNanos;
+    private long _lastQueueDropped;
+    private long _lastQueueErrors;
+    private long _lastBucketsExpired;
+    private long _lastBucketsRejected;
+    private long _lastBucketsOverflowed;
+    private long _lastTcpBytes;
+    private long _lastTcpLines;
+    private long _lastTcpMalformed;
+    private long _lastTcpOversizedLines;
+    private long _lastRelayLines;
+    private long _lastRelayDropped;
+    private long _lastRelayMalformed;
+    private long _lastRelayDatagrams;
+    private long _lastRelaySendErrors;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend  The back end that receives the daemon's metrics.
+     * @param buckets  The table used to look up bucket names.
+     * @param prefix   The prefix for the daemon's bucket names.
+     * @param interval The reporting interval; at least 1ms.
+     * @param unit     The unit of the reporting interval.
+     */
+    public SelfMonitor(final Backend backend,
+                       final BucketTable buckets,
+                       final String prefix,
+                       final long interval,
+                       final TimeUnit unit) {
+        _interval = unit.toMillis(interval);
+        if (_interval<1) {
+            throw new IllegalArgumentException(
+                "Interval must be at least 1ms: "+interval+" "+unit);
+        }
+        _backend = Objects.requireNonNull(backend);
+        _buckets = Objects.requireNonNull(buckets);
+        final String p = prefix+".";
+        _prefix = p;
+        _packets = buckets.pin(p+"packets");
+        _bytes = buckets.pin(p+"bytes");
+        _lines = buckets.pin(p+"lines");
+        _truncatedPackets = buckets.pin(p+"truncated_packets");
+        _receiveErrors = buckets.pin(p+"receive_errors");
+        _malformed = new Bucket[Failure.values().length];
+        for (final Failure f : Failure.values()) {
+            _malformed[f.ordinal()] =
+                buckets.pin(
+                    p+"malformed."+f.name().toLowerCase(Locale.ENGLISH));
+        }
+        _latency = buckets.pin(p+"backend.latency_ns");
+        _queueDepth = buckets.pin(p+"queue.depth");
+        _queueDropped = buckets.pin(p+"queue.dropped");
+        _queueErrors = buckets.pin(p+"queue.errors");
+        _bucketCount = buckets.pin(p+"buckets");
+        _bucketsExpired = buckets.pin(p+"buckets.expired");
+        _bucketsRejected = buckets.pin(p+"buckets.rejected");
+        _bucketsOverflowed = buckets.pin(p+"buckets.overflowed");
+        _flushDuration = buckets.pin(p+"flush.duration_ns");
+        _tcpConnections = buckets.pin(p+"tcp.connections");
+        _tcpBytes = buckets.pin(p+"tcp.bytes");
+        _tcpLines = buckets.pin(p+"tcp.lines");
+        _tcpMalformed = buckets.pin(p+"tcp.malformed");
+        _tcpOversizedLines = buckets.pin(p+"tcp.oversized_lines");
+        _relayHealthyNodes = buckets.pin(p+"relay.healthy_nodes");
+        _relayLines = buckets.pin(p+"relay.lines");
+        _relayDropped = buckets.pin(p+"relay.dropped");
+        _relayMalformed = buckets.pin(p+"relay.malformed");
+        _relayDatagrams = buckets.pin(p+"relay.datagrams");
+        _relaySendErrors = buckets.pin(p+"relay.send_errors");
+        _executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "Self Monitor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+
+    /**
+     * Report the counters of a receiver pool.
+     *
+     * @param pool The pool.
+     */
+    public void monitor(final EventReceiverPool pool) {
+        _pool = pool;
+    }
+
+
+    /**
+     * Report the counters of a ring buffer.
+     *
+     * @param ring The ring buffer.
+     */
+    public void monitor(final RingBufferBackend ring) {
+        _ring = ring;
+    }
+
+
+    /**
+     * Report the counters of a named back end's queue.
+     *
+     * @param name  The back end's name.
+     * @param queue The queue.
+     */
+    public void monitor(final String name, final BackendQueue queue) {
+        _queues.add(
+            new QueueMetrics(queue, _buckets, _prefix+"backend."+name+"."));
+    }
+
+
+    /**
+     * Report the flush duration of an aggregator.
+     *
+     * @param aggregator The aggregator.
+     */
+    public void monitor(final Aggregator aggregator) {
+        _aggregator = aggregator;
+    }
+
+
+    /**
+     * Report the counters of a TCP receiver pool.
+     *
+     * @param pool The pool.
+     */
+    public void monitor(final TcpEventReceiverPool pool) {
+        _tcp = pool;
+    }
+
+
+    /**
+     * Report the counters of a relay receiver pool.
+     *
+     * @param pool The pool.
+     */
+    public void monitor(final RelayReceiverPool pool) {
+        _relay = pool;
+    }
+
+
+    /**
+     * Start reporting at the configured interval.
+     */
+    public void start() {
+        _executor.scheduleAtFixedRate(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        report();
+                    } catch (final RuntimeException e) {
+                        System.err.println("Error reporting: "+e.getMessage());
+                    }
+                }
+            },
+            _interval,
+            _interval,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Send the change in each counter since the last report to the back
+     * end. Should only be called by one thread at a time.
+     */
+    public void report() {
+        final EventReceiverPool pool = _pool;
+        if (null!=pool) {
+            long packets = 0;
+            long bytes = 0;
+            long lines = 0;
+            long truncatedPackets = 0;
+            long receiveErrors = 0;
+            final long[] malformed = new long[_lastMalformed.length];
+            long latencySamples = 0;
+            long latencyNanos = 0;
+            for (final EventReceiver r : pool.getReceivers()) {
+                packets += r.getPackets();
+                bytes += r.getBytes();
+                lines += r.getLines();
+                truncatedPackets += r.getTruncatedPackets();
+                receiveErrors += r.getReceiveErrors();
+                for (final Failure f : Failure.values()) {
+                    malformed[f.ordinal()] += r.getMalformedLines(f);
+                }
+                latencySamples += r.getLatencySamples();
+                latencyNanos += r.getLatencyNanos();
+            }
+
+            _backend.count(_packets, packets-_lastPackets);
+            _backend.count(_bytes, bytes-_lastBytes);
+            _backend.count(_lines, lines-_lastLines);
+            _backend.count(
+                _truncatedPackets, truncatedPackets-_lastTruncatedPackets);
+            _backend.count(_receiveErrors, receiveErrors-_lastReceiveErrors);
+            for (int i=0; i<malformed.length; i++) {
+                _backend.count(_malformed[i], malformed[i]-_lastMalformed[i]);
+                _lastMalformed[i] = malformed[i];
+            }
+            final long samples = latencySamples-_lastLatencySamples;
+            if (samples>0) {
+                _backend.gauge(
+                    _latency, (latencyNanos-_lastLatencyNanos)/samples);
+            }
+
+            _lastPackets = packets;
+            _lastBytes = bytes;
+            _lastLines = lines;
+            _lastTruncatedPackets = truncatedPackets;
+            _lastReceiveErrors = receiveErrors;
+            _lastLatencySamples = latencySamples;
+            _lastLatencyNanos = latencyNanos;
+        }
+
+        final RingBufferBackend ring = _ring;
+        if (null!=ring) {
+            final long dropped = ring.getDropped();
+            final long errors = ring.getErrors();
+            _backend.gauge(_queueDepth, ring.getDepth());
+            _backend.count(_queueDropped, dropped-_lastQueueDropped);
+            _backend.count(_queueErrors, errors-_lastQueueErrors);
+            _lastQueueDropped = dropped;
+            _lastQueueErrors = errors;
+        }
+
+        for (final QueueMetrics q : _queues) {
+            final long dropped = q._queue.getDropped();
+            final long errors = q._queue.getErrors();
+            final long latencySamples = q._queue.getLatencySamples();
+            final long latencyNanos = q._queue.getLatencyNanos();
+            _backend.gauge(q._depth, q._queue.getDepth());
+            _backend.count(q._dropped, dropped-q._lastDropped);
+            _backend.count(q._errors, errors-q._lastErrors);
+            final long samples = latencySamples-q._lastLatencySamples;
+            if (samples>0) {
+                _backend.gauge(
+                    q._latency, (latencyNanos-q._lastLatencyNanos)/samples);
+            }
+            q._lastDropped = dropped;
+            q._lastErrors = errors;
+            q._lastLatencySamples = latencySamples;
+            q._lastLatencyNanos = latencyNanos;
+        }
+
+        final Aggregator aggregator = _aggregator;
+        if (null!=aggregator) {
+            _backend.gauge(_flushDuration, aggregator.getLastFlushNanos());
+        }
+
+        final TcpEventReceiverPool tcp = _tcp;
+        if (null!=tcp) {
+            long bytes = 0;
+            long oversizedLines = 0;
+            for (final TcpEventReceiver r : tcp.getReceivers()) {
+                bytes += r.getBytes();
+                oversizedLines += r.getOversizedLines();
+            }
+            final long lines = tcp.getLines();
+            final long malformed = tcp.getMalformedLines();
+            _backend.gauge(_tcpConnections, tcp.getOpenConnections());
+            _backend.count(_tcpBytes, bytes-_lastTcpBytes);
+            _backend.count(_tcpLines, lines-_lastTcpLines);
+            _backend.count(_tcpMalformed, malformed-_lastTcpMalformed);
+            _backend.count(
+                _tcpOversizedLines, oversizedLines-_lastTcpOversizedLines);
+            _lastTcpBytes = bytes;
+            _lastTcpLines = lines;
+            _lastTcpMalformed = malformed;
+            _lastTcpOversizedLines = oversizedLines;
+        }
+
+        final RelayReceiverPool relay = _relay;
+        if (null!=relay) {
+            long lines = 0;
+            long dropped = 0;
+            long malformed = 0;
+            long datagrams = 0;
+            long sendErrors = 0;
+            for (final RelayReceiver r : relay.getReceivers()) {
+                lines += r.getLines();
+                dropped += r.getDropped();
+                malformed += r.getMalformedLines();
+                datagrams += r.getDatagrams();
+                sendErrors += r.getSendErrors();
+            }
+            _backend.gauge(
+                _relayHealthyNodes, relay.getRing().getHealthyNodes());
+            _backend.count(_relayLines, lines-_lastRelayLines);
+            _backend.count(_relayDropped, dropped-_lastRelayDropped);
+            _backend.count(_relayMalformed, malformed-_lastRelayMalformed);
+            _backend.count(_relayDatagrams, datagrams-_lastRelayDatagrams);
+            _backend.count(
+                _relaySendErrors, sendErrors-_lastRelaySendErrors);
+            _lastRelayLines = lines;
+            _lastRelayDropped = dropped;
+            _lastRelayMalformed = malformed;
+            _lastRelayDatagrams = datagrams;
+            _lastRelaySendErrors = sendErrors;
+        }
+
+        final long expired = _buckets.getExpired();
+        final long rejected = _buckets.getRejected();
+        final long overflowed = _buckets.getOverflowed();
+        _backend.gauge(_bucketCount, _buckets.size());
+        _backend.count(_bucketsExpired, expired-_lastBucketsExpired);
+        _backend.count(_bucketsRejected, rejected-_lastBucketsRejected);
+        _backend.count(
+            _bucketsOverflowed, overflowed-_lastBucketsOverflowed);
+        _lastBucketsExpired = expired;
+        _lastBucketsRejected = rejected;
+        _lastBucketsOverflowed = overflowed;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        _executor.shutdown();
+    }
+}
@@ -0,0 +1,165 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.johnstok.utils.QuantileSketch;
+
+
+/**
+ * A reservoir backed by a {@link QuantileSketch}.
+ * <p>
+ * Memory per reservoir is bounded by the sketch, whatever the number of
+ * values. Each snapshot covers the values recorded since the previous
+ * snapshot, so a reporter sees one distribution per report interval.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class SketchReservoir
+    implements
+        Reservoir {
+
+    /* A snapshot that reads quantiles from a sketch. */
+    private static final class SketchSnapshot
+        extends
+            Snapshot {
+
+        private final QuantileSketch _sketch;
+
+
+        SketchSnapshot(final QuantileSketch sketch) {
+            super(new long[0]);
+            _sketch = sketch;
+        }
+
+
+        @Override
+        public double getValue(final double quantile) {
+            return _sketch.getQuantile(quantile);
+        }
+
+
+        @Override
+        public int size() {
+            return
+                (int) Math.min(Integer.MAX_VALUE, Math.round(_sketch.getCount()));
+        }
+
+
+        /* A sketch doesn't retain individual values. */
+        @Override
+        public long[] getValues() {
+            return new long[0];
+        }
+
+
+        @Override
+        public long getMax() {
+            return Math.round(_sketch.getMax());
+        }
+
+
+        @Override
+        public long getMin() {
+            return Math.round(_sketch.getMin());
+        }
+
+
+        @Override
+        public double getMean() {
+            return _sketch.getMean();
+        }
+
+
+        @Override
+        public double getStdDev() {
+            return _sketch.getStdDev();
+        }
+
+
+        @Override
+        public void dump(final OutputStream output) {
+            final PrintWriter out =
+                new PrintWriter(
+                    new OutputStreamWriter(
+                        output, StandardCharsets.UTF_8));
+            out.printf("count=%f%n", Double.valueOf(_sketch.getCount()));
+            out.flush();
+        }
+    }
+
+
+    private final double _relativeAccuracy;
+    private final int    _maxBins;
+    private QuantileSketch _sketch;
+
+
+    /**
+     * Constructor.
+     *
+     * @param relativeAccuracy The relative accuracy of quantile estimates.
+     * @param maxBins          The maximum number of sketch bins per sign.
+     */
+    SketchReservoir(final double relativeAccuracy, final int maxBins) {
+        _relativeAccuracy = relativeAccuracy;
+        _maxBins = maxBins;
+        _sketch = new QuantileSketch(relativeAccuracy, maxBins);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized int size() {
+        return
+            (int) Math.min(Integer.MAX_VALUE, Math.round(_sketch.getCount()));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void update(final long value) {
+        _sketch.add(value);
+    }
+
+
+    /**
+     * Record a value that stands for several.
+     *
+     * @param value  The value.
+     * @param weight The number of values it stands for.
+     */
+    synchronized void update(final long value, final double weight) {
+        _sketch.add(value, weight);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        final QuantileSketch sketch = _sketch;
+        _sketch = new QuantileSketch(_relativeAccuracy, _maxBins);
+        return new SketchSnapshot(sketch);
+    }
+}
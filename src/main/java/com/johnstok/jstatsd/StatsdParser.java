@@ -0,0 +1,509 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.johnstok.utils.HyperLogLog;
+
+
+/**
+ * A single-pass parser for Statsd packets.
+ * <p>
+ * The parser reads raw packet bytes and passes each event to a
+ * {@link Backend}. Bucket names are resolved with a {@link BucketTable}, so
+ * no strings are created for buckets that have been seen before. Each line
+ * of a packet must match the grammar
+ * <pre>
+ *   bucket:value|type[|@rate][|#tags]
+ * </pre>
+ * where <code>bucket</code> is one or more characters other than ':',
+ * <code>value</code> is <code>-?\d+(\.\d+)?</code>, <code>type</code> is one
+ * of <code>c</code>, <code>g</code>, <code>h</code>, <code>ms</code> or
+ * <code>s</code> and <code>rate</code> is a <code>\d+(\.\d+)?</code> of at
+ * least {@value #MIN_SAMPLE_RATE} and at most 1.
+ * The value of a gauge may also start with '+'; as in Statsd, a gauge value
+ * with a sign adjusts the gauge by that amount rather than setting it. The
+ * value of a set may instead be any non-empty string not containing '|',
+ * such as a user id. The '|' before the rate is optional. The rate and the
+ * DogStatsD-style <code>tags</code>, a ',' separated list of
+ * <code>key:value</code> or <code>key</code> tags, may appear in either
+ * order. Tagged events are reported against the bucket for the name and
+ * tag set, which the {@link BucketTable} interns in canonical order. Lines are
+ * separated by '\n' and surrounding white space is ignored. Lines that don't
+ * match, or whose value is too large for a double, are counted rather than
+ * reported.
+ * <p>
+ * Integer values, including those written with a zero fraction such as
+ * <code>2.00</code>, are passed to the back end as longs; all other values
+ * are passed as doubles. Set values are hashed and passed to
+ * {@link Backend#set(Bucket, long)}. The sample rate is passed with counters,
+ * timers and histograms; it defaults to 1.
+ * <p>
+ * The parser counts lines, malformed lines by {@link Failure reason}, and
+ * the time taken by a sample of back end calls.
+ * <p>
+ * A parser holds per-packet state and must only be used by one thread at a
+ * time.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class StatsdParser {
+
+    private static final int TYPE_COUNTER   = 0;
+    private static final int TYPE_GAUGE     = 1;
+    private static final int TYPE_HISTOGRAM = 2;
+    private static final int TYPE_TIMER     = 3;
+    private static final int TYPE_SET       = 4;
+    private static final int TYPE_DELTA     = 5;
+
+    /** The smallest sample rate accepted. */
+    public static final double MIN_SAMPLE_RATE = 1e-6;
+
+    /* One event in this many has its back end call timed. */
+    private static final int LATENCY_SAMPLE_INTERVAL = 64;
+
+
+    /**
+     * The reasons a line can fail to parse.
+     */
+    public static enum Failure {
+        /** The bucket name, or the ':' after it, is missing. */
+        BUCKET,
+        /** The type is missing or unknown. */
+        TYPE,
+        /** The value is missing, isn't a number or is too large. */
+        VALUE,
+        /** The sample rate is malformed or out of range. */
+        RATE,
+        /** The tags are repeated, or an unknown section follows the type. */
+        TAGS
+    }
+
+    private final Backend _backend;
+    private final BucketTable _buckets;
+    private final AtomicLongArray _malformedLines =
+        new AtomicLongArray(Failure.values().length);
+    private final AtomicLong _lines = new AtomicLong();
+    private final AtomicLong _latencySamples = new AtomicLong();
+    private final AtomicLong _latencyNanos = new AtomicLong();
+    private int _untilLatencySample = LATENCY_SAMPLE_INTERVAL;
+    private byte[] _scratch = new byte[0];
+
+    // Result of the last call to parseNumber().
+    private long    _unscaled;
+    private int     _scale;
+    private boolean _overflow;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend The back end that receives parsed events.
+     * @param buckets The table used to look up bucket names.
+     */
+    public StatsdParser(final Backend backend, final BucketTable buckets) {
+        _backend = Objects.requireNonNull(backend);
+        _buckets = Objects.requireNonNull(buckets);
+    }
+
+
+    /**
+     * Parse a packet, passing each valid event to the back end.
+     * <p>
+     * The packet's remaining bytes are consumed.
+     *
+     * @param packet The packet to parse.
+     */
+    public void parse(final ByteBuffer packet) {
+        final int length = packet.remaining();
+        if (packet.hasArray()) {
+            parse(
+                packet.array(), packet.arrayOffset()+packet.position(), length);
+            packet.position(packet.limit());
+        } else {
+            if (_scratch.length<length) {
+                _scratch = new byte[length];
+            }
+            packet.get(_scratch, 0, length);
+            parse(_scratch, 0, length);
+        }
+    }
+
+
+    /**
+     * Parse a packet, passing each valid event to the back end.
+     *
+     * @param data   The array containing the packet.
+     * @param offset The index of the first byte of the packet.
+     * @param length The length of the packet, in bytes.
+     */
+    public void parse(final byte[] data, final int offset, final int length) {
+        int start = offset;
+        int end = offset+length;
+        while (start<end && isWhitespace(data[start])) { start++; }
+        while (end>start && isWhitespace(data[end-1])) { end--; }
+
+        int lineStart = start;
+        while (lineStart<end) {
+            int lineEnd = lineStart;
+            while (lineEnd<end && data[lineEnd]!='\n') { lineEnd++; }
+            if (lineEnd>lineStart) {
+                parseLine(data, lineStart, lineEnd);
+            }
+            lineStart = lineEnd+1;
+        }
+    }
+
+
+    /**
+     * Query the number of lines that didn't match the Statsd grammar.
+     *
+     * @return The number of malformed lines.
+     */
+    public long getMalformedLines() {
+        long total = 0;
+        for (int i=0; i<_malformedLines.length(); i++) {
+            total += _malformedLines.get(i);
+        }
+        return total;
+    }
+
+
+    /**
+     * Query the number of lines that didn't match the Statsd grammar for
+     * the specified reason.
+     *
+     * @param failure The reason.
+     *
+     * @return The number of malformed lines.
+     */
+    public long getMalformedLines(final Failure failure) {
+        return _malformedLines.get(failure.ordinal());
+    }
+
+
+    /**
+     * Query the number of non-empty lines parsed, including malformed ones.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        return _lines.get();
+    }
+
+
+    /**
+     * Query the number of back end calls that have been timed. One event in
+     * every {@value #LATENCY_SAMPLE_INTERVAL} is timed.
+     *
+     * @return The number of timed calls.
+     */
+    public long getLatencySamples() {
+        return _latencySamples.get();
+    }
+
+
+    /**
+     * Query the total duration of the timed back end calls.
+     *
+     * @return The duration, in nanoseconds.
+     */
+    public long getLatencyNanos() {
+        return _latencyNanos.get();
+    }
+
+
+    private void parseLine(final byte[] data, final int from, final int to) {
+        // Only this thread writes the counters, so a lazy set is enough.
+        _lines.lazySet(_lines.get()+1);
+        int start = from;
+        int end = to;
+        while (start<end && isWhitespace(data[start])) { start++; }
+        while (end>start && isWhitespace(data[end-1])) { end--; }
+
+        int colon = start;
+        while (colon<end && data[colon]!=':') { colon++; }
+        if (colon==start || colon==end) {
+            malformed(Failure.BUCKET);
+            return;
+        }
+
+        int pipe = colon+1;
+        while (pipe<end && data[pipe]!='|') { pipe++; }
+        if (pipe==end) {
+            malformed(Failure.TYPE);
+            return;
+        }
+
+        // Type.
+        int i = pipe+1;
+        final int typeStart = i;
+        while (i<end && data[i]!='@' && data[i]!='|') { i++; }
+        final int type = parseType(data, typeStart, i);
+        if (type<0) {
+            malformed(Failure.TYPE);
+            return;
+        }
+
+        // Value; set values are arbitrary strings.
+        final int valueStart = colon+1;
+        final boolean negative = data[valueStart]=='-';
+        final boolean positive = data[valueStart]=='+';
+        final boolean signed = negative || positive;
+        final boolean valid =
+            (TYPE_SET==type)
+                ? pipe>valueStart
+                : (!positive || TYPE_GAUGE==type)
+                  && parseNumber(
+                      data, (signed) ? valueStart+1 : valueStart, pipe)==pipe;
+        if (!valid) {
+            malformed(Failure.VALUE);
+            return;
+        }
+        final long unscaled = _unscaled;
+        final int scale = _scale;
+        final boolean overflow = _overflow;
+        final boolean integral =
+            TYPE_SET==type || (!overflow && Values.isIntegral(unscaled, scale));
+        final double decimal =
+            (integral)
+                ? 0
+                : toDouble(unscaled, scale, overflow, data, valueStart, pipe);
+        if (Double.isInfinite(decimal)) {
+            malformed(Failure.VALUE);
+            return;
+        }
+
+        // Sample rate and tags, in either order.
+        double sampleRate = 1;
+        boolean rated = false;
+        int tagsStart = -1;
+        int tagsEnd = -1;
+        while (i<end) {
+            if (data[i]=='|') { i++; }
+            int sectionEnd = i;
+            while (sectionEnd<end && data[sectionEnd]!='|') { sectionEnd++; }
+            if (i<end && data[i]=='#' && tagsStart<0) {
+                tagsStart = i+1;
+                tagsEnd = sectionEnd;
+                i = sectionEnd;
+                continue;
+            }
+            if (i==end || data[i]!='@' || rated) {
+                malformed(
+                    (i<end && data[i]!='@') ? Failure.TAGS : Failure.RATE);
+                return;
+            }
+            final int rateStart = ++i;
+            i = parseNumber(data, i, sectionEnd);
+            if (i!=sectionEnd) {
+                malformed(Failure.RATE);
+                return;
+            }
+            sampleRate =
+                toDouble(
+                    _unscaled, _scale, _overflow, data, rateStart, sectionEnd);
+            if (sampleRate<MIN_SAMPLE_RATE || sampleRate>1) {
+                malformed(Failure.RATE);
+                return;
+            }
+            rated = true;
+        }
+
+        // A signed gauge value adjusts the gauge, as in Statsd.
+        final int event = (TYPE_GAUGE==type && signed) ? TYPE_DELTA : type;
+        final Bucket bucket =
+            (tagsStart<0)
+                ? _buckets.get(data, start, colon-start)
+                : _buckets.get(
+                    data, start, colon-start, tagsStart, tagsEnd-tagsStart);
+        if (null==bucket) {
+            return; // Rejected, and counted, by the full table.
+        }
+        final boolean timed = 0==--_untilLatencySample;
+        final long started = (timed) ? System.nanoTime() : 0;
+        if (TYPE_SET==type) {
+            _backend.set(
+                bucket, HyperLogLog.hash(data, valueStart, pipe-valueStart));
+        } else if (integral) {
+            final long value = Values.toLong(unscaled, scale);
+            dispatch(event, bucket, (negative) ? -value : value, sampleRate);
+        } else {
+            dispatch(event, bucket, decimal, sampleRate);
+        }
+        if (timed) {
+            _untilLatencySample = LATENCY_SAMPLE_INTERVAL;
+            _latencyNanos.lazySet(
+                _latencyNanos.get()+System.nanoTime()-started);
+            _latencySamples.lazySet(_latencySamples.get()+1);
+        }
+    }
+
+
+    private void dispatch(final int type,
+                          final Bucket bucket,
+                          final long value,
+                          final double sampleRate) {
+        switch (type) {
+            case TYPE_HISTOGRAM:
+                _backend.histogram(bucket, value, sampleRate);
+                break;
+            case TYPE_COUNTER:
+                _backend.count(bucket, value, sampleRate);
+                break;
+            case TYPE_GAUGE:
+                _backend.gauge(bucket, value);
+                break;
+            case TYPE_DELTA:
+                _backend.adjustGauge(bucket, value);
+                break;
+            case TYPE_TIMER:
+                _backend.time(bucket, value, sampleRate);
+                break;
+            default:
+                throw new IllegalStateException("Unknown type: "+type);
+        }
+    }
+
+
+    private void dispatch(final int type,
+                          final Bucket bucket,
+                          final double value,
+                          final double sampleRate) {
+        switch (type) {
+            case TYPE_HISTOGRAM:
+                _backend.histogram(bucket, value, sampleRate);
+                break;
+            case TYPE_COUNTER:
+                _backend.count(bucket, value, sampleRate);
+                break;
+            case TYPE_GAUGE:
+                _backend.gauge(bucket, value);
+                break;
+            case TYPE_DELTA:
+                _backend.adjustGauge(bucket, value);
+                break;
+            case TYPE_TIMER:
+                _backend.time(bucket, value, sampleRate);
+                break;
+            default:
+                throw new IllegalStateException("Unknown type: "+type);
+        }
+    }
+
+
+    /*
+     * Convert a number returned by parseNumber(), which spans the specified
+     * bytes including any sign, to a double.
+     */
+    private static double toDouble(final long unscaled,
+                                   final int scale,
+                                   final boolean overflow,
+                                   final byte[] data,
+                                   final int from,
+                                   final int to) {
+        if (!overflow && Values.isExactDouble(unscaled, scale)) {
+            final double value = Values.toDouble(unscaled, scale);
+            return ('-'==data[from]) ? -value : value;
+        }
+        return
+            Double.parseDouble(
+                new String(data, from, to-from, StandardCharsets.ISO_8859_1));
+    }
+
+
+    /*
+     * Parse an unsigned decimal number matching \d+(\.\d+)? starting at
+     * index 'from'. Returns the index after the number, or -1 if there is no
+     * number. The result is left in _unscaled, _scale and _overflow.
+     */
+    private int parseNumber(final byte[] data, final int from, final int to) {
+        long unscaled = 0;
+        int scale = 0;
+        boolean overflow = false;
+
+        int i = from;
+        while (i<to && isDigit(data[i])) {
+            final int digit = data[i++]-'0';
+            if (unscaled>(Long.MAX_VALUE-digit)/10) { overflow = true; }
+            unscaled = unscaled*10+digit;
+        }
+        if (i==from) { return -1; }
+
+        if (i<to && data[i]=='.') {
+            final int fractionStart = ++i;
+            while (i<to && isDigit(data[i])) {
+                final int digit = data[i++]-'0';
+                if (unscaled>(Long.MAX_VALUE-digit)/10) { overflow = true; }
+                unscaled = unscaled*10+digit;
+                scale++;
+            }
+            if (i==fractionStart) { return -1; }
+        }
+
+        _unscaled = unscaled;
+        _scale = scale;
+        _overflow = overflow;
+        return i;
+    }
+
+
+    private static int parseType(final byte[] data,
+                                 final int from,
+                                 final int to) {
+        switch (to-from) {
+            case 1:
+                switch (data[from]) {
+                    case 'c': return TYPE_COUNTER;
+                    case 'g': return TYPE_GAUGE;
+                    case 'h': return TYPE_HISTOGRAM;
+                    case 's': return TYPE_SET;
+                    default:  return -1;
+                }
+            case 2:
+                return (data[from]=='m' && data[from+1]=='s') ? TYPE_TIMER : -1;
+            default:
+                return -1;
+        }
+    }
+
+
+    private void malformed(final Failure failure) {
+        _malformedLines.incrementAndGet(failure.ordinal());
+    }
+
+
+    private static boolean isDigit(final byte b) {
+        return b>='0' && b<='9';
+    }
+
+
+    /*
+     * Matches String.trim(); multi-byte UTF-8 sequences never contain bytes
+     * in this range.
+     */
+    private static boolean isWhitespace(final byte b) {
+        return b>=0 && b<=' ';
+    }
+}
@@ -0,0 +1,102 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.concurrent.atomic.LongAdder;
+import com.codahale.metrics.Meter;
+
+
+/**
+ * A meter whose marks cost a single striped add.
+ * <p>
+ * {@link Meter#mark(long)} updates a count and three moving averages, each
+ * a contended cell when many threads mark the same meter. This meter
+ * accumulates marks in a {@link LongAdder} and passes them to the
+ * underlying meter when {@link #drain()} is called, or when the meter is
+ * read. Draining at the meter's five second tick interval keeps the moving
+ * averages accurate.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class StripedMeter
+    extends
+        Meter {
+
+    private final LongAdder _pending = new LongAdder();
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final long n) {
+        _pending.add(n);
+    }
+
+
+    /**
+     * Pass accumulated marks to the underlying meter.
+     */
+    synchronized void drain() {
+        final long n = _pending.sum();
+        if (0!=n) {
+            _pending.add(-n);
+            super.mark(n);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCount() {
+        drain();
+        return super.getCount();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getFifteenMinuteRate() {
+        drain();
+        return super.getFifteenMinuteRate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getFiveMinuteRate() {
+        drain();
+        return super.getFiveMinuteRate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getMeanRate() {
+        drain();
+        return super.getMeanRate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getOneMinuteRate() {
+        drain();
+        return super.getOneMinuteRate();
+    }
+}
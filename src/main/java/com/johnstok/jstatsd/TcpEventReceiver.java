@@ -0,0 +1,88 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import com.johnstok.utils.TcpReceiver;
+
+
+/**
+ * A Statsd event processor that receives messages via TCP.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class TcpEventReceiver
+    extends
+        TcpReceiver {
+
+    private final StatsdParser _parser;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend    The back end used to process events.
+     * @param buckets    The table used to look up bucket names.
+     * @param server     A bound, non-blocking server channel to accept
+     *                   connections from; it may be shared with other
+     *                   receivers.
+     * @param bufferSize The size of each connection's buffer, in bytes,
+     *                   which is also the longest line accepted.
+     *
+     * @throws IOException If it isn't possible to open a selector.
+     */
+    public TcpEventReceiver(final Backend backend,
+                            final BucketTable buckets,
+                            final ServerSocketChannel server,
+                            final int bufferSize) throws IOException {
+        super(server, bufferSize);
+        _parser = new StatsdParser(backend, buckets);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void processLines(final ByteBuffer lines) {
+        _parser.parse(lines);
+    }
+
+
+    /**
+     * Query the number of received lines that didn't match the Statsd
+     * grammar.
+     *
+     * @return The number of malformed lines.
+     */
+    public long getMalformedLines() {
+        return _parser.getMalformedLines();
+    }
+
+
+    /**
+     * Query the number of non-empty lines received.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        return _parser.getLines();
+    }
+}
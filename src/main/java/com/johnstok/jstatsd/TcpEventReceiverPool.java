@@ -0,0 +1,197 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.johnstok.utils.Service;
+import com.johnstok.utils.TcpReceiver;
+
+
+/**
+ * A group of TCP event receivers, each with its own selector thread,
+ * accepting connections on the same port.
+ * <p>
+ * Each connection is served by the receiver that accepted it, for as long
+ * as it stays open.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class TcpEventReceiverPool
+    extends
+        Service {
+
+    private final ServerSocketChannel _server;
+    private final List<TcpEventReceiver> _receivers;
+    private final List<Thread> _threads;
+
+
+    /**
+     * Constructor.
+     *
+     * @param backend           The back end used to process events; it is
+     *                          shared by all receivers.
+     * @param buckets           The table used to look up bucket names; it
+     *                          is shared by all receivers.
+     * @param port              The TCP port to listen on; zero picks a free
+     *                          port.
+     * @param threads           The number of selector threads.
+     * @param bufferSize        The size of each connection's buffer, in
+     *                          bytes, which is also the longest line
+     *                          accepted.
+     * @param receiveBufferSize The SO_RCVBUF size to request, in bytes; zero
+     *                          or less leaves the OS default in place.
+     *
+     * @throws IOException If it isn't possible to open a TCP socket.
+     */
+    public TcpEventReceiverPool(final Backend backend,
+                                final BucketTable buckets,
+                                final int port,
+                                final int threads,
+                                final int bufferSize,
+                                final int receiveBufferSize)
+                                                        throws IOException {
+        if (threads<1) {
+            throw new IllegalArgumentException(
+                "Thread count must be positive: "+threads);
+        }
+        _server = TcpReceiver.openServerChannel(port, receiveBufferSize);
+
+        final List<TcpEventReceiver> receivers = new ArrayList<>(threads);
+        final List<Thread> threadList = new ArrayList<>(threads);
+        try {
+            for (int i=0; i<threads; i++) {
+                final TcpEventReceiver receiver =
+                    new TcpEventReceiver(backend, buckets, _server, bufferSize);
+                receivers.add(receiver);
+                threadList.add(new Thread(receiver, "TCP Receiver-"+i));
+            }
+        } catch (final IOException | RuntimeException e) {
+            for (final TcpEventReceiver receiver : receivers) {
+                receiver.stop();
+            }
+            _server.close();
+            throw e;
+        }
+        _receivers = Collections.unmodifiableList(receivers);
+        _threads = Collections.unmodifiableList(threadList);
+    }
+
+
+    /**
+     * Start all receiver threads.
+     */
+    public void start() {
+        for (final Thread t : _threads) {
+            t.start();
+        }
+    }
+
+
+    /**
+     * Query the receivers in this pool.
+     *
+     * @return An unmodifiable list of receivers, one per thread.
+     */
+    public List<TcpEventReceiver> getReceivers() {
+        return _receivers;
+    }
+
+
+    /**
+     * Query the port this pool is listening on.
+     *
+     * @return The local port.
+     *
+     * @throws IOException If the port can't be determined.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) _server.getLocalAddress()).getPort();
+    }
+
+
+    /**
+     * Query the total number of connections accepted by all threads.
+     *
+     * @return The number of connections.
+     */
+    public long getConnections() {
+        long total = 0;
+        for (final TcpEventReceiver receiver : _receivers) {
+            total += receiver.getConnections();
+        }
+        return total;
+    }
+
+
+    /**
+     * Query the number of connections currently open.
+     *
+     * @return The number of open connections.
+     */
+    public long getOpenConnections() {
+        long total = 0;
+        for (final TcpEventReceiver receiver : _receivers) {
+            total += receiver.getOpenConnections();
+        }
+        return total;
+    }
+
+
+    /**
+     * Query the total number of lines received by all threads.
+     *
+     * @return The number of lines.
+     */
+    public long getLines() {
+        long total = 0;
+        for (final TcpEventReceiver receiver : _receivers) {
+            total += receiver.getLines();
+        }
+        return total;
+    }
+
+
+    /**
+     * Query the total number of malformed lines received by all threads.
+     *
+     * @return The number of malformed lines.
+     */
+    public long getMalformedLines() {
+        long total = 0;
+        for (final TcpEventReceiver receiver : _receivers) {
+            total += receiver.getMalformedLines();
+        }
+        return total;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        for (final TcpEventReceiver receiver : _receivers) {
+            receiver.stop();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import com.johnstok.utils.QuantileSketch;
+import java.util.Objects;
+
+
+/**
+ * Summary statistics for the values recorded by a timer during a flush
+ * interval.
+ * <p>
+ * Percentiles are estimated from a {@link QuantileSketch}, so they are
+ * accurate to the sketch's relative accuracy; the other statistics are
+ * exact.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class TimerStats {
+
+    private final QuantileSketch _sketch;
+    private final long           _sampleCount;
+    private final double         _sum;
+
+
+    /**
+     * Constructor.
+     *
+     * @param sketch      The values recorded, each weighted by the inverse of
+     *                    its sample rate. The sketch is retained and must not
+     *                    be modified afterwards.
+     * @param sampleCount The number of values actually received.
+     * @param sum         The sum of the values received, not weighted.
+     */
+    public TimerStats(final QuantileSketch sketch,
+                      final long sampleCount,
+                      final double sum) {
+        _sketch = Objects.requireNonNull(sketch);
+        _sampleCount = sampleCount;
+        _sum = sum;
+    }
+
+
+    /**
+     * Query the number of events recorded, scaled by their sample rates.
+     *
+     * @return The number of events.
+     */
+    public double getCount() {
+        return _sketch.getCount();
+    }
+
+
+    /**
+     * Query the number of values actually received.
+     *
+     * @return The number of values.
+     */
+    public long getSampleCount() {
+        return _sampleCount;
+    }
+
+
+    /**
+     * Query the sum of the values received. Like Statsd, the sum is not
+     * scaled by sample rates.
+     *
+     * @return The sum.
+     */
+    public double getSum() {
+        return _sum;
+    }
+
+
+    /**
+     * Query the smallest value recorded.
+     *
+     * @return The minimum, or zero if no values were recorded.
+     */
+    public double getMin() {
+        return _sketch.getMin();
+    }
+
+
+    /**
+     * Query the largest value recorded.
+     *
+     * @return The maximum, or zero if no values were recorded.
+     */
+    public double getMax() {
+        return _sketch.getMax();
+    }
+
+
+    /**
+     * Query the mean of the values received.
+     *
+     * @return The mean, or zero if no values were recorded.
+     */
+    public double getMean() {
+        return (0==_sampleCount) ? 0 : _sum/_sampleCount;
+    }
+
+
+    /**
+     * Estimate a percentile of the values recorded.
+     *
+     * @param quantile The quantile, between 0 and 1 inclusive.
+     *
+     * @return The value at the quantile, or zero if no values were recorded.
+     */
+    public double getPercentile(final double quantile) {
+        return _sketch.getQuantile(quantile);
+    }
+
+
+    /**
+     * Query the sketch of the values recorded, for example to merge it with
+     * sketches from other intervals or nodes. The sketch must not be
+     * modified.
+     *
+     * @return The sketch.
+     */
+    public QuantileSketch getSketch() {
+        return _sketch;
+    }
+}
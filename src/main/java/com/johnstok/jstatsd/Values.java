@@ -0,0 +1,137 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.math.BigDecimal;
+
+
+/**
+ * Helpers for choosing the primitive representation of a value.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class Values {
+
+    private static final BigDecimal MIN_LONG =
+        BigDecimal.valueOf(Long.MIN_VALUE);
+    private static final BigDecimal MAX_LONG =
+        BigDecimal.valueOf(Long.MAX_VALUE);
+
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+    private static final double[] DOUBLE_POWERS_OF_TEN = new double[23];
+    static {
+        LONG_POWERS_OF_TEN[0] = 1;
+        for (int i=1; i<LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = LONG_POWERS_OF_TEN[i-1]*10;
+        }
+        DOUBLE_POWERS_OF_TEN[0] = 1;
+        for (int i=1; i<DOUBLE_POWERS_OF_TEN.length; i++) {
+            DOUBLE_POWERS_OF_TEN[i] = DOUBLE_POWERS_OF_TEN[i-1]*10;
+        }
+    }
+
+    /* Doubles represent every integer up to this value exactly. */
+    private static final long MAX_EXACT_LONG = 1L<<53;
+
+
+    private Values() {
+        super();
+    }
+
+
+    /**
+     * Determine whether a value is an integer that fits in a long.
+     *
+     * @param i The value to check.
+     *
+     * @return True if the value can be passed as a long; false otherwise.
+     */
+    static boolean isLong(final BigDecimal i) {
+        if (i.scale()>0 && i.stripTrailingZeros().scale()>0) {
+            return false;
+        }
+        return i.compareTo(MIN_LONG)>=0 && i.compareTo(MAX_LONG)<=0;
+    }
+
+
+    /**
+     * Determine whether the decimal <code>unscaled * 10^-scale</code> is an
+     * integer.
+     *
+     * @param unscaled The non-negative unscaled value.
+     * @param scale    The number of digits after the decimal point.
+     *
+     * @return True if the value has no fractional part; false otherwise.
+     */
+    static boolean isIntegral(final long unscaled, final int scale) {
+        if (0==scale || 0==unscaled) {
+            return true;
+        }
+        if (scale>=LONG_POWERS_OF_TEN.length) {
+            return false;
+        }
+        return 0==unscaled%LONG_POWERS_OF_TEN[scale];
+    }
+
+
+    /**
+     * Remove the fractional digits from an integral decimal.
+     *
+     * @param unscaled The non-negative unscaled value.
+     * @param scale    The number of digits after the decimal point.
+     *
+     * @return The value as a long.
+     */
+    static long toLong(final long unscaled, final int scale) {
+        return
+            (0==scale || 0==unscaled)
+                ? unscaled
+                : unscaled/LONG_POWERS_OF_TEN[scale];
+    }
+
+
+    /**
+     * Determine whether the decimal <code>unscaled * 10^-scale</code> can be
+     * converted to the nearest double by {@link #toDouble(long, int)}.
+     *
+     * @param unscaled The non-negative unscaled value.
+     * @param scale    The number of digits after the decimal point.
+     *
+     * @return True if the conversion is exact; false otherwise.
+     */
+    static boolean isExactDouble(final long unscaled, final int scale) {
+        return unscaled<=MAX_EXACT_LONG && scale<DOUBLE_POWERS_OF_TEN.length;
+    }
+
+
+    /**
+     * Convert a decimal to a double. Both operands of the division are
+     * exactly representable, so the result is correctly rounded when
+     * {@link #isExactDouble(long, int)} holds.
+     *
+     * @param unscaled The non-negative unscaled value.
+     * @param scale    The number of digits after the decimal point.
+     *
+     * @return The value as a double.
+     */
+    static double toDouble(final long unscaled, final int scale) {
+        return unscaled/DOUBLE_POWERS_OF_TEN[scale];
+    }
+}
@@ -0,0 +1,85 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.concurrent.atomic.LongAdder;
+import com.codahale.metrics.Histogram;
+
+
+/**
+ * A histogram that records a sampled value once, with a weight.
+ * <p>
+ * A value received at a sample rate of 1/n stands for n values. Recording
+ * it n times would cost n updates; this histogram adds n to its count and
+ * passes the weight to its {@link SketchReservoir}, whatever the rate.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class WeightedHistogram
+    extends
+        Histogram {
+
+    private final LongAdder _count = new LongAdder();
+    private final SketchReservoir _reservoir;
+
+
+    /**
+     * Constructor.
+     *
+     * @param reservoir The reservoir that receives the values.
+     */
+    WeightedHistogram(final SketchReservoir reservoir) {
+        super(reservoir);
+        _reservoir = reservoir;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void update(final int value) {
+        update(value, 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void update(final long value) {
+        update(value, 1);
+    }
+
+
+    /**
+     * Record a value that stands for several.
+     *
+     * @param value  The value.
+     * @param weight The number of values it stands for.
+     */
+    void update(final long value, final long weight) {
+        _count.add(weight);
+        _reservoir.update(value, weight);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCount() {
+        return _count.sum();
+    }
+}
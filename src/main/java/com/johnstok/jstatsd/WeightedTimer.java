@@ -0,0 +1,131 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.jstatsd;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+
+/**
+ * A timer that records a sampled duration once, with a weight.
+ * <p>
+ * The weight is added to the timer's count and rates, and passed to its
+ * {@link WeightedHistogram}, so a sampled duration costs one update
+ * whatever the rate.
+ *
+ * @author Keith Webster Johnston.
+ */
+final class WeightedTimer
+    extends
+        Timer {
+
+    private final Meter _meter = new Meter();
+    private final WeightedHistogram _histogram;
+
+
+    /**
+     * Constructor.
+     *
+     * @param reservoir The reservoir that receives the durations.
+     */
+    WeightedTimer(final SketchReservoir reservoir) {
+        super(reservoir);
+        _histogram = new WeightedHistogram(reservoir);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void update(final long duration, final TimeUnit unit) {
+        update(duration, unit, 1);
+    }
+
+
+    /**
+     * Record a duration that stands for several.
+     *
+     * @param duration The duration.
+     * @param unit     The unit of the duration.
+     * @param weight   The number of durations it stands for.
+     */
+    void update(final long duration, final TimeUnit unit, final long weight) {
+        if (duration>=0) {
+            _histogram.update(unit.toNanos(duration), weight);
+            _meter.mark(weight);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public <T> T time(final Callable<T> event) throws Exception {
+        final Context context = time();
+        try {
+            return event.call();
+        } finally {
+            context.stop();
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCount() {
+        return _histogram.getCount();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getFifteenMinuteRate() {
+        return _meter.getFifteenMinuteRate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getFiveMinuteRate() {
+        return _meter.getFiveMinuteRate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getMeanRate() {
+        return _meter.getMeanRate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double getOneMinuteRate() {
+        return _meter.getOneMinuteRate();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public Snapshot getSnapshot() {
+        return _histogram.getSnapshot();
+    }
+}
@@ -19,51 +19,178 @@
  *---------------------------------------------------------------------------*/
 package com.johnstok.jstatsd;
 
-import java.math.BigDecimal;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
+import com.johnstok.utils.AtomicDouble;
+import com.johnstok.utils.HyperLogLog;
+import com.johnstok.utils.QuantileSketch;
+import com.johnstok.utils.Service;
 
 
 /**
  * A backend that sends events to Yammer Metrics.
+ * <p>
+ * Counters, histograms and meters only hold integers, so fractional values
+ * are rounded to the nearest long. Fractional timings are recorded with
+ * nanosecond precision.
+ * <p>
+ * Sampled counts are scaled by <code>1/sampleRate</code>. Sampled timings
+ * and histogram values are recorded once with a weight of
+ * <code>1/sampleRate</code> (rounded to the nearest integer), so that the
+ * metric's count, rates and percentiles reflect the unsampled event stream
+ * at the cost of a single update.
+ * <p>
+ * Metrics are resolved once per bucket and cached by bucket id, so the
+ * event path never looks names up in the registry. Gauges hold a primitive
+ * double, so updating an existing gauge allocates nothing, and adjustments
+ * are applied with compare-and-set. Counters are backed by
+ * striped adders; meters accumulate marks in a striped adder that is
+ * drained into the meter every five seconds, and once more when the backend
+ * is stopped. Stopping the backend also stops its console reporter.
+ * <p>
+ * Timers and histograms use a {@link SketchReservoir}, so memory per bucket
+ * is bounded and each report shows the distribution of values since the
+ * previous report. Sets are gauges reporting the estimated number of
+ * distinct members since the previous report, counted with a
+ * {@link HyperLogLog} of fixed size.
+ * <p>
+ * An expired bucket's metric is removed from the registry; events still in
+ * flight for it update a metric that is no longer reported.
+ * <p>
+ * A bucket used with more than one type, such as <code>foo|c</code> and
+ * then <code>foo|ms</code>, keeps the plain name for its first metric; later
+ * metrics are registered with the type as a suffix, e.g.
+ * <code>foo.timer</code>. A metric whose name is still taken is kept but
+ * not reported, so a clash costs one registration, not one per event.
+ * <p>
+ * Counters and gauges are checkpointed. Timers, histograms and sets only
+ * describe the period since the previous report, and restoring a meter's
+ * count would distort its rates, so they start afresh on restart.
  *
  * @author Keith Webster Johnston.
  */
 public class YammerBackend
+    extends
+        Service
     implements
-        Backend {
+        Backend,
+        Checkpointable {
 
-    private static final class BigDecimalGauge
+    private static final double NANOS_PER_MILLI = 1000000d;
+    private static final long   DRAIN_INTERVAL  = 5;
+
+    private static final String COUNTER   = "counter";
+    private static final String GAUGE     = "gauge";
+    private static final String TIMER     = "timer";
+    private static final String HISTOGRAM = "histogram";
+    private static final String METER     = "meter";
+    private static final String SET       = "set";
+    private static final String[] TYPES =
+        {COUNTER, GAUGE, TIMER, HISTOGRAM, METER, SET};
+
+
+    /*
+     * A gauge held as a primitive double, so updates never allocate; only
+     * reports box the value.
+     */
+    private static final class DoubleGauge
+        implements
+            Gauge<Number> {
+
+        private final AtomicDouble _value;
+
+
+        DoubleGauge(final double value) {
+            _value = new AtomicDouble(value);
+        }
+
+
+        @Override
+        public Number getValue() {
+            final double value = _value.get();
+            return
+                (value==(long) value)
+                    ? (Number) Long.valueOf((long) value)
+                    : (Number) Double.valueOf(value);
+        }
+
+
+        public double get() {
+            return _value.get();
+        }
+
+
+        public void set(final double value) {
+            _value.set(value);
+        }
+
+
+        public void add(final double delta) {
+            _value.addAndGet(delta);
+        }
+    }
+
+
+    /* The number of distinct members added since the last report. */
+    private static final class SetGauge
         implements
-            Gauge<BigDecimal> {
+            Gauge<Long> {
 
-        private volatile BigDecimal _i;
+        private final HyperLogLog _members;
 
 
-        BigDecimalGauge(final BigDecimal i) {
-            _i = i;
+        SetGauge(final int precision) {
+            _members = new HyperLogLog(precision);
         }
 
 
         @Override
-        public BigDecimal getValue() {
-            return _i;
+        public synchronized Long getValue() {
+            final long cardinality = _members.cardinality();
+            _members.clear();
+            return Long.valueOf(cardinality);
         }
 
 
-        public void setValue(final BigDecimal i) {
-            _i = i;
+        public synchronized void add(final long member) {
+            _members.add(member);
         }
     }
 
 
-    private final ConcurrentMap<String, BigDecimalGauge> _gauges =
-        new ConcurrentHashMap<>();
+    private final BucketIndex<Counter> _counters = new BucketIndex<>();
+    private final BucketIndex<DoubleGauge> _gauges = new BucketIndex<>();
+    private final BucketIndex<WeightedTimer> _timers = new BucketIndex<>();
+    private final BucketIndex<WeightedHistogram> _histograms =
+        new BucketIndex<>();
+    private final BucketIndex<StripedMeter> _meters = new BucketIndex<>();
+    private final BucketIndex<SetGauge> _sets = new BucketIndex<>();
     private final MetricRegistry _metrics = new MetricRegistry();
+    // The bucket that registered each name; guarded by this.
+    private final Map<String, Bucket> _owners = new HashMap<>();
+    private final double _relativeAccuracy;
+    private final int _maxBins;
+    private final int _setPrecision;
+    private final ScheduledExecutorService _drainer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "Meter Drain");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     private final ConsoleReporter reporter =
         ConsoleReporter
             .forRegistry(_metrics)
@@ -76,47 +203,344 @@ public class YammerBackend
      * Constructor.
      */
     public YammerBackend() {
+        this(
+            QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+            QuantileSketch.DEFAULT_MAX_BINS,
+            HyperLogLog.DEFAULT_PRECISION);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param relativeAccuracy The relative accuracy of timer and histogram
+     *                         percentiles.
+     * @param maxBins          The maximum number of sketch bins per sign for
+     *                         each timer and histogram.
+     * @param setPrecision     The precision of the sketch for each set.
+     */
+    public YammerBackend(final double relativeAccuracy,
+                         final int maxBins,
+                         final int setPrecision) {
+        // Fail fast on bad sketch parameters.
+        new QuantileSketch(relativeAccuracy, maxBins);
+        new HyperLogLog(setPrecision);
+        _relativeAccuracy = relativeAccuracy;
+        _maxBins = maxBins;
+        _setPrecision = setPrecision;
         reporter.start(10, TimeUnit.SECONDS);
+        _drainer.scheduleAtFixedRate(
+            new Runnable() {
+                @Override
+                public void run() {
+                    drainMeters();
+                }
+            },
+            DRAIN_INTERVAL,
+            DRAIN_INTERVAL,
+            TimeUnit.SECONDS);
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void count(final String bucket, final BigDecimal i) {
-        _metrics.counter(bucket).inc(i.longValue()); // FIXME: Long conversion can lose / corrupt information.
+    public void count(final Bucket bucket,
+                      final long i,
+                      final double sampleRate) {
+        if (1==sampleRate) {
+            counter(bucket).inc(i);
+        } else {
+            counter(bucket).inc(Math.round(i/sampleRate));
+        }
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void gauge(final String bucket, final BigDecimal i) {
-        final BigDecimalGauge g = new BigDecimalGauge(i);
-        final BigDecimalGauge previous = _gauges.putIfAbsent(bucket, g);
-        if (null==previous) {
-            _metrics.register(bucket, g);
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        counter(bucket).inc(Math.round(i/sampleRate));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final long i) {
+        gauge(bucket, (double) i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final double i) {
+        final DoubleGauge g = _gauges.get(bucket);
+        if (null!=g) {
+            g.set(i);
         } else {
-            previous.setValue(i);
+            register(_gauges, bucket, GAUGE, new DoubleGauge(i)).set(i);
         }
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void time(final String bucket, final BigDecimal i) {
-        _metrics.timer(bucket).update(i.longValue(), TimeUnit.MILLISECONDS);
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        adjustGauge(bucket, (double) delta);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        final DoubleGauge g = _gauges.get(bucket);
+        if (null!=g) {
+            g.add(delta);
+        } else {
+            register(_gauges, bucket, GAUGE, new DoubleGauge(0)).add(delta);
+        }
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void histogram(final String bucket, final BigDecimal i) {
-        _metrics.histogram(bucket).update(i.longValue()); // FIXME: Long conversion can lose / corrupt information.
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        timer(bucket).update(i, TimeUnit.MILLISECONDS, weight(sampleRate));
     }
 
 
     /** {@inheritDoc} */
     @Override
-    public void mark(final String bucket, final BigDecimal i) {
-        _metrics.meter(bucket).mark(i.longValue());
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        timer(bucket).update(
+            Math.round(i*NANOS_PER_MILLI),
+            TimeUnit.NANOSECONDS,
+            weight(sampleRate));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        histogram(bucket).update(i, weight(sampleRate));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        histogram(bucket, Math.round(i), sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        meter(bucket).mark(i);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        mark(bucket, Math.round(i));
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void set(final Bucket bucket, final long member) {
+        final SetGauge s = _sets.get(bucket);
+        ((null!=s)
+            ? s
+            : register(_sets, bucket, SET, new SetGauge(_setPrecision)))
+            .add(member);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void expire(final Bucket bucket) {
+        _counters.remove(bucket);
+        _gauges.remove(bucket);
+        _timers.remove(bucket);
+        _histograms.remove(bucket);
+        _meters.remove(bucket);
+        _sets.remove(bucket);
+        final String name = bucket.toString();
+        unregister(bucket, name);
+        for (final String type : TYPES) {
+            unregister(bucket, name+"."+type);
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void saveState(final Checkpoint.Visitor visitor) {
+        final Set<Bucket> buckets;
+        synchronized (this) {
+            buckets = new HashSet<>(_owners.values());
+        }
+        for (final Bucket bucket : buckets) {
+            final Counter c = _counters.get(bucket);
+            if (null!=c) { visitor.counter(bucket, c.getCount()); }
+            final DoubleGauge g = _gauges.get(bucket);
+            if (null!=g) { visitor.gauge(bucket, g.get()); }
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public Checkpoint.Visitor restorer() {
+        return new Checkpoint.Visitor() {
+
+            /** {@inheritDoc} */
+            @Override
+            public void counter(final Bucket bucket, final double value) {
+                YammerBackend.this.counter(bucket).inc(Math.round(value));
+            }
+
+
+            /** {@inheritDoc} */
+            @Override
+            public void gauge(final Bucket bucket, final double value) {
+                YammerBackend.this.gauge(bucket, value);
+            }
+        };
+    }
+
+
+    /**
+     * Query the registry that this backend's metrics are registered with,
+     * e.g. to attach another reporter.
+     *
+     * @return The registry.
+     */
+    public MetricRegistry getRegistry() {
+        return _metrics;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        _drainer.shutdown();
+        drainMeters(); // Marks made since the last scheduled drain.
+        reporter.stop();
+    }
+
+
+    private void drainMeters() {
+        for (int id=0; id<_meters.capacity(); id++) {
+            final StripedMeter meter = _meters.get(id);
+            if (null!=meter) { meter.drain(); }
+        }
+    }
+
+
+    private static long weight(final double sampleRate) {
+        return (1==sampleRate) ? 1 : Math.max(1, Math.round(1/sampleRate));
+    }
+
+
+    private Counter counter(final Bucket bucket) {
+        final Counter c = _counters.get(bucket);
+        return
+            (null!=c) ? c : register(_counters, bucket, COUNTER, new Counter());
+    }
+
+
+    private WeightedTimer timer(final Bucket bucket) {
+        final WeightedTimer t = _timers.get(bucket);
+        return
+            (null!=t)
+                ? t
+                : register(
+                    _timers,
+                    bucket,
+                    TIMER,
+                    new WeightedTimer(
+                        new SketchReservoir(_relativeAccuracy, _maxBins)));
+    }
+
+
+    private WeightedHistogram histogram(final Bucket bucket) {
+        final WeightedHistogram h = _histograms.get(bucket);
+        return
+            (null!=h)
+                ? h
+                : register(
+                    _histograms,
+                    bucket,
+                    HISTOGRAM,
+                    new WeightedHistogram(
+                        new SketchReservoir(_relativeAccuracy, _maxBins)));
+    }
+
+
+    private StripedMeter meter(final Bucket bucket) {
+        final StripedMeter m = _meters.get(bucket);
+        return
+            (null!=m) ? m : register(_meters, bucket, METER, new StripedMeter());
+    }
+
+
+    /*
+     * Registration is rare, so a single lock keeps the registry and the
+     * per-bucket caches consistent. A bucket is marked expired before
+     * expire() is called, so either expire() removes a new registration or
+     * the check that follows it does.
+     */
+    private synchronized <T extends Metric> T register(
+                                                final BucketIndex<T> index,
+                                                final Bucket bucket,
+                                                final String type,
+                                                final T metric) {
+        final T existing = index.get(bucket);
+        if (null!=existing) { return existing; }
+        if (bucket.isExpired()) { return metric; } // Never reported.
+
+        String name = bucket.toString();
+        if (isTaken(name)) {
+            name = name+"."+type;
+        }
+        if (isTaken(name)) {
+            System.err.println(
+                "Metric name in use, not reporting "+type+": "+name);
+        } else {
+            _metrics.register(name, metric);
+            _owners.put(name, bucket);
+        }
+        index.putIfAbsent(bucket, metric);
+        if (bucket.isExpired()) { expire(bucket); }
+        return metric;
+    }
+
+
+    /* The name may return before its expired bucket has been removed. */
+    private boolean isTaken(final String name) {
+        final Bucket owner = _owners.get(name);
+        if (null!=owner && owner.isExpired()) {
+            expire(owner);
+        }
+        return _owners.containsKey(name);
+    }
+
+
+    private void unregister(final Bucket bucket, final String name) {
+        if (bucket==_owners.get(name)) {
+            _owners.remove(name);
+            _metrics.remove(name);
+        }
     }
 }
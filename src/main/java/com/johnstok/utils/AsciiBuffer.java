@@ -0,0 +1,217 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * A growable byte buffer for building ASCII text without creating strings.
+ * <p>
+ * Longs, and doubles with an integral value, are formatted directly into
+ * the buffer; other doubles are formatted with {@link Double#toString}. A
+ * buffer is not thread-safe.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class AsciiBuffer {
+
+    /* Doubles with a larger magnitude are not formatted as longs. */
+    private static final double MAX_INTEGRAL = 1e15;
+
+    private byte[] _bytes;
+    private int    _length;
+
+
+    /**
+     * Constructor.
+     *
+     * @param initialCapacity The initial capacity, in bytes.
+     */
+    public AsciiBuffer(final int initialCapacity) {
+        _bytes = new byte[Math.max(1, initialCapacity)];
+    }
+
+
+    /**
+     * Append bytes.
+     *
+     * @param bytes The bytes to append.
+     *
+     * @return This buffer.
+     */
+    public AsciiBuffer append(final byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+
+    /**
+     * Append bytes.
+     *
+     * @param bytes  The array containing the bytes to append.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     *
+     * @return This buffer.
+     */
+    public AsciiBuffer append(final byte[] bytes,
+                              final int offset,
+                              final int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, _bytes, _length, length);
+        _length += length;
+        return this;
+    }
+
+
+    /**
+     * Append an ASCII character.
+     *
+     * @param c The character.
+     *
+     * @return This buffer.
+     */
+    public AsciiBuffer append(final char c) {
+        ensureCapacity(1);
+        _bytes[_length++] = (byte) c;
+        return this;
+    }
+
+
+    /**
+     * Append an ASCII string; other characters are truncated to a byte.
+     *
+     * @param s The string.
+     *
+     * @return This buffer.
+     */
+    public AsciiBuffer appendAscii(final String s) {
+        ensureCapacity(s.length());
+        for (int i=0; i<s.length(); i++) {
+            _bytes[_length++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+
+    /**
+     * Append a long in decimal.
+     *
+     * @param value The value.
+     *
+     * @return This buffer.
+     */
+    public AsciiBuffer append(final long value) {
+        if (Long.MIN_VALUE==value) {
+            return appendAscii(Long.toString(value));
+        }
+        ensureCapacity(20);
+        long v = value;
+        if (v<0) {
+            _bytes[_length++] = '-';
+            v = -v;
+        }
+        final int start = _length;
+        do {
+            _bytes[_length++] = (byte) ('0'+v%10);
+            v /= 10;
+        } while (v>0);
+        for (int i=start, j=_length-1; i<j; i++, j--) {
+            final byte tmp = _bytes[i];
+            _bytes[i] = _bytes[j];
+            _bytes[j] = tmp;
+        }
+        return this;
+    }
+
+
+    /**
+     * Append a double; integral values are written without a fraction.
+     *
+     * @param value The value.
+     *
+     * @return This buffer.
+     */
+    public AsciiBuffer append(final double value) {
+        if (value==(long) value && Math.abs(value)<MAX_INTEGRAL) {
+            return append((long) value);
+        }
+        return appendAscii(Double.toString(value));
+    }
+
+
+    /**
+     * Query the number of bytes in the buffer.
+     *
+     * @return The length.
+     */
+    public int length() {
+        return _length;
+    }
+
+
+    /**
+     * Access the buffer's backing array; only the first {@link #length()}
+     * bytes are valid.
+     *
+     * @return The array.
+     */
+    public byte[] array() {
+        return _bytes;
+    }
+
+
+    /**
+     * Discard the buffer's contents, keeping its capacity.
+     */
+    public void clear() {
+        _length = 0;
+    }
+
+
+    /**
+     * Write the buffer's contents to a stream.
+     *
+     * @param out The stream.
+     *
+     * @throws IOException If the stream can't be written.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(_bytes, 0, _length);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return new String(_bytes, 0, _length, StandardCharsets.ISO_8859_1);
+    }
+
+
+    private void ensureCapacity(final int extra) {
+        if (_length+extra>_bytes.length) {
+            _bytes =
+                Arrays.copyOf(_bytes, Math.max(_bytes.length*2, _length+extra));
+        }
+    }
+}
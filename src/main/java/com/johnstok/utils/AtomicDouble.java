@@ -0,0 +1,146 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A double that may be updated atomically.
+ * <p>
+ * The value is held as the raw bits of a double in an {@link AtomicLong},
+ * so updates never allocate; additions retry with compare-and-set until
+ * they succeed, so concurrent updates are never lost.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class AtomicDouble
+    extends
+        Number {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicLong _bits;
+
+
+    /**
+     * Constructor.
+     */
+    public AtomicDouble() {
+        this(0);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param initialValue The initial value.
+     */
+    public AtomicDouble(final double initialValue) {
+        _bits = new AtomicLong(Double.doubleToRawLongBits(initialValue));
+    }
+
+
+    /**
+     * Query the current value.
+     *
+     * @return The current value.
+     */
+    public double get() {
+        return Double.longBitsToDouble(_bits.get());
+    }
+
+
+    /**
+     * Set the value.
+     *
+     * @param value The new value.
+     */
+    public void set(final double value) {
+        _bits.set(Double.doubleToRawLongBits(value));
+    }
+
+
+    /**
+     * Set the value, returning the previous value.
+     *
+     * @param value The new value.
+     *
+     * @return The previous value.
+     */
+    public double getAndSet(final double value) {
+        return
+            Double.longBitsToDouble(
+                _bits.getAndSet(Double.doubleToRawLongBits(value)));
+    }
+
+
+    /**
+     * Add to the value.
+     *
+     * @param delta The amount to add.
+     *
+     * @return The updated value.
+     */
+    public double addAndGet(final double delta) {
+        for (;;) {
+            final long current = _bits.get();
+            final double next = Double.longBitsToDouble(current)+delta;
+            if (_bits.compareAndSet(current, Double.doubleToRawLongBits(next))) {
+                return next;
+            }
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public int intValue() {
+        return (int) get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public long longValue() {
+        return (long) get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public float floatValue() {
+        return (float) get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public double doubleValue() {
+        return get();
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+}
@@ -0,0 +1,115 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+
+/**
+ * A pool of direct buffers of a fixed size.
+ * <p>
+ * Buffers are allocated on demand and up to a limit are kept for reuse when
+ * released, so the steady state performs no allocation. A pool is not
+ * thread-safe.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class BufferPool {
+
+    private final ArrayDeque<ByteBuffer> _free = new ArrayDeque<>();
+    private final int _bufferSize;
+    private final int _maxPooled;
+    private long _allocated;
+
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize The size of each buffer, in bytes.
+     * @param maxPooled  The most released buffers to keep for reuse.
+     */
+    public BufferPool(final int bufferSize, final int maxPooled) {
+        if (bufferSize<1 || maxPooled<0) {
+            throw new IllegalArgumentException(
+                "Invalid pool: "+bufferSize+" bytes, "+maxPooled+" buffers.");
+        }
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+    }
+
+
+    /**
+     * Take a cleared buffer from the pool, allocating one if none is free.
+     *
+     * @return The buffer.
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = _free.poll();
+        if (null!=buffer) {
+            return buffer;
+        }
+        _allocated++;
+        return ByteBuffer.allocateDirect(_bufferSize);
+    }
+
+
+    /**
+     * Return a buffer to the pool.
+     *
+     * @param buffer A buffer previously acquired from this pool.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (_free.size()<_maxPooled) {
+            buffer.clear();
+            _free.push(buffer);
+        }
+    }
+
+
+    /**
+     * Query the size of the pool's buffers.
+     *
+     * @return The size, in bytes.
+     */
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+
+    /**
+     * Query the number of buffers this pool has allocated.
+     *
+     * @return The number of allocations.
+     */
+    public long getAllocated() {
+        return _allocated;
+    }
+
+
+    /**
+     * Query the number of buffers available for reuse.
+     *
+     * @return The number of free buffers.
+     */
+    public int getFree() {
+        return _free.size();
+    }
+}
@@ -0,0 +1,194 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * A consistent-hash ring that maps keys to nodes.
+ * <p>
+ * Each node is placed on the ring at a number of pseudo-random points,
+ * derived from its name, so keys are spread evenly and each node's share
+ * of the keys is stable. A key belongs to the first healthy node at or
+ * after its hash, going clockwise. When a node becomes unhealthy only its
+ * keys move, to the nodes that follow it; when it recovers they move back.
+ * <p>
+ * Lookups read an immutable snapshot of the ring and never lock; changes
+ * to a node's health build a new snapshot.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class ConsistentHashRing {
+
+    /** The number of points per node used if none is specified. */
+    public static final int DEFAULT_REPLICAS = 160;
+
+
+    /* The points of the healthy nodes, in hash order. */
+    private static final class Points {
+
+        final long[] _hashes;
+        final int[]  _nodes;
+
+
+        Points(final long[] hashes, final int[] nodes) {
+            _hashes = hashes;
+            _nodes = nodes;
+        }
+    }
+
+
+    private final long[][] _nodeHashes;
+    private final boolean[] _healthy; // Guarded by this.
+    private volatile Points _points;
+
+
+    /**
+     * Constructor. All nodes start healthy.
+     *
+     * @param nodes    The nodes' names; a node's points depend only on its
+     *                 name, so every ring built from the same names agrees.
+     * @param replicas The number of points per node.
+     */
+    public ConsistentHashRing(final List<String> nodes, final int replicas) {
+        if (nodes.isEmpty() || replicas<1) {
+            throw new IllegalArgumentException(
+                "A ring needs at least one node and one point per node.");
+        }
+        _nodeHashes = new long[nodes.size()][replicas];
+        for (int n=0; n<nodes.size(); n++) {
+            for (int r=0; r<replicas; r++) {
+                final byte[] point =
+                    (nodes.get(n)+"#"+r).getBytes(StandardCharsets.UTF_8);
+                _nodeHashes[n][r] = HyperLogLog.hash(point, 0, point.length);
+            }
+        }
+        _healthy = new boolean[nodes.size()];
+        Arrays.fill(_healthy, true);
+        _points = build();
+    }
+
+
+    /**
+     * Find the node that a key belongs to.
+     *
+     * @param data   The array containing the key.
+     * @param offset The index of the key's first byte.
+     * @param length The length of the key, in bytes.
+     *
+     * @return The index of the node, or -1 if no node is healthy.
+     */
+    public int node(final byte[] data, final int offset, final int length) {
+        final Points points = _points;
+        if (0==points._hashes.length) { return -1; }
+        int i =
+            Arrays.binarySearch(
+                points._hashes, HyperLogLog.hash(data, offset, length));
+        if (i<0) { i = -i-1; }
+        if (i==points._hashes.length) { i = 0; }
+        return points._nodes[i];
+    }
+
+
+    /**
+     * Mark a node healthy, so it receives its keys, or unhealthy, so its
+     * keys move to the nodes that follow it.
+     *
+     * @param node    The index of the node.
+     * @param healthy True if the node is healthy.
+     *
+     * @return True if the node's health changed.
+     */
+    public synchronized boolean setHealthy(final int node,
+                                           final boolean healthy) {
+        if (healthy==_healthy[node]) { return false; }
+        _healthy[node] = healthy;
+        _points = build();
+        return true;
+    }
+
+
+    /**
+     * Query whether a node is healthy.
+     *
+     * @param node The index of the node.
+     *
+     * @return True if the node is healthy.
+     */
+    public synchronized boolean isHealthy(final int node) {
+        return _healthy[node];
+    }
+
+
+    /**
+     * Query the number of healthy nodes.
+     *
+     * @return The number of healthy nodes.
+     */
+    public synchronized int getHealthyNodes() {
+        int healthy = 0;
+        for (final boolean h : _healthy) {
+            if (h) { healthy++; }
+        }
+        return healthy;
+    }
+
+
+    /**
+     * Query the number of nodes, healthy or not.
+     *
+     * @return The number of nodes.
+     */
+    public int size() {
+        return _healthy.length;
+    }
+
+
+    /*
+     * Should be called holding the lock. Where two points collide the
+     * earlier node wins, so every ring resolves them the same way.
+     */
+    private Points build() {
+        final Map<Long, Integer> ring = new TreeMap<>();
+        for (int n=0; n<_nodeHashes.length; n++) {
+            if (!_healthy[n]) { continue; }
+            for (final long hash : _nodeHashes[n]) {
+                final Long key = Long.valueOf(hash);
+                if (!ring.containsKey(key)) {
+                    ring.put(key, Integer.valueOf(n));
+                }
+            }
+        }
+        final long[] hashes = new long[ring.size()];
+        final int[] nodes = new int[ring.size()];
+        int i = 0;
+        for (final Map.Entry<Long, Integer> e : ring.entrySet()) {
+            hashes[i] = e.getKey().longValue();
+            nodes[i] = e.getValue().intValue();
+            i++;
+        }
+        return new Points(hashes, nodes);
+    }
+}
@@ -21,13 +21,30 @@ package com.johnstok.utils;
 
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * A service that receives UDP packets.
+ * <p>
+ * Packets are read from a {@link DatagramChannel} into a single direct
+ * buffer that is reused for every receive, so the receive loop performs no
+ * per-packet allocation.
+ * <p>
+ * A datagram longer than the maximum datagram size is truncated to the
+ * last '\n' that fits, so that a line cut short is discarded rather than
+ * processed with a wrong value; the truncation is counted.
+ * <p>
+ * Several receivers may share a port, either by each opening its own
+ * channel with SO_REUSEPORT (see {@link #openChannel(int, int, boolean)}) or
+ * by draining the same channel from several threads.
  *
  * @author Keith Webster Johnston.
  */
@@ -35,16 +52,146 @@ public abstract class DatagramReceiver
     extends
         RunnableService {
 
-    protected final DatagramSocket _serverSocket;
+    /** The port used if none is specified. */
+    public static final int DEFAULT_PORT = 7111;
+
+    /** The maximum datagram size used if none is specified. */
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 8192;
+
+    /** The largest datagram size that may be configured. */
+    public static final int MAX_DATAGRAM_SIZE = 65535;
+
+    protected final DatagramChannel _channel;
+    private final ByteBuffer _buffer;
+    private final int _maxDatagramSize;
+    private final AtomicLong _packets = new AtomicLong();
+    private final AtomicLong _bytes = new AtomicLong();
+    private final AtomicLong _truncatedPackets = new AtomicLong();
+    private final AtomicLong _receiveErrors = new AtomicLong();
+
+
+    /**
+     * Constructor.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket.
+     */
+    public DatagramReceiver() throws IOException {
+        this(DEFAULT_PORT, DEFAULT_MAX_DATAGRAM_SIZE, 0);
+    }
 
 
     /**
      * Constructor.
      *
-     * @throws SocketException If it isn't possible to open a UDP socket.
+     * @param port              The UDP port to listen on.
+     * @param maxDatagramSize   The largest datagram, in bytes, that will be
+     *                          processed in full; longer datagrams are
+     *                          truncated and counted.
+     * @param receiveBufferSize The SO_RCVBUF size to request, in bytes; zero
+     *                          or less leaves the OS default in place.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket.
+     */
+    public DatagramReceiver(final int port,
+                            final int maxDatagramSize,
+                            final int receiveBufferSize) throws IOException {
+        this(openChannel(port, receiveBufferSize, false), maxDatagramSize);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param channel         A bound channel to receive from. The channel may
+     *                        be shared with other receivers; it is closed
+     *                        when this receiver stops.
+     * @param maxDatagramSize The largest datagram, in bytes, that will be
+     *                        processed in full; longer datagrams are
+     *                        truncated and counted.
+     */
+    public DatagramReceiver(final DatagramChannel channel,
+                            final int maxDatagramSize) {
+        if (maxDatagramSize<1 || maxDatagramSize>MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException(
+                "Max datagram size must be between 1 and "+MAX_DATAGRAM_SIZE
+                +": "+maxDatagramSize);
+        }
+        _maxDatagramSize = maxDatagramSize;
+        // One spare byte lets us detect datagrams that didn't fit.
+        _buffer = ByteBuffer.allocateDirect(maxDatagramSize+1);
+        _channel = Objects.requireNonNull(channel);
+    }
+
+
+    /**
+     * Open a blocking UDP channel bound to the specified port.
+     *
+     * @param port              The UDP port to listen on.
+     * @param receiveBufferSize The SO_RCVBUF size to request, in bytes; zero
+     *                          or less leaves the OS default in place.
+     * @param reusePort         True if SO_REUSEPORT should be set, allowing
+     *                          several channels to bind the same port.
+     *
+     * @throws IOException If it isn't possible to open a UDP socket, or if
+     *  SO_REUSEPORT was requested but isn't supported.
+     *
+     * @return The bound channel.
+     */
+    public static DatagramChannel openChannel(final int port,
+                                              final int receiveBufferSize,
+                                              final boolean reusePort)
+                                                        throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (receiveBufferSize>0) {
+                channel.setOption(
+                    StandardSocketOptions.SO_RCVBUF,
+                    Integer.valueOf(receiveBufferSize));
+            }
+            if (reusePort) {
+                final SocketOption<Boolean> option = reusePortOption(channel);
+                if (null==option) {
+                    throw new IOException("SO_REUSEPORT is not supported.");
+                }
+                channel.setOption(option, Boolean.TRUE);
+            }
+            channel.bind(new InetSocketAddress(port));
+            return channel;
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Determine whether this platform supports SO_REUSEPORT for UDP sockets.
+     *
+     * @return True if SO_REUSEPORT is supported; false otherwise.
      */
-    public DatagramReceiver() throws SocketException {
-        _serverSocket = new DatagramSocket(7111);
+    public static boolean isReusePortSupported() {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return null!=reusePortOption(channel);
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+
+    /*
+     * SO_REUSEPORT is only defined by StandardSocketOptions from Java 9, so
+     * look it up by name.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption(
+                                               final DatagramChannel channel) {
+        for (final SocketOption<?> option : channel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name())
+                && Boolean.class==option.type()) {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+        return null;
     }
 
 
@@ -53,12 +200,27 @@ public abstract class DatagramReceiver
     public final void run() {
         while (isRunning()) {
             try {
-                final byte[] receiveData = new byte[1024];
-                final DatagramPacket receivePacket =
-                new DatagramPacket(receiveData, receiveData.length);
-                _serverSocket.receive(receivePacket);
-                processPacket(receivePacket);
+                _buffer.clear();
+                _channel.receive(_buffer);
+                _buffer.flip();
+                // Only this thread writes the counters, so a lazy set is
+                // enough.
+                _packets.lazySet(_packets.get()+1);
+                if (_buffer.remaining()>_maxDatagramSize) {
+                    _truncatedPackets.incrementAndGet();
+                    _buffer.limit(_maxDatagramSize);
+                    _bytes.lazySet(_bytes.get()+_maxDatagramSize);
+                    _buffer.limit(lastLineEnd(_buffer));
+                } else {
+                    _bytes.lazySet(_bytes.get()+_buffer.remaining());
+                }
+                if (_buffer.hasRemaining()) {
+                    processPacket(_buffer);
+                }
+            } catch (final ClosedChannelException e) {
+                break;
             } catch (IOException | RuntimeException e) {
+                _receiveErrors.incrementAndGet();
                 System.err.println("Error receiving packet: "+e.getMessage());
             }
         }
@@ -68,14 +230,86 @@ public abstract class DatagramReceiver
     /** {@inheritDoc} */
     @Override
     protected void doStop() {
-        _serverSocket.close();
+        try {
+            _channel.close();
+        } catch (final IOException e) {
+            System.err.println("Error closing channel: "+e.getMessage());
+        }
+    }
+
+
+    /**
+     * Query the number of packets received by this receiver.
+     *
+     * @return The number of packets received.
+     */
+    public final long getPackets() {
+        return _packets.get();
+    }
+
+
+    /**
+     * Query the number of bytes received by this receiver. Only the first
+     * maximum datagram size bytes of a truncated packet are read, so only
+     * those are counted.
+     *
+     * @return The number of bytes received.
+     */
+    public final long getBytes() {
+        return _bytes.get();
+    }
+
+
+    /**
+     * Query the number of errors receiving or processing packets.
+     *
+     * @return The number of errors.
+     */
+    public final long getReceiveErrors() {
+        return _receiveErrors.get();
+    }
+
+
+    /**
+     * Query the number of packets that were longer than the maximum datagram
+     * size and had to be truncated.
+     *
+     * @return The number of truncated packets.
+     */
+    public final long getTruncatedPackets() {
+        return _truncatedPackets.get();
+    }
+
+
+    /**
+     * Query the maximum datagram size for this receiver.
+     *
+     * @return The maximum datagram size, in bytes.
+     */
+    public final int getMaxDatagramSize() {
+        return _maxDatagramSize;
+    }
+
+
+    /* The limit that keeps only the complete lines of a truncated packet. */
+    private static int lastLineEnd(final ByteBuffer packet) {
+        for (int i=packet.limit()-1; i>=packet.position(); i--) {
+            if ('\n'==packet.get(i)) {
+                return i+1;
+            }
+        }
+        return packet.position();
     }
 
 
     /**
      * Process a received packet.
+     * <p>
+     * The buffer is positioned at the start of the packet and its limit is
+     * the end of the packet. It is reused for the next receive, so
+     * implementations must not retain it after this method returns.
      *
-     * @param receivePacket The packet to process.
+     * @param packet The packet to process.
      */
-    protected abstract void processPacket(DatagramPacket receivePacket);
-}
\ No newline at end of file
+    protected abstract void processPacket(ByteBuffer packet);
+}
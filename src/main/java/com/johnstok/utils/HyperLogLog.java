@@ -0,0 +1,257 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.utils;
+
+import java.util.Arrays;
+
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values added.
+ * <p>
+ * Values are added as 64-bit hashes. The top <code>precision</code> bits of
+ * a hash select one of <code>2^precision</code> one-byte registers, which
+ * records the longest run of leading zeros seen in the remaining bits.
+ * Memory is fixed by the precision whatever the number of values; the
+ * standard error of the estimate is <code>1.04/sqrt(2^precision)</code>.
+ * Small cardinalities are estimated by linear counting, which is close to
+ * exact.
+ * <p>
+ * Sketches with the same precision can be merged exactly. A sketch is not
+ * thread-safe.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class HyperLogLog {
+
+    /** The smallest supported precision. */
+    public static final int MIN_PRECISION = 4;
+
+    /** The largest supported precision. */
+    public static final int MAX_PRECISION = 18;
+
+    /** The precision used if none is specified: 4KB, 1.6% error. */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME        = 0x100000001b3L;
+
+    private final int    _precision;
+    private final byte[] _registers;
+
+
+    /**
+     * Constructor.
+     */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param precision The number of hash bits used to select a register,
+     *                  between {@link #MIN_PRECISION} and
+     *                  {@link #MAX_PRECISION} inclusive.
+     */
+    public HyperLogLog(final int precision) {
+        if (precision<MIN_PRECISION || precision>MAX_PRECISION) {
+            throw new IllegalArgumentException(
+                "Precision must be between "+MIN_PRECISION+" and "
+                +MAX_PRECISION+": "+precision);
+        }
+        _precision = precision;
+        _registers = new byte[1<<precision];
+    }
+
+
+    /**
+     * Find the smallest precision whose standard error is no greater than
+     * the specified error.
+     *
+     * @param standardError The required standard error, e.g. 0.01 for 1%.
+     *
+     * @return The precision.
+     */
+    public static int precisionFor(final double standardError) {
+        for (int p=MIN_PRECISION; p<=MAX_PRECISION; p++) {
+            if (standardError(p)<=standardError) { return p; }
+        }
+        throw new IllegalArgumentException(
+            "Standard error must be at least "+standardError(MAX_PRECISION)
+            +": "+standardError);
+    }
+
+
+    /**
+     * Compute the standard error of a sketch with the specified precision.
+     *
+     * @param precision The precision.
+     *
+     * @return The standard error, e.g. 0.01 for 1%.
+     */
+    public static double standardError(final int precision) {
+        return 1.04/Math.sqrt(1<<precision);
+    }
+
+
+    /**
+     * Hash a sequence of bytes for use with {@link #add(long)}.
+     *
+     * @param data   The array containing the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     *
+     * @return A 64-bit hash.
+     */
+    public static long hash(final byte[] data,
+                            final int offset,
+                            final int length) {
+        long h = FNV_OFFSET_BASIS;
+        for (int i=offset; i<offset+length; i++) {
+            h ^= data[i]&0xff;
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+
+    /**
+     * Hash a long for use with {@link #add(long)}.
+     *
+     * @param value The value to hash.
+     *
+     * @return A 64-bit hash.
+     */
+    public static long hash(final long value) {
+        return mix(value);
+    }
+
+
+    /**
+     * Add a value.
+     *
+     * @param hash A well mixed 64-bit hash of the value, such as one returned
+     *             by {@link #hash(byte[], int, int)}.
+     */
+    public void add(final long hash) {
+        final int index = (int) (hash>>>(64-_precision));
+        final long rest = hash<<_precision;
+        final int rank =
+            (0==rest)
+                ? 64-_precision+1
+                : Long.numberOfLeadingZeros(rest)+1;
+        if (rank>_registers[index]) {
+            _registers[index] = (byte) rank;
+        }
+    }
+
+
+    /**
+     * Add the values of another sketch to this one.
+     *
+     * @param other The sketch to merge; it must have the same precision as
+     *              this one.
+     */
+    public void merge(final HyperLogLog other) {
+        if (other._precision!=_precision) {
+            throw new IllegalArgumentException(
+                "Cannot merge sketches with different precision.");
+        }
+        for (int i=0; i<_registers.length; i++) {
+            if (other._registers[i]>_registers[i]) {
+                _registers[i] = other._registers[i];
+            }
+        }
+    }
+
+
+    /**
+     * Remove all values from this sketch.
+     */
+    public void clear() {
+        Arrays.fill(_registers, (byte) 0);
+    }
+
+
+    /**
+     * Estimate the number of distinct values added.
+     *
+     * @return The estimated cardinality.
+     */
+    public long cardinality() {
+        final int m = _registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (final byte register : _registers) {
+            if (0==register) { zeros++; }
+            sum += 1d/(1L<<register);
+        }
+        if (zeros==m) { return 0; }
+
+        final double estimate = alpha(m)*m*m/sum;
+        if (estimate<=2.5*m && zeros>0) {
+            return Math.round(m*Math.log((double) m/zeros));
+        }
+        return Math.round(estimate);
+    }
+
+
+    /**
+     * Query the precision of this sketch.
+     *
+     * @return The precision.
+     */
+    public int getPrecision() {
+        return _precision;
+    }
+
+
+    /**
+     * Query the standard error of this sketch's estimates.
+     *
+     * @return The standard error, e.g. 0.01 for 1%.
+     */
+    public double getStandardError() {
+        return standardError(_precision);
+    }
+
+
+    private static double alpha(final int m) {
+        switch (m) {
+            case 16: return 0.673;
+            case 32: return 0.697;
+            case 64: return 0.709;
+            default: return 0.7213/(1+1.079/m);
+        }
+    }
+
+
+    /* The MurmurHash3 finalizer; spreads every input bit over the output. */
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h>>>33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h>>>33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h>>>33;
+        return h;
+    }
+}
@@ -0,0 +1,408 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.utils;
+
+import java.util.Arrays;
+
+
+/**
+ * A mergeable sketch that estimates quantiles with bounded relative error.
+ * <p>
+ * Values are counted in logarithmically sized bins: a value <em>v</em> is
+ * counted in bin <code>ceil(log(v)/log(gamma))</code> where
+ * <code>gamma = (1+a)/(1-a)</code> for a relative accuracy <em>a</em>. Any
+ * quantile estimate is then within <em>a</em> of the true value, relative
+ * to that value. Positive and negative values are binned separately;
+ * magnitudes below {@link #MIN_MAGNITUDE} are counted as zero.
+ * <p>
+ * Each sign holds at most <code>maxBins</code> bins, allocated as needed,
+ * so memory is bounded whatever the number of values. If values span more
+ * bins than that, the bins nearest zero are merged, losing accuracy only
+ * for the smallest magnitudes. Counts are doubles so that values can be
+ * weighted, for example by an inverse sample rate.
+ * <p>
+ * Sketches with the same relative accuracy can be merged exactly. A sketch
+ * is not thread-safe.
+ *
+ * @author Keith Webster Johnston.
+ */
+public final class QuantileSketch {
+
+    /** The relative accuracy used if none is specified. */
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+    /** The maximum number of bins per sign used if none is specified. */
+    public static final int DEFAULT_MAX_BINS = 1024;
+
+    /** Values with a smaller magnitude are counted as zero. */
+    public static final double MIN_MAGNITUDE = 1e-9;
+
+    private static final int INITIAL_BINS = 32;
+
+
+    /* A contiguous window of bin counts, indexed from _offset. */
+    private static final class Bins {
+
+        private final int _maxBins;
+        private double[]  _counts = new double[0];
+        private int       _offset;
+        private int       _min;
+        private int       _max;
+
+
+        Bins(final int maxBins) {
+            _maxBins = maxBins;
+        }
+
+
+        void add(final int index, final double count) {
+            int i = index;
+            if (0==_counts.length) {
+                _counts = new double[Math.min(INITIAL_BINS, _maxBins)];
+                _offset = i;
+                _min = _max = i;
+            } else if (i<_offset || i>=_offset+_counts.length) {
+                i = extend(Math.min(i, _min), Math.max(i, _max), i);
+            }
+            _counts[i-_offset] += count;
+            _min = Math.min(_min, i);
+            _max = Math.max(_max, i);
+        }
+
+
+        /*
+         * Re-lay the window to cover [lo, hi], merging the lowest bins if
+         * that would need more than _maxBins. Returns the bin to use for
+         * 'index', which may have been merged.
+         */
+        private int extend(final int low, final int high, final int index) {
+            final int lo = (high-low+1>_maxBins) ? high-_maxBins+1 : low;
+            int length = _counts.length;
+            while (length<high-lo+1) { length *= 2; }
+            length = Math.min(length, _maxBins);
+            final int offset = (index<_offset) ? high-length+1 : lo;
+
+            final double[] counts = new double[length];
+            for (int i=0; i<_counts.length; i++) {
+                if (0!=_counts[i]) {
+                    counts[Math.max(_offset+i, lo)-offset] += _counts[i];
+                }
+            }
+            _counts = counts;
+            _offset = offset;
+            _min = Math.max(_min, lo);
+            _max = Math.max(_max, lo);
+            return Math.max(index, lo);
+        }
+
+
+        boolean isEmpty() {
+            return 0==_counts.length;
+        }
+
+
+        double get(final int index) {
+            return _counts[index-_offset];
+        }
+
+
+        void merge(final Bins other) {
+            if (other.isEmpty()) { return; }
+            for (int i=other._max; i>=other._min; i--) {
+                final double count = other.get(i);
+                if (0!=count) { add(i, count); }
+            }
+        }
+
+
+        void clear() {
+            _counts = new double[0];
+        }
+
+
+        void copyFrom(final Bins other) {
+            _counts = Arrays.copyOf(other._counts, other._counts.length);
+            _offset = other._offset;
+            _min = other._min;
+            _max = other._max;
+        }
+    }
+
+
+    private final double _relativeAccuracy;
+    private final double _gamma;
+    private final double _logGamma;
+    private final Bins   _positive;
+    private final Bins   _negative;
+    private double       _zeroCount;
+    private double       _count;
+    private double       _sum;
+    private double       _sumOfSquares;
+    private double       _min = Double.POSITIVE_INFINITY;
+    private double       _max = Double.NEGATIVE_INFINITY;
+
+
+    /**
+     * Constructor.
+     */
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BINS);
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param relativeAccuracy The relative accuracy of quantile estimates,
+     *                         greater than 0 and less than 1.
+     * @param maxBins          The maximum number of bins for each sign.
+     */
+    public QuantileSketch(final double relativeAccuracy, final int maxBins) {
+        if (!(relativeAccuracy>0 && relativeAccuracy<1)) {
+            throw new IllegalArgumentException(
+                "Relative accuracy must be between 0 and 1: "
+                +relativeAccuracy);
+        }
+        if (maxBins<1) {
+            throw new IllegalArgumentException(
+                "Max bins must be positive: "+maxBins);
+        }
+        _relativeAccuracy = relativeAccuracy;
+        _gamma = (1+relativeAccuracy)/(1-relativeAccuracy);
+        _logGamma = Math.log(_gamma);
+        _positive = new Bins(maxBins);
+        _negative = new Bins(maxBins);
+    }
+
+
+    /**
+     * Add a value.
+     *
+     * @param value The value to add.
+     */
+    public void add(final double value) {
+        add(value, 1);
+    }
+
+
+    /**
+     * Add a weighted value.
+     *
+     * @param value  The value to add.
+     * @param weight The weight of the value; a positive number.
+     */
+    public void add(final double value, final double weight) {
+        if (Double.isNaN(value)) { return; }
+        if (value>=MIN_MAGNITUDE) {
+            _positive.add(index(value), weight);
+        } else if (value<=-MIN_MAGNITUDE) {
+            _negative.add(index(-value), weight);
+        } else {
+            _zeroCount += weight;
+        }
+        _count += weight;
+        _sum += value*weight;
+        _sumOfSquares += value*value*weight;
+        if (value<_min) { _min = value; }
+        if (value>_max) { _max = value; }
+    }
+
+
+    /**
+     * Add the values of another sketch to this one.
+     *
+     * @param other The sketch to merge; it must have the same relative
+     *              accuracy as this one.
+     */
+    public void merge(final QuantileSketch other) {
+        if (other._relativeAccuracy!=_relativeAccuracy) {
+            throw new IllegalArgumentException(
+                "Cannot merge sketches with different relative accuracy.");
+        }
+        _positive.merge(other._positive);
+        _negative.merge(other._negative);
+        _zeroCount += other._zeroCount;
+        _count += other._count;
+        _sum += other._sum;
+        _sumOfSquares += other._sumOfSquares;
+        _min = Math.min(_min, other._min);
+        _max = Math.max(_max, other._max);
+    }
+
+
+    /**
+     * Create an independent copy of this sketch.
+     *
+     * @return The copy.
+     */
+    public QuantileSketch copy() {
+        final QuantileSketch copy =
+            new QuantileSketch(_relativeAccuracy, _positive._maxBins);
+        copy._positive.copyFrom(_positive);
+        copy._negative.copyFrom(_negative);
+        copy._zeroCount = _zeroCount;
+        copy._count = _count;
+        copy._sum = _sum;
+        copy._sumOfSquares = _sumOfSquares;
+        copy._min = _min;
+        copy._max = _max;
+        return copy;
+    }
+
+
+    /**
+     * Remove all values from this sketch.
+     */
+    public void clear() {
+        _positive.clear();
+        _negative.clear();
+        _zeroCount = 0;
+        _count = 0;
+        _sum = 0;
+        _sumOfSquares = 0;
+        _min = Double.POSITIVE_INFINITY;
+        _max = Double.NEGATIVE_INFINITY;
+    }
+
+
+    /**
+     * Estimate the value at a quantile.
+     *
+     * @param quantile The quantile, between 0 and 1 inclusive.
+     *
+     * @return The estimated value, or zero if the sketch is empty.
+     */
+    public double getQuantile(final double quantile) {
+        if (quantile<0 || quantile>1) {
+            throw new IllegalArgumentException(
+                "Quantile must be between 0 and 1: "+quantile);
+        }
+        if (0==_count) { return 0; }
+        if (0==quantile) { return _min; }
+        if (1==quantile) { return _max; }
+
+        final double rank = quantile*(_count-1);
+        double seen = 0;
+        if (!_negative.isEmpty()) {
+            for (int i=_negative._max; i>=_negative._min; i--) {
+                seen += _negative.get(i);
+                if (seen>rank) { return clamp(-value(i)); }
+            }
+        }
+        seen += _zeroCount;
+        if (seen>rank) { return clamp(0); }
+        if (!_positive.isEmpty()) {
+            for (int i=_positive._min; i<=_positive._max; i++) {
+                seen += _positive.get(i);
+                if (seen>rank) { return clamp(value(i)); }
+            }
+        }
+        return _max;
+    }
+
+
+    /**
+     * Query the total weight of the values added.
+     *
+     * @return The count.
+     */
+    public double getCount() {
+        return _count;
+    }
+
+
+    /**
+     * Query the weighted sum of the values added.
+     *
+     * @return The sum.
+     */
+    public double getSum() {
+        return _sum;
+    }
+
+
+    /**
+     * Query the smallest value added.
+     *
+     * @return The minimum, or zero if the sketch is empty.
+     */
+    public double getMin() {
+        return (0==_count) ? 0 : _min;
+    }
+
+
+    /**
+     * Query the largest value added.
+     *
+     * @return The maximum, or zero if the sketch is empty.
+     */
+    public double getMax() {
+        return (0==_count) ? 0 : _max;
+    }
+
+
+    /**
+     * Query the weighted mean of the values added.
+     *
+     * @return The mean, or zero if the sketch is empty.
+     */
+    public double getMean() {
+        return (0==_count) ? 0 : _sum/_count;
+    }
+
+
+    /**
+     * Query the weighted standard deviation of the values added.
+     *
+     * @return The standard deviation, or zero if the sketch is empty.
+     */
+    public double getStdDev() {
+        if (0==_count) { return 0; }
+        final double mean = _sum/_count;
+        return Math.sqrt(Math.max(0, _sumOfSquares/_count-mean*mean));
+    }
+
+
+    /**
+     * Query the relative accuracy of this sketch.
+     *
+     * @return The relative accuracy.
+     */
+    public double getRelativeAccuracy() {
+        return _relativeAccuracy;
+    }
+
+
+    private int index(final double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude)/_logGamma);
+    }
+
+
+    /* The midpoint of a bin, which is within the relative accuracy of any
+     * value in it. */
+    private double value(final int index) {
+        return 2*Math.pow(_gamma, index)/(1+_gamma);
+    }
+
+
+    private double clamp(final double value) {
+        return Math.max(_min, Math.min(_max, value));
+    }
+}
@@ -0,0 +1,383 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+package com.johnstok.utils;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A service that receives newline-delimited text over TCP.
+ * <p>
+ * Each receiver runs a selector on its own thread, serving any number of
+ * connections. Several receivers may share a server channel; each accepts
+ * connections from it, and serves those it accepted.
+ * <p>
+ * Complete lines are passed to {@link #processLines(ByteBuffer)} in
+ * batches, as many as each read delivers. A line split across reads is
+ * carried over in a buffer that belongs to its connection; the buffer is
+ * taken from a pool when needed and returned once the connection has no
+ * partial line, so idle connections hold no buffer. Lines longer than a
+ * buffer are discarded and counted.
+ *
+ * @author Keith Webster Johnston.
+ */
+public abstract class TcpReceiver
+    extends
+        RunnableService {
+
+    /** The buffer size used if none is specified. */
+    public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final ServerSocketChannel _server;
+    private final Selector _selector;
+    private final BufferPool _buffers;
+    // Only touched by the receiver thread.
+    private final Set<Connection> _open = new HashSet<>();
+    private final AtomicLong _connections = new AtomicLong();
+    private final AtomicLong _openConnections = new AtomicLong();
+    private final AtomicLong _bytes = new AtomicLong();
+    private final AtomicLong _oversizedLines = new AtomicLong();
+    private final AtomicLong _receiveErrors = new AtomicLong();
+
+
+    /* The state of one connection. */
+    private static final class Connection {
+        final SocketChannel _channel;
+        ByteBuffer _buffer;
+        boolean _discarding;
+
+        Connection(final SocketChannel channel) {
+            _channel = channel;
+        }
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param server     A bound, non-blocking server channel to accept
+     *                   connections from. The channel may be shared with
+     *                   other receivers; it is closed when this receiver
+     *                   stops.
+     * @param bufferSize The size of each connection's buffer, in bytes,
+     *                   which is also the longest line accepted.
+     *
+     * @throws IOException If it isn't possible to open a selector.
+     */
+    public TcpReceiver(final ServerSocketChannel server,
+                       final int bufferSize) throws IOException {
+        _server = Objects.requireNonNull(server);
+        _buffers = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+        _selector = Selector.open();
+        try {
+            _server.register(_selector, SelectionKey.OP_ACCEPT);
+        } catch (final IOException | RuntimeException e) {
+            _selector.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Open a non-blocking TCP server channel bound to the specified port.
+     *
+     * @param port              The TCP port to listen on; zero picks a free
+     *                          port.
+     * @param receiveBufferSize The SO_RCVBUF size to request for accepted
+     *                          connections, in bytes; zero or less leaves the
+     *                          OS default in place.
+     *
+     * @throws IOException If it isn't possible to open a TCP socket.
+     *
+     * @return The bound channel.
+     */
+    public static ServerSocketChannel openServerChannel(
+                                        final int port,
+                                        final int receiveBufferSize)
+                                                        throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+            if (receiveBufferSize>0) {
+                channel.setOption(
+                    StandardSocketOptions.SO_RCVBUF,
+                    Integer.valueOf(receiveBufferSize));
+            }
+            channel.bind(new InetSocketAddress(port));
+            return channel;
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public final void run() {
+        try {
+            while (isRunning()) {
+                _selector.select();
+                final Iterator<SelectionKey> keys =
+                    _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key, (Connection) key.attachment());
+                    }
+                }
+            }
+        } catch (final ClosedSelectorException e) {
+            // Stopped.
+        } catch (final IOException e) {
+            _receiveErrors.incrementAndGet();
+            System.err.println("Error selecting: "+e.getMessage());
+        } finally {
+            for (final Connection connection : _open) {
+                closeQuietly(connection._channel);
+            }
+            _open.clear();
+            _openConnections.lazySet(0);
+            try {
+                _selector.close();
+            } catch (final IOException e) {
+                System.err.println("Error closing selector: "+e.getMessage());
+            }
+        }
+    }
+
+
+    private void accept() {
+        final SocketChannel channel;
+        try {
+            channel = _server.accept();
+        } catch (final IOException e) {
+            _receiveErrors.incrementAndGet();
+            System.err.println("Error accepting: "+e.getMessage());
+            return;
+        }
+        if (null==channel) {
+            return; // Accepted by another receiver.
+        }
+        try {
+            channel.configureBlocking(false);
+            final Connection connection = new Connection(channel);
+            channel.register(_selector, SelectionKey.OP_READ, connection);
+            _open.add(connection);
+            // Only this thread writes the counters, so a lazy set is enough.
+            _connections.lazySet(_connections.get()+1);
+            _openConnections.lazySet(_open.size());
+        } catch (final IOException e) {
+            _receiveErrors.incrementAndGet();
+            System.err.println("Error accepting: "+e.getMessage());
+            closeQuietly(channel);
+        }
+    }
+
+
+    private void read(final SelectionKey key, final Connection connection) {
+        if (null==connection._buffer) {
+            connection._buffer = _buffers.acquire();
+        }
+        final ByteBuffer buffer = connection._buffer;
+        try {
+            final int read = connection._channel.read(buffer);
+            if (read<0) {
+                // The last line needn't end with a newline.
+                buffer.flip();
+                if (!connection._discarding && buffer.hasRemaining()) {
+                    processLines(buffer);
+                }
+                close(key, connection);
+                return;
+            }
+            _bytes.lazySet(_bytes.get()+read);
+            frame(connection);
+        } catch (final IOException | RuntimeException e) {
+            _receiveErrors.incrementAndGet();
+            System.err.println("Error receiving: "+e.getMessage());
+            close(key, connection);
+        }
+    }
+
+
+    /*
+     * Process the complete lines in a connection's buffer and keep any
+     * partial line for the next read.
+     */
+    private void frame(final Connection connection) {
+        final ByteBuffer buffer = connection._buffer;
+        buffer.flip();
+
+        if (connection._discarding) {
+            int i = buffer.position();
+            while (i<buffer.limit() && buffer.get(i)!='\n') { i++; }
+            if (i==buffer.limit()) {
+                buffer.clear();
+                return;
+            }
+            connection._discarding = false;
+            buffer.position(i+1);
+        }
+
+        int end = buffer.limit();
+        while (end>buffer.position() && buffer.get(end-1)!='\n') { end--; }
+        if (end>buffer.position()) {
+            final int limit = buffer.limit();
+            buffer.limit(end);
+            processLines(buffer);
+            buffer.limit(limit).position(end);
+        }
+
+        if (!buffer.hasRemaining()) {
+            _buffers.release(buffer);
+            connection._buffer = null;
+        } else if (0==buffer.position()
+                   && buffer.limit()==buffer.capacity()) {
+            // A full buffer without a newline: drop the line.
+            _oversizedLines.incrementAndGet();
+            connection._discarding = true;
+            buffer.clear();
+        } else {
+            buffer.compact();
+        }
+    }
+
+
+    private void close(final SelectionKey key, final Connection connection) {
+        key.cancel();
+        closeQuietly(connection._channel);
+        if (null!=connection._buffer) {
+            _buffers.release(connection._buffer);
+            connection._buffer = null;
+        }
+        _open.remove(connection);
+        _openConnections.lazySet(_open.size());
+    }
+
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            System.err.println("Error closing channel: "+e.getMessage());
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doStop() {
+        try {
+            _server.close();
+        } catch (final IOException e) {
+            System.err.println("Error closing channel: "+e.getMessage());
+        }
+        // Closing the selector here would race with the receiver thread's
+        // iteration of its selected keys, so the thread closes it instead.
+        _selector.wakeup();
+    }
+
+
+    /**
+     * Query the number of connections accepted by this receiver.
+     *
+     * @return The number of connections.
+     */
+    public final long getConnections() {
+        return _connections.get();
+    }
+
+
+    /**
+     * Query the number of connections this receiver currently serves.
+     *
+     * @return The number of open connections.
+     */
+    public final long getOpenConnections() {
+        return _openConnections.get();
+    }
+
+
+    /**
+     * Query the number of bytes received by this receiver.
+     *
+     * @return The number of bytes received.
+     */
+    public final long getBytes() {
+        return _bytes.get();
+    }
+
+
+    /**
+     * Query the number of lines discarded for being longer than a buffer.
+     *
+     * @return The number of oversized lines.
+     */
+    public final long getOversizedLines() {
+        return _oversizedLines.get();
+    }
+
+
+    /**
+     * Query the number of errors accepting, receiving or processing data.
+     *
+     * @return The number of errors.
+     */
+    public final long getReceiveErrors() {
+        return _receiveErrors.get();
+    }
+
+
+    /**
+     * Process one or more complete lines.
+     * <p>
+     * The buffer is positioned at the start of the first line and its limit
+     * is the end of the last; the last line may or may not end with a
+     * newline. The buffer is reused, so implementations must consume the
+     * lines and not retain it after this method returns.
+     *
+     * @param lines The lines to process.
+     */
+    protected abstract void processLines(ByteBuffer lines);
+}
@@ -0,0 +1,231 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.johnstok.jstatsd.Aggregator;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketExpiry;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.Flush;
+import com.johnstok.jstatsd.TimerStats;
+import com.johnstok.utils.HyperLogLog;
+import com.johnstok.utils.QuantileSketch;
+
+
+
+/**
+ * Tests for the {@link Aggregator} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class AggregatorTest {
+
+    private final BucketTable _buckets = new BucketTable(false);
+    private final Bucket _c = _buckets.get("c");
+    private final Bucket _g = _buckets.get("g");
+    private final Bucket _t = _buckets.get("t");
+    private final Bucket _s = _buckets.get("s");
+
+
+    @Test
+    public void aggregatesEachTypePerBucket() {
+        final LastFlush backend = new LastFlush();
+        final Aggregator aggregator =
+            new Aggregator(backend, 10, TimeUnit.SECONDS);
+
+        aggregator.count(_c, 2);
+        aggregator.count(_c, 0.5);
+        aggregator.gauge(_g, 1);
+        aggregator.gauge(_g, 7);
+        for (int i=1; i<=100; i++) {
+            aggregator.time(_t, i);
+        }
+        aggregator.mark(_s, 1);
+        aggregator.mark(_s, 2);
+        aggregator.mark(_s, 1);
+        aggregator.flush();
+
+        final Flush flush = backend.getFlush();
+        assertEquals(2.5, flush.getCounters().get(_c).doubleValue(), 0);
+        assertEquals(0.25, flush.perSecond(2.5), 0);
+        assertEquals(7, flush.getGauges().get(_g).doubleValue(), 0);
+        final TimerStats t = flush.getTimers().get(_t);
+        assertEquals(100, t.getCount(), 0);
+        assertEquals(1, t.getMin(), 0);
+        assertEquals(100, t.getMax(), 0);
+        assertEquals(50.5, t.getMean(), 0);
+        assertEquals(90, t.getPercentile(.9), 90*0.01);
+        assertEquals(2, flush.getSets().get(_s).longValue());
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsSubMillisecondFlushInterval() {
+        new Aggregator(new LastFlush(), 500, TimeUnit.MICROSECONDS);
+    }
+
+
+    @Test
+    public void appliesSampleRates() {
+        final LastFlush backend = new LastFlush();
+        final Aggregator aggregator =
+            new Aggregator(backend, 10, TimeUnit.SECONDS);
+
+        aggregator.count(_c, 1, 0.01);
+        aggregator.count(_c, 2, 0.5);
+        aggregator.time(_t, 10, 0.1);
+        aggregator.time(_t, 20, 0.1);
+        aggregator.flush();
+
+        final Flush flush = backend.getFlush();
+        assertEquals(104, flush.getCounters().get(_c).doubleValue(), 1e-9);
+        final TimerStats t = flush.getTimers().get(_t);
+        assertEquals(20, t.getCount(), 1e-9);
+        assertEquals(2, t.getSampleCount());
+        assertEquals(2, flush.perSecond(t.getCount()), 1e-9);
+        assertEquals(15, t.getMean(), 0);
+    }
+
+
+    @Test
+    public void resetsAllButGaugesAfterFlush() {
+        final LastFlush backend = new LastFlush();
+        final Aggregator aggregator =
+            new Aggregator(backend, 10, TimeUnit.SECONDS);
+
+        aggregator.count(_c, 2);
+        aggregator.gauge(_g, 7);
+        aggregator.time(_t, 1);
+        aggregator.mark(_s, 1);
+        aggregator.flush();
+        aggregator.flush();
+
+        final Flush flush = backend.getFlush();
+        assertEquals(0, flush.getCounters().get(_c).doubleValue(), 0);
+        assertEquals(7, flush.getGauges().get(_g).doubleValue(), 0);
+        assertEquals(0, flush.getTimers().get(_t).getCount(), 0);
+        assertEquals(0, flush.getSets().get(_s).longValue());
+    }
+
+
+    @Test
+    public void adjustsGaugesWithoutLosingUpdates() throws Exception {
+        final LastFlush backend = new LastFlush();
+        final Aggregator aggregator =
+            new Aggregator(backend, 10, TimeUnit.SECONDS);
+        final Bucket fresh = _buckets.get("fresh");
+
+        aggregator.gauge(_g, 10);
+        aggregator.adjustGauge(fresh, -3);
+        final Thread[] threads = new Thread[4];
+        for (int i=0; i<threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n=0; n<100000; n++) {
+                        aggregator.adjustGauge(_g, 0.5);
+                        aggregator.adjustGauge(_g, -1);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (final Thread t : threads) { t.join(); }
+        aggregator.flush();
+
+        final Flush flush = backend.getFlush();
+        assertEquals(-199990, flush.getGauges().get(_g).doubleValue(), 0);
+        assertEquals(-3, flush.getGauges().get(fresh).doubleValue(), 0);
+    }
+
+
+    @Test
+    public void dropsStateOfExpiredBuckets() {
+        final LastFlush backend = new LastFlush();
+        final Aggregator aggregator =
+            new Aggregator(backend, 10, TimeUnit.SECONDS);
+        final BucketTable buckets = new BucketTable(false);
+        final Bucket idle = buckets.get("idle");
+        final BucketExpiry expiry =
+            new BucketExpiry(buckets, aggregator, 1, 10, TimeUnit.SECONDS);
+
+        aggregator.count(idle, 1);
+        aggregator.gauge(idle, 1);
+        aggregator.time(idle, 1);
+        aggregator.set(idle, 1);
+        assertEquals(0, expiry.expireIdle());
+        assertEquals(1, expiry.expireIdle());
+        aggregator.flush();
+
+        final Flush flush = backend.getFlush();
+        assertTrue(flush.getCounters().isEmpty());
+        assertTrue(flush.getGauges().isEmpty());
+        assertTrue(flush.getTimers().isEmpty());
+        assertTrue(flush.getSets().isEmpty());
+
+        // Late events for the expired bucket leave no state behind.
+        aggregator.count(idle, 1);
+        aggregator.adjustGauge(idle, 1);
+        aggregator.flush();
+        assertTrue(backend.getFlush().getCounters().isEmpty());
+        assertTrue(backend.getFlush().getGauges().isEmpty());
+    }
+
+
+    @Test
+    public void flushesEveryShard() {
+        final LastFlush backend = new LastFlush();
+        final Aggregator aggregator =
+            new Aggregator(
+                backend,
+                10,
+                TimeUnit.SECONDS,
+                QuantileSketch.DEFAULT_RELATIVE_ACCURACY,
+                QuantileSketch.DEFAULT_MAX_BINS,
+                HyperLogLog.DEFAULT_PRECISION,
+                5);
+        assertEquals(8, aggregator.getShards());
+        final BucketTable buckets = new BucketTable(false);
+        for (int i=0; i<1000; i++) {
+            final Bucket b = buckets.get("b."+i);
+            aggregator.count(b, i);
+            aggregator.gauge(b, -i);
+            aggregator.time(b, i);
+            aggregator.set(b, i);
+        }
+        aggregator.flush();
+
+        final Flush flush = backend.getFlush();
+        assertEquals(1000, flush.getCounters().size());
+        assertEquals(1000, flush.getGauges().size());
+        assertEquals(1000, flush.getTimers().size());
+        assertEquals(1000, flush.getSets().size());
+        final Bucket last = buckets.get("b.999");
+        assertEquals(999, flush.getCounters().get(last).doubleValue(), 0);
+        assertEquals(-999, flush.getGauges().get(last).doubleValue(), 0);
+        assertTrue(aggregator.getLastFlushNanos()>0);
+
+        aggregator.flush();
+        assertEquals(0, backend.getFlush().getCounters().get(last).doubleValue(), 0);
+        aggregator.stop();
+    }
+}
@@ -0,0 +1,155 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import com.johnstok.jstatsd.BigDecimalBackend;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.StatsdParser;
+
+
+
+/**
+ * Tests for the {@link BigDecimalBackend} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class BigDecimalBackendTest {
+
+    private static final class Recorder
+        extends
+            BigDecimalBackend {
+
+        final List<String> _events = new ArrayList<>();
+
+
+        @Override
+        public void count(final Bucket bucket, final BigDecimal i) {
+            record(bucket, i, "c");
+        }
+
+
+        @Override
+        public void gauge(final Bucket bucket, final BigDecimal i) {
+            record(bucket, i, "g");
+        }
+
+
+        @Override
+        public void adjustGauge(final Bucket bucket, final BigDecimal delta) {
+            record(bucket, delta, "g");
+        }
+
+
+        @Override
+        public void time(final Bucket bucket, final BigDecimal i) {
+            record(bucket, i, "ms");
+        }
+
+
+        @Override
+        public void histogram(final Bucket bucket, final BigDecimal i) {
+            record(bucket, i, "h");
+        }
+
+
+        @Override
+        public void mark(final Bucket bucket, final BigDecimal i) {
+            record(bucket, i, "m");
+        }
+
+
+        private void record(final Bucket bucket,
+                            final BigDecimal i,
+                            final String type) {
+            _events.add(
+                bucket+":"+i.stripTrailingZeros().toPlainString()+"|"+type);
+        }
+    }
+
+
+    @Test
+    public void scalesSampledCounts() {
+        final Recorder backend = new Recorder();
+        final StatsdParser parser =
+            new StatsdParser(backend, new BucketTable(false));
+
+        parse(parser, "a:1|c|@0.1\nb:2.5|c|@0.5\nc:3|ms|@0.1\nd:4|c");
+
+        assertEquals(
+            "[a:10|c, b:5|c, c:3|ms, d:4|c]", backend._events.toString());
+    }
+
+
+    @Test
+    public void oversizedValuesDontLoseTheRestOfThePacket() {
+        final Recorder backend = new Recorder();
+        final StatsdParser parser =
+            new StatsdParser(backend, new BucketTable(false));
+        final StringBuilder huge = new StringBuilder("1");
+        for (int i=0; i<400; i++) { huge.append('0'); }
+
+        parse(parser, "a:"+huge+"|ms\nb:-"+huge+".5|g\nc:1|c");
+
+        assertEquals("[c:1|c]", backend._events.toString());
+        assertEquals(
+            2, parser.getMalformedLines(StatsdParser.Failure.VALUE));
+    }
+
+
+    @Test
+    public void scalingDoesNotOverflow() {
+        final Recorder backend = new Recorder();
+        final StatsdParser parser =
+            new StatsdParser(backend, new BucketTable(false));
+        final StringBuilder large = new StringBuilder("1");
+        for (int i=0; i<305; i++) { large.append('0'); }
+
+        parse(parser, "a:"+large+".5|c|@0.000001"); // Over Double.MAX_VALUE.
+
+        assertEquals(
+            "[a:"+large+"000000|c]", backend._events.toString());
+    }
+
+
+    @Test
+    public void ignoresNonFiniteValues() {
+        final Recorder backend = new Recorder();
+        final Bucket b = new BucketTable(false).get("b");
+
+        backend.gauge(b, Double.POSITIVE_INFINITY);
+        backend.adjustGauge(b, Double.NaN);
+        backend.time(b, Double.NEGATIVE_INFINITY, 1);
+        backend.count(b, 1.5, 1);
+
+        assertEquals("[b:1.5|c]", backend._events.toString());
+    }
+
+
+    private static void parse(final StatsdParser parser, final String packet) {
+        final byte[] bytes = packet.getBytes(StandardCharsets.UTF_8);
+        parser.parse(bytes, 0, bytes.length);
+    }
+}
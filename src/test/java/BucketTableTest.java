@@ -0,0 +1,240 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.BucketTable.OverflowPolicy;
+
+
+
+/**
+ * Tests for the {@link BucketTable} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class BucketTableTest {
+
+    @Test
+    public void returnsSameBucketForSameBytes() {
+        final BucketTable table = new BucketTable(false);
+        final byte[] data = "xx foo.bar xx".getBytes(StandardCharsets.UTF_8);
+
+        final Bucket a = table.get(data, 3, 7);
+        final Bucket b = table.get("foo.bar");
+
+        assertSame(a, b);
+        assertEquals("foo.bar", a.getName());
+        assertEquals(1, table.size());
+    }
+
+
+    @Test
+    public void allocatesSequentialIdsAcrossResizes() {
+        final BucketTable table = new BucketTable(false);
+        for (int i=0; i<10000; i++) {
+            assertEquals(i, table.get("bucket."+i).getId());
+        }
+        for (int i=0; i<10000; i++) {
+            assertEquals(i, table.get("bucket."+i).getId());
+        }
+        assertEquals(10000, table.size());
+    }
+
+
+    @Test
+    public void sanitizesNames() {
+        final BucketTable table = new BucketTable(true);
+
+        final Bucket a = table.get("a  b/c!d");
+        final Bucket b = table.get("a\tb/cd");
+
+        assertEquals("a_b-cd", a.getName());
+        assertSame(a, b);
+        assertEquals(1, table.size());
+    }
+
+
+    @Test
+    public void internsNameAndCanonicalTags() {
+        final BucketTable table = new BucketTable(false);
+        final byte[] data = "a|b:1,a:2|b:1,a:2,b:1".getBytes(StandardCharsets.UTF_8);
+
+        final Bucket tagged = table.get(data, 0, 1, 2, 7);
+        final Bucket reordered = table.get(data, 0, 1, 10, 11);
+        final Bucket untagged = table.get(data, 0, 1);
+
+        assertSame(tagged, reordered);
+        assertSame(tagged, table.get(data, 0, 1, 2, 7));
+        assertNotSame(tagged, untagged);
+        assertEquals("a", tagged.getName());
+        assertEquals("a:2,b:1", tagged.getTags());
+        assertEquals(2, tagged.getTagList().size());
+        assertEquals("a|#a:2,b:1", tagged.toString());
+        assertFalse(untagged.isTagged());
+        assertEquals(2, table.size());
+    }
+
+
+    @Test
+    public void sharesTagSetsBetweenBuckets() {
+        final BucketTable table = new BucketTable(false);
+        final byte[] data = "a|b|env:prod".getBytes(StandardCharsets.UTF_8);
+
+        final Bucket a = table.get(data, 0, 1, 4, 8);
+        final Bucket b = table.get(data, 2, 1, 4, 8);
+
+        assertNotSame(a, b);
+        assertSame(a.getTags(), b.getTags());
+    }
+
+
+    @Test
+    public void tagOrdersAreLimitedButStillFound() {
+        final BucketTable table = new BucketTable(false);
+        final Bucket first = tagged(table, "a", "t0,t1,t2,t3");
+        for (int i=0; i<24; i++) {
+            final String tags = "t"+(i%4)+",t"+((i+1)%4)+",t"+((i+2)%4)+",t"+((i+3)%4);
+            assertSame(first, tagged(table, "a", tags+((i<12) ? "" : ",")));
+        }
+        assertEquals(1, table.size());
+    }
+
+
+    @Test
+    public void rejectsNewNamesWhenFull() {
+        final BucketTable table =
+            new BucketTable(false, 2, OverflowPolicy.REJECT, null);
+        final Bucket a = table.get("a");
+        final Bucket b = table.get("b");
+
+        assertNull(table.get("c"));
+        assertNull(table.get("c"));
+        assertSame(a, table.get("a"));
+        assertSame(b, table.get("b"));
+        assertEquals(2, table.getRejected());
+        assertEquals(2, table.size());
+    }
+
+
+    @Test
+    public void foldsNewNamesIntoOverflowBucketWhenFull() {
+        final BucketTable table =
+            new BucketTable(false, 1, OverflowPolicy.OVERFLOW, "overflow");
+        final Bucket a = table.get("a");
+
+        final Bucket overflow = table.get("b");
+        assertEquals("overflow", overflow.getName());
+        assertSame(overflow, table.get("c"));
+        assertSame(a, table.get("a"));
+        assertEquals(2, table.getOverflowed());
+    }
+
+
+    @Test
+    public void fullTableRejectsWithoutTheLock() throws Exception {
+        final BucketTable table =
+            new BucketTable(false, 1, OverflowPolicy.REJECT, null);
+        table.get("a");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (table) { // Held as if by a slow insert.
+                final Future<Bucket> lookup =
+                    executor.submit(new Callable<Bucket>() {
+                        @Override
+                        public Bucket call() {
+                            return table.get("b");
+                        }
+                    });
+                assertNull(lookup.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, table.getRejected());
+    }
+
+
+    @Test
+    public void pinnedBucketsIgnoreLimit() {
+        final BucketTable table =
+            new BucketTable(false, 1, OverflowPolicy.REJECT, null);
+        final Bucket pinned = table.pin("self");
+
+        assertNotNull(table.get("a"));
+        assertSame(pinned, table.get("self"));
+        assertNull(table.get("b"));
+    }
+
+
+    @Test
+    public void expiresIdleBucketsAndReusesIds() {
+        final BucketTable table = new BucketTable(false);
+        final Bucket idle = table.get("idle");
+        final Bucket busy = table.get("busy");
+        final Bucket pinned = table.pin("pinned");
+
+        assertTrue(table.expire(1).isEmpty());
+        table.get("busy");
+        final List<Bucket> expired = table.expire(1);
+
+        assertEquals(Collections.singletonList(idle), expired);
+        assertTrue(idle.isExpired());
+        assertFalse(busy.isExpired());
+        assertFalse(pinned.isExpired());
+        assertEquals(2, table.size());
+        assertEquals(1, table.getExpired());
+
+        // The name gets a new bucket, which reuses the expired id.
+        final Bucket returned = table.get("idle");
+        assertNotSame(idle, returned);
+        assertEquals(idle.getId(), returned.getId());
+        assertFalse(returned.isExpired());
+    }
+
+
+    @Test
+    public void expiryFreesRoomUnderLimit() {
+        final BucketTable table =
+            new BucketTable(false, 1, OverflowPolicy.REJECT, null);
+        table.get("a");
+        assertNull(table.get("b"));
+
+        table.expire(0);
+        assertNotNull(table.get("b"));
+    }
+
+
+    private static Bucket tagged(final BucketTable table,
+                                 final String name,
+                                 final String tags) {
+        final byte[] data = (name+tags).getBytes(StandardCharsets.UTF_8);
+        return table.get(data, 0, name.length(), name.length(), tags.length());
+    }
+}
@@ -0,0 +1,214 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import com.johnstok.jstatsd.Aggregator;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.Checkpoint;
+import com.johnstok.jstatsd.Checkpointable;
+
+
+
+/**
+ * Tests for the {@link Checkpoint} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class CheckpointTest {
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    private static final class Recorder
+        implements
+            Checkpoint.Visitor,
+            Checkpointable {
+
+        final Map<String, Double> _counters = new HashMap<>();
+        final Map<String, Double> _gauges = new HashMap<>();
+        final Map<Bucket, Double> _saved = new HashMap<>();
+
+
+        @Override
+        public void counter(final Bucket bucket, final double value) {
+            _counters.put(bucket.toString(), Double.valueOf(value));
+        }
+
+
+        @Override
+        public void gauge(final Bucket bucket, final double value) {
+            _gauges.put(bucket.toString(), Double.valueOf(value));
+        }
+
+
+        @Override
+        public void saveState(final Checkpoint.Visitor visitor) {
+            for (final Map.Entry<Bucket, Double> e : _saved.entrySet()) {
+                if (0==e.getKey().getId()%2) {
+                    visitor.counter(e.getKey(), e.getValue().doubleValue());
+                } else {
+                    visitor.gauge(e.getKey(), e.getValue().doubleValue());
+                }
+            }
+        }
+
+
+        @Override
+        public Checkpoint.Visitor restorer() {
+            return this;
+        }
+    }
+
+
+    @Test
+    public void roundTripsRecordsAcrossChunks() throws IOException {
+        final Path file = _folder.getRoot().toPath().resolve("state");
+        final BucketTable table = new BucketTable(false);
+        final Recorder source = new Recorder();
+        for (int i=0; i<100000; i++) { // Over 2MB of records.
+            source._saved.put(table.get("bucket."+i), Double.valueOf(i+0.5));
+        }
+
+        assertEquals(100000, Checkpoint.write(file, source));
+        final Recorder target = new Recorder();
+        assertEquals(
+            100000, Checkpoint.read(file, new BucketTable(false), target));
+
+        assertEquals(50000, target._counters.size());
+        assertEquals(50000, target._gauges.size());
+        assertEquals(
+            Double.valueOf(0.5), target._counters.get("bucket.0"));
+        assertEquals(
+            Double.valueOf(99999.5), target._gauges.get("bucket.99999"));
+    }
+
+
+    @Test
+    public void roundTripsTaggedBuckets() throws IOException {
+        final Path file = _folder.getRoot().toPath().resolve("state");
+        final BucketTable table = new BucketTable(false);
+        final byte[] data = "a|env:prod".getBytes(StandardCharsets.UTF_8);
+        final Recorder source = new Recorder();
+        source._saved.put(table.get(data, 0, 1), Double.valueOf(1));
+        source._saved.put(table.get(data, 0, 1, 2, 8), Double.valueOf(2));
+
+        Checkpoint.write(file, source);
+        final Recorder target = new Recorder();
+        final BucketTable restored = new BucketTable(false);
+        assertEquals(2, Checkpoint.read(file, restored, target));
+
+        assertEquals(Double.valueOf(1), target._counters.get("a"));
+        assertEquals(Double.valueOf(2), target._gauges.get("a|#env:prod"));
+        assertEquals(2, restored.size());
+    }
+
+
+    @Test
+    public void rejectsCorruptCheckpoint() throws IOException {
+        final Path file = _folder.getRoot().toPath().resolve("state");
+        final Recorder source = new Recorder();
+        source._saved.put(
+            new BucketTable(false).get("foo"), Double.valueOf(1));
+        Checkpoint.write(file, source);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(45);
+            raf.write(raf.read()^0xFF);
+        }
+
+        final Recorder target = new Recorder();
+        try {
+            Checkpoint.read(file, new BucketTable(false), target);
+            fail();
+        } catch (final IOException e) {
+            assertTrue(target._counters.isEmpty());
+        }
+    }
+
+
+    @Test
+    public void rejectsWrongRecordCountBeforeApplyingAny() throws IOException {
+        final Path file = _folder.getRoot().toPath().resolve("state");
+        final BucketTable table = new BucketTable(false);
+        final Recorder source = new Recorder();
+        source._saved.put(table.get("a"), Double.valueOf(1));
+        source._saved.put(table.get("b"), Double.valueOf(2));
+        Checkpoint.write(file, source);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(24);
+            raf.writeLong(3);
+        }
+
+        final Recorder target = new Recorder();
+        try {
+            Checkpoint.read(file, new BucketTable(false), target);
+            fail();
+        } catch (final IOException e) {
+            assertTrue(target._counters.isEmpty());
+            assertTrue(target._gauges.isEmpty());
+        }
+    }
+
+
+    @Test
+    public void missingCheckpointIsIgnored() throws IOException {
+        assertEquals(
+            -1,
+            Checkpoint.read(
+                _folder.getRoot().toPath().resolve("missing"),
+                new BucketTable(false),
+                new Recorder()));
+    }
+
+
+    @Test
+    public void aggregatorRestoresGaugesOnly() throws IOException {
+        final Path file = _folder.getRoot().toPath().resolve("state");
+        final BucketTable before = new BucketTable(false);
+        final Aggregator saved =
+            new Aggregator(new LastFlush(), 10, TimeUnit.SECONDS);
+        saved.count(before.get("c"), 3);
+        saved.gauge(before.get("g"), 7);
+        Checkpoint.write(file, saved);
+
+        final BucketTable after = new BucketTable(false);
+        final LastFlush backend = new LastFlush();
+        final Aggregator restored =
+            new Aggregator(backend, 10, TimeUnit.SECONDS);
+        assertEquals(1, Checkpoint.read(file, after, restored.restorer()));
+        restored.flush();
+
+        assertTrue(backend.getFlush().getCounters().isEmpty());
+        assertEquals(
+            7,
+            backend.getFlush().getGauges().get(after.get("g")).doubleValue(),
+            0);
+    }
+}
@@ -0,0 +1,98 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+import com.johnstok.utils.ConsistentHashRing;
+
+
+
+/**
+ * Tests for the {@link ConsistentHashRing} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 100000;
+
+
+    private static int[] place(final ConsistentHashRing ring) {
+        final int[] nodes = new int[KEYS];
+        for (int i=0; i<KEYS; i++) {
+            final byte[] key = ("bucket."+i).getBytes(StandardCharsets.UTF_8);
+            nodes[i] = ring.node(key, 0, key.length);
+        }
+        return nodes;
+    }
+
+
+    @Test
+    public void keysAreSpreadEvenly() {
+        final ConsistentHashRing ring =
+            new ConsistentHashRing(
+                Arrays.asList("a:1", "b:1", "c:1", "d:1"),
+                ConsistentHashRing.DEFAULT_REPLICAS);
+        final int[] counts = new int[ring.size()];
+        for (final int node : place(ring)) {
+            counts[node]++;
+        }
+        for (final int count : counts) {
+            assertEquals(KEYS/4, count, KEYS/4*0.2);
+        }
+    }
+
+
+    @Test
+    public void onlyAnUnhealthyNodesKeysMove() {
+        final ConsistentHashRing ring =
+            new ConsistentHashRing(
+                Arrays.asList("a:1", "b:1", "c:1"),
+                ConsistentHashRing.DEFAULT_REPLICAS);
+        final int[] before = place(ring);
+
+        assertTrue(ring.setHealthy(1, false));
+        assertFalse(ring.setHealthy(1, false));
+        assertEquals(2, ring.getHealthyNodes());
+        final int[] during = place(ring);
+        for (int i=0; i<KEYS; i++) {
+            if (1==before[i]) {
+                assertNotEquals(1, during[i]);
+            } else {
+                assertEquals(before[i], during[i]);
+            }
+        }
+
+        assertTrue(ring.setHealthy(1, true));
+        assertArrayEquals(before, place(ring));
+    }
+
+
+    @Test
+    public void noHealthyNodeGivesMinusOne() {
+        final ConsistentHashRing ring =
+            new ConsistentHashRing(Arrays.asList("a:1"), 1);
+        ring.setHealthy(0, false);
+        assertEquals(0, ring.getHealthyNodes());
+        assertEquals(-1, ring.node(new byte[] {'x'}, 0, 1));
+    }
+}
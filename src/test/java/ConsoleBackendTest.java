@@ -0,0 +1,83 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.ConsoleBackend;
+
+
+
+/**
+ * Tests for the {@link ConsoleBackend} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class ConsoleBackendTest {
+
+    private final BucketTable _buckets = new BucketTable(false);
+    private final Bucket _b = _buckets.get("b");
+
+
+    @Test
+    public void formatsEventsAndFlushesOnStop() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ConsoleBackend backend =
+            new ConsoleBackend(out, 1024, 0, TimeUnit.MILLISECONDS);
+
+        backend.count(_b, 1, 0.5);
+        backend.count(_b, 1.5, 1);
+        backend.gauge(_b, 2.0);
+        backend.adjustGauge(_b, -3);
+        backend.adjustGauge(_b, 3);
+        backend.time(_b, 4.25, 1);
+        backend.histogram(_b, 5, 0.1);
+        backend.mark(_b, 6);
+        assertEquals(0, out.size());
+
+        backend.stop();
+        assertEquals(
+            "b:1|c|@0.5\nb:1.5|c\nb:2|g\nb:-3|g\nb:+3|g\nb:4.25|ms\n"
+            +"b:5|h|@0.1\nb:6|s\n",
+            new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+
+    @Test
+    public void writesInChunksWhenBufferFills() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ConsoleBackend backend =
+            new ConsoleBackend(out, 20, 0, TimeUnit.MILLISECONDS);
+
+        backend.count(_b, 1234567, 1);  // 12 bytes.
+        assertEquals(0, out.size());
+        backend.count(_b, 1234567, 1);  // 24 bytes, so written.
+        assertEquals(24, out.size());
+        backend.count(_b, 1, 1);
+        assertEquals(24, out.size());
+
+        backend.flushOutput();
+        assertEquals(30, out.size());
+    }
+}
@@ -0,0 +1,55 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.net.DatagramSocket;
+import org.junit.Test;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.EventReceiverPool;
+
+
+
+/**
+ * Tests for the {@link EventReceiverPool} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class EventReceiverPoolTest {
+
+    @Test
+    public void closesTheChannelWhenAReceiverCantBeBuilt() throws Exception {
+        final int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        try {
+            // The receiver fails before the back end is used.
+            new EventReceiverPool(
+                null, new BucketTable(false), port, 2, 0, 0, false);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected: the datagram size is invalid.
+        }
+
+        try (DatagramSocket rebound = new DatagramSocket(port)) {
+            assertEquals(port, rebound.getLocalPort());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import com.johnstok.jstatsd.Backend;
+import com.johnstok.jstatsd.BackendQueue;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.FanOutBackend;
+import com.johnstok.jstatsd.FanOutFlushBackend;
+import com.johnstok.jstatsd.Flush;
+import com.johnstok.jstatsd.FlushBackend;
+import com.johnstok.jstatsd.RingBufferBackend.OverloadPolicy;
+import com.johnstok.jstatsd.RingBufferBackend.WaitStrategy;
+
+
+
+/**
+ * Tests for the {@link FanOutBackend} and {@link FanOutFlushBackend}
+ * classes.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class FanOutBackendTest {
+
+    private final BucketTable _buckets = new BucketTable(false);
+    private final Bucket _b = _buckets.get("b");
+
+    /* Counts events and flushes; blocks on the first until released. */
+    private static final class SlowBackend
+        extends
+            RecordingBackend
+        implements
+            FlushBackend {
+
+        final AtomicLong _total = new AtomicLong();
+        final CountDownLatch _entered = new CountDownLatch(1);
+        final CountDownLatch _released;
+
+        SlowBackend(final boolean blocked) {
+            _released = new CountDownLatch(blocked ? 1 : 0);
+        }
+
+        void handle(final long i) {
+            _entered.countDown();
+            try {
+                _released.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _total.addAndGet(i);
+        }
+
+
+        /** {@inheritDoc} */
+        @Override
+        public void flush(final Flush flush) {
+            handle(1);
+        }
+
+
+        /** {@inheritDoc} */
+        @Override
+        public void count(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+            handle(i);
+        }
+    }
+
+
+    private static void awaitTotal(final SlowBackend backend,
+                                   final long total) throws Exception {
+        for (int i=0; i<500 && backend._total.get()<total; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, backend._total.get());
+    }
+
+
+    @Test
+    public void slowBackendOnlyFillsItsOwnQueue() throws Exception {
+        final SlowBackend fast = new SlowBackend(false);
+        final SlowBackend slow = new SlowBackend(true);
+        final Map<String, Backend> backends = new LinkedHashMap<>();
+        backends.put("fast", fast);
+        backends.put("slow", slow);
+        final FanOutBackend fanOut =
+            new FanOutBackend(
+                backends, 4, OverloadPolicy.DROP_NEWEST, WaitStrategy.YIELD);
+        fanOut.start();
+
+        fanOut.count(_b, 1);
+        assertTrue(slow._entered.await(5, TimeUnit.SECONDS));
+        for (int i=1; i<20; i++) {
+            fanOut.count(_b, 1);
+            awaitTotal(fast, i+1);
+        }
+
+        final BackendQueue slowQueue = fanOut.getQueues().get("slow");
+        assertEquals(4, slowQueue.getDepth());
+        assertEquals(15, slowQueue.getDropped());
+        assertEquals(0, fanOut.getQueues().get("fast").getDropped());
+
+        slow._released.countDown();
+        fanOut.stop();
+        assertEquals(5, slow._total.get());
+        assertEquals(0, slowQueue.getDepth());
+    }
+
+
+    @Test
+    public void slowFlushBackendOnlyFillsItsOwnQueue() throws Exception {
+        final SlowBackend fast = new SlowBackend(false);
+        final SlowBackend slow = new SlowBackend(true);
+        final Map<String, FlushBackend> backends = new LinkedHashMap<>();
+        backends.put("fast", fast);
+        backends.put("slow", slow);
+        final FanOutFlushBackend fanOut = new FanOutFlushBackend(backends, 2);
+        fanOut.start();
+        final Map<Bucket, Double> none = Collections.emptyMap();
+        final Flush flush =
+            new Flush(
+                0,
+                10000,
+                none,
+                none,
+                Collections.emptyMap(),
+                Collections.emptyMap());
+
+        fanOut.flush(flush);
+        assertTrue(slow._entered.await(5, TimeUnit.SECONDS));
+        for (int i=1; i<5; i++) {
+            fanOut.flush(flush);
+            awaitTotal(fast, i+1);
+        }
+
+        final BackendQueue slowQueue = fanOut.getQueues().get("slow");
+        assertEquals(2, slowQueue.getDepth());
+        assertEquals(2, slowQueue.getDropped());
+        assertEquals(0, fanOut.getQueues().get("fast").getDropped());
+        assertEquals(5, fanOut.getQueues().get("fast").getLatencySamples());
+
+        slow._released.countDown();
+        fanOut.stop();
+        assertEquals(3, slow._total.get());
+    }
+}
@@ -0,0 +1,207 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.Flush;
+import com.johnstok.jstatsd.GraphiteBackend;
+import com.johnstok.jstatsd.TimerStats;
+
+
+
+/**
+ * Tests for the {@link GraphiteBackend} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class GraphiteBackendTest {
+
+    private final BucketTable _buckets = new BucketTable(false);
+    private final Bucket _c = _buckets.get("c");
+    private final Bucket _g = _buckets.get("g");
+    private final Bucket _s = _buckets.get("s");
+
+
+    @Test
+    public void writesPlaintextLines() throws Exception {
+        try (ServerSocket carbon = new ServerSocket(0)) {
+            final GraphiteBackend backend =
+                new GraphiteBackend("localhost", carbon.getLocalPort(), "stats");
+            backend.start();
+            try {
+                backend.flush(flush(2000, 7.5));
+
+                try (Socket s = carbon.accept()) {
+                    final BufferedReader in = reader(s);
+                    assertEquals("stats.counters.c.count 10 2", in.readLine());
+                    assertEquals("stats.counters.c.rate 1 2", in.readLine());
+                    assertEquals("stats.gauges.g 7.5 2", in.readLine());
+                    assertEquals("stats.sets.s.count 3 2", in.readLine());
+                }
+            } finally {
+                backend.stop();
+            }
+            assertEquals(4, backend.getLinesWritten());
+            assertEquals(0, backend.getLinesDropped());
+        }
+    }
+
+
+    @Test
+    public void sanitizesNames() throws Exception {
+        final Bucket t = _buckets.get("a b;c=d");
+        try (ServerSocket carbon = new ServerSocket(0)) {
+            final GraphiteBackend backend =
+                new GraphiteBackend("localhost", carbon.getLocalPort(), "");
+            backend.start();
+            try {
+                backend.flush(
+                    new Flush(
+                        1000,
+                        10000,
+                        Collections.<Bucket, Double>emptyMap(),
+                        Collections.singletonMap(t, Double.valueOf(1)),
+                        Collections.<Bucket, TimerStats>emptyMap(),
+                        Collections.<Bucket, Long>emptyMap()));
+
+                try (Socket s = carbon.accept()) {
+                    assertEquals("gauges.a_bcd 1 1", reader(s).readLine());
+                }
+            } finally {
+                backend.stop();
+            }
+        }
+    }
+
+
+    @Test
+    public void sanitizesTags() throws Exception {
+        final byte[] data =
+            "t|env:pr;od,k=1,~:x,v:=,ok".getBytes(StandardCharsets.UTF_8);
+        final Bucket t = _buckets.get(data, 0, 1, 2, data.length-2);
+        try (ServerSocket carbon = new ServerSocket(0)) {
+            final GraphiteBackend backend =
+                new GraphiteBackend("localhost", carbon.getLocalPort(), "");
+            backend.start();
+            try {
+                backend.flush(
+                    new Flush(
+                        1000,
+                        10000,
+                        Collections.<Bucket, Double>emptyMap(),
+                        Collections.singletonMap(t, Double.valueOf(1)),
+                        Collections.<Bucket, TimerStats>emptyMap(),
+                        Collections.<Bucket, Long>emptyMap()));
+
+                try (Socket s = carbon.accept()) {
+                    assertEquals(
+                        "gauges.t;env=prod;k1=true;ok=true 1 1",
+                        reader(s).readLine());
+                }
+            } finally {
+                backend.stop();
+            }
+        }
+    }
+
+
+    @Test
+    public void reconnectsAfterConnectionIsLost() throws Exception {
+        try (ServerSocket carbon = new ServerSocket(0)) {
+            final GraphiteBackend backend =
+                new GraphiteBackend("localhost", carbon.getLocalPort(), "");
+            backend.start();
+            try {
+                backend.flush(flush(1000, 1));
+                try (Socket s = carbon.accept()) {
+                    assertEquals("counters.c.count 10 1", reader(s).readLine());
+                }
+
+                // Writes to the closed connection fail, or are lost, until
+                // the writer notices and reconnects.
+                for (int i=0; 2>backend.getConnections(); i++) {
+                    backend.flush(flush(2000+i*1000, 2));
+                    Thread.sleep(50);
+                }
+                try (Socket s = carbon.accept()) {
+                    assertTrue(reader(s).readLine().startsWith("counters.c."));
+                }
+            } finally {
+                backend.stop();
+            }
+            assertTrue(backend.getWriteErrors()>0);
+        }
+    }
+
+
+    @Test
+    public void dropsLinesWhenBuffersAreFull() throws Exception {
+        final int port;
+        try (ServerSocket unused = new ServerSocket(0)) {
+            port = unused.getLocalPort();
+        }
+        // Nothing is listening, and the writer is never started.
+        final GraphiteBackend backend =
+            new GraphiteBackend("localhost", port, "stats", 64, 2);
+
+        backend.flush(flush(1000, 1)); // Fills both buffers.
+        assertEquals(0, backend.getLinesDropped());
+        backend.flush(flush(2000, 1));
+
+        assertEquals(4, backend.getLinesDropped());
+        assertEquals(0, backend.getLinesWritten());
+    }
+
+
+    private Flush flush(final long timestamp, final double gauge) {
+        final Map<Bucket, Double> counters = new HashMap<>();
+        counters.put(_c, Double.valueOf(10));
+        final Map<Bucket, Double> gauges = new HashMap<>();
+        gauges.put(_g, Double.valueOf(gauge));
+        final Map<Bucket, Long> sets = new HashMap<>();
+        sets.put(_s, Long.valueOf(3));
+        return
+            new Flush(
+                timestamp,
+                10000,
+                counters,
+                gauges,
+                Collections.<Bucket, TimerStats>emptyMap(),
+                sets);
+    }
+
+
+    private static BufferedReader reader(final Socket s) throws Exception {
+        return
+            new BufferedReader(
+                new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.US_ASCII));
+    }
+}
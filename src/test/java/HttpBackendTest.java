@@ -0,0 +1,231 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.Flush;
+import com.johnstok.jstatsd.HttpBackend;
+import com.johnstok.jstatsd.TimerStats;
+import com.johnstok.utils.QuantileSketch;
+
+
+
+/**
+ * Tests for the {@link HttpBackend} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class HttpBackendTest {
+
+    private final BucketTable _buckets = new BucketTable(false);
+    private HttpBackend _http;
+
+
+    @Before
+    public void setUp() throws IOException {
+        _http = new HttpBackend(0, "statsd");
+        _http.start();
+    }
+
+
+    @After
+    public void tearDown() {
+        _http.stop();
+    }
+
+
+    private HttpURLConnection get(final String path,
+                                  final String... headers)
+                                                        throws IOException {
+        final HttpURLConnection c =
+            (HttpURLConnection) new URL(
+                "http://localhost:"+_http.getPort()+path).openConnection();
+        for (int i=0; i<headers.length; i+=2) {
+            c.setRequestProperty(headers[i], headers[i+1]);
+        }
+        return c;
+    }
+
+
+    private static byte[] read(final InputStream in) throws IOException {
+        try (InputStream i = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int n; (n = i.read(buffer))>=0;) { out.write(buffer, 0, n); }
+            return out.toByteArray();
+        }
+    }
+
+
+    private Flush flush(final double counter) {
+        final QuantileSketch sketch = new QuantileSketch(0.01, 1024);
+        sketch.add(10, 1);
+        sketch.add(20, 1);
+        final Map<Bucket, Double> counters = new HashMap<>();
+        counters.put(_buckets.get("requests"), Double.valueOf(counter));
+        final Map<Bucket, TimerStats> timers = new HashMap<>();
+        timers.put(_buckets.get("latency"), new TimerStats(sketch, 2, 30));
+        return
+            new Flush(
+                0,
+                10000,
+                counters,
+                Collections.singletonMap(
+                    _buckets.get("say \"hi\""), Double.valueOf(7)),
+                timers,
+                Collections.singletonMap(
+                    _buckets.get("users"), Long.valueOf(3)));
+    }
+
+
+    @Test
+    public void servesLastFlush() throws IOException {
+        _http.flush(flush(42));
+
+        final HttpURLConnection c = get("/metrics");
+        assertEquals(200, c.getResponseCode());
+        assertTrue(c.getContentType().startsWith("text/plain"));
+        final String body =
+            new String(read(c.getInputStream()), StandardCharsets.UTF_8);
+
+        assertTrue(body.contains("# TYPE statsd_counter gauge\n"));
+        assertTrue(
+            body.contains("statsd_counter{bucket=\"requests\",stat=\"count\"} 42\n"));
+        assertTrue(
+            body.contains("statsd_counter{bucket=\"requests\",stat=\"rate\"} 4.2\n"));
+        assertTrue(body.contains("statsd_gauge{bucket=\"say \\\"hi\\\"\"} 7\n"));
+        assertTrue(
+            body.contains("statsd_timer{bucket=\"latency\",stat=\"count\"} 2\n"));
+        assertTrue(
+            body.contains("statsd_timer{bucket=\"latency\",stat=\"sum\"} 30\n"));
+        assertTrue(body.contains("statsd_set{bucket=\"users\"} 3\n"));
+    }
+
+
+    @Test
+    public void labelsTaggedBuckets() throws IOException {
+        final byte[] data =
+            "q|env:a,env:b,bucket:x,k-1,2x:y".getBytes(StandardCharsets.UTF_8);
+        _http.flush(
+            new Flush(
+                0,
+                10000,
+                Collections.<Bucket, Double>emptyMap(),
+                Collections.singletonMap(
+                    _buckets.get(data, 0, 1, 2, data.length-2),
+                    Double.valueOf(7)),
+                Collections.<Bucket, TimerStats>emptyMap(),
+                Collections.<Bucket, Long>emptyMap()));
+
+        final String body =
+            new String(
+                read(get("/metrics").getInputStream()), StandardCharsets.UTF_8);
+
+        assertTrue(
+            body,
+            body.contains(
+                "statsd_gauge{bucket=\"q\",_x=\"y\",env=\"a,b\","
+                + "k_1=\"true\",tag_bucket=\"x\"} 7\n"));
+    }
+
+
+    @Test
+    public void mergesTagsWithTheSameLabelName() throws IOException {
+        final byte[] data =
+            "q|a,a-x:1,a:1,a_x:2".getBytes(StandardCharsets.UTF_8);
+        _http.flush(
+            new Flush(
+                0,
+                10000,
+                Collections.<Bucket, Double>emptyMap(),
+                Collections.singletonMap(
+                    _buckets.get(data, 0, 1, 2, data.length-2),
+                    Double.valueOf(7)),
+                Collections.<Bucket, TimerStats>emptyMap(),
+                Collections.<Bucket, Long>emptyMap()));
+
+        final String body =
+            new String(
+                read(get("/metrics").getInputStream()), StandardCharsets.UTF_8);
+
+        assertTrue(
+            body,
+            body.contains(
+                "statsd_gauge{bucket=\"q\",a=\"true,1\",a_x=\"1,2\"} 7\n"));
+    }
+
+
+    @Test
+    public void revalidatesWithEtagUntilNextFlush() throws IOException {
+        _http.flush(flush(1));
+        final String etag = get("/metrics").getHeaderField("ETag");
+        assertNotNull(etag);
+
+        assertEquals(
+            304, get("/metrics", "If-None-Match", etag).getResponseCode());
+        assertEquals(1, _http.getNotModified());
+
+        _http.flush(flush(2));
+        final HttpURLConnection c = get("/metrics", "If-None-Match", etag);
+        assertEquals(200, c.getResponseCode());
+        assertFalse(etag.equals(c.getHeaderField("ETag")));
+    }
+
+
+    @Test
+    public void compressesForClientsThatAcceptGzip() throws IOException {
+        _http.flush(flush(42));
+        final byte[] plain = read(get("/metrics").getInputStream());
+
+        final HttpURLConnection c =
+            get("/metrics", "Accept-Encoding", "gzip, deflate");
+        assertEquals(200, c.getResponseCode());
+        assertEquals("gzip", c.getHeaderField("Content-Encoding"));
+        assertArrayEquals(
+            plain, read(new GZIPInputStream(c.getInputStream())));
+
+        final HttpURLConnection identity =
+            get("/metrics", "Accept-Encoding", "gzip;q=0");
+        assertNull(identity.getHeaderField("Content-Encoding"));
+    }
+
+
+    @Test
+    public void rejectsOtherMethodsAndPaths() throws IOException {
+        final HttpURLConnection post = get("/metrics");
+        post.setRequestMethod("POST");
+        assertEquals(405, post.getResponseCode());
+        assertEquals(404, get("/metrics/other").getResponseCode());
+    }
+}
@@ -0,0 +1,98 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import com.johnstok.utils.HyperLogLog;
+
+
+
+/**
+ * Tests for the {@link HyperLogLog} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class HyperLogLogTest {
+
+    @Test
+    public void estimatesAreWithinStandardError() {
+        for (final int n : new int[] {10, 1000, 10000, 100000, 1000000}) {
+            final HyperLogLog sketch = new HyperLogLog(12);
+            for (long i=0; i<n; i++) {
+                sketch.add(HyperLogLog.hash(i));
+                sketch.add(HyperLogLog.hash(i)); // Duplicates don't count.
+            }
+            assertEquals(
+                String.valueOf(n),
+                n,
+                sketch.cardinality(),
+                3*sketch.getStandardError()*n);
+        }
+    }
+
+
+    @Test
+    public void smallSetsAreExact() {
+        final HyperLogLog sketch = new HyperLogLog();
+        assertEquals(0, sketch.cardinality());
+        for (final String member : new String[] {"alice", "bob", "carol"}) {
+            final byte[] bytes = member.getBytes();
+            sketch.add(HyperLogLog.hash(bytes, 0, bytes.length));
+        }
+        assertEquals(3, sketch.cardinality());
+
+        sketch.clear();
+        assertEquals(0, sketch.cardinality());
+    }
+
+
+    @Test
+    public void mergeMatchesUnion() {
+        final HyperLogLog a = new HyperLogLog(10);
+        final HyperLogLog b = new HyperLogLog(10);
+        final HyperLogLog union = new HyperLogLog(10);
+        for (long i=0; i<50000; i++) {
+            ((0==i%2) ? a : b).add(HyperLogLog.hash(i));
+            union.add(HyperLogLog.hash(i));
+        }
+        a.merge(b);
+        assertEquals(union.cardinality(), a.cardinality());
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsMergeWithDifferentPrecision() {
+        new HyperLogLog(10).merge(new HyperLogLog(11));
+    }
+
+
+    @Test
+    public void precisionForError() {
+        assertEquals(4, HyperLogLog.precisionFor(0.5));
+        assertEquals(12, HyperLogLog.precisionFor(0.0163));
+        assertEquals(14, HyperLogLog.precisionFor(0.01));
+    }
+
+
+    @Test(expected=IllegalArgumentException.class)
+    public void rejectsUnachievableError() {
+        HyperLogLog.precisionFor(0.0001);
+    }
+}
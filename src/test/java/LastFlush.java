@@ -0,0 +1,53 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import com.johnstok.jstatsd.Flush;
+import com.johnstok.jstatsd.FlushBackend;
+
+
+
+/**
+ * A flush backend that keeps the most recent flush, for tests to inspect.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class LastFlush
+    implements
+        FlushBackend {
+
+    private volatile Flush _flush;
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void flush(final Flush flush) {
+        _flush = flush;
+    }
+
+
+    /**
+     * Query the most recent flush.
+     *
+     * @return The flush, or null if there hasn't been one.
+     */
+    public Flush getFlush() {
+        return _flush;
+    }
+}
@@ -0,0 +1,106 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import com.johnstok.utils.QuantileSketch;
+
+
+
+/**
+ * Tests for the {@link QuantileSketch} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class QuantileSketchTest {
+
+    private static final double[] QUANTILES = {0, .25, .5, .9, .99, .999, 1};
+
+
+    @Test
+    public void quantilesAreWithinRelativeAccuracy() {
+        final Random random = new Random(7);
+        final QuantileSketch sketch = new QuantileSketch(0.01, 1024);
+        final double[] values = new double[100000];
+        for (int i=0; i<values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian()*2+3);
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (final double q : QUANTILES) {
+            final double expected = values[(int) (q*(values.length-1))];
+            assertEquals(expected, sketch.getQuantile(q), expected*0.01);
+        }
+        assertEquals(values[0], sketch.getMin(), 0);
+        assertEquals(values[values.length-1], sketch.getMax(), 0);
+        assertEquals(values.length, sketch.getCount(), 0);
+    }
+
+
+    @Test
+    public void mergingMatchesASingleSketch() {
+        final Random random = new Random(11);
+        final QuantileSketch all = new QuantileSketch();
+        final QuantileSketch a = new QuantileSketch();
+        final QuantileSketch b = new QuantileSketch();
+        for (int i=0; i<10000; i++) {
+            final double value = random.nextDouble()*1000-100;
+            all.add(value);
+            ((0==i%2) ? a : b).add(value);
+        }
+
+        a.merge(b);
+
+        for (final double q : QUANTILES) {
+            assertEquals(all.getQuantile(q), a.getQuantile(q), 0);
+        }
+        assertEquals(all.getCount(), a.getCount(), 0);
+        assertEquals(all.getSum(), a.getSum(), 1e-6);
+    }
+
+
+    @Test
+    public void memoryIsBoundedByCollapsingSmallestValues() {
+        final QuantileSketch sketch = new QuantileSketch(0.01, 64);
+        for (int i=0; i<1000; i++) {
+            sketch.add(Math.pow(1.1, i-500));
+        }
+
+        final double max = Math.pow(1.1, 499);
+        final double p999 = Math.pow(1.1, 498);
+        assertEquals(max, sketch.getQuantile(1), 0);
+        assertEquals(p999, sketch.getQuantile(.999), p999*0.01);
+        assertEquals(1000, sketch.getCount(), 0);
+    }
+
+
+    @Test
+    public void weightsCountTowardsQuantiles() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1, 1);
+        sketch.add(100, 9);
+
+        assertEquals(10, sketch.getCount(), 0);
+        assertEquals(100, sketch.getQuantile(.5), 1);
+    }
+}
@@ -0,0 +1,211 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import java.util.ArrayList;
+import java.util.List;
+import com.johnstok.jstatsd.Backend;
+import com.johnstok.jstatsd.Bucket;
+
+
+
+/**
+ * A backend that records each event as text, for tests to compare.
+ * <p>
+ * Events are recorded as <code>bucket:value|type</code>, with
+ * <code>@rate</code> appended if the sample rate isn't 1. The delta of an
+ * adjusted gauge is always signed, a meter mark has the type
+ * <code>m</code> and a set member is shown in hex after a '#'. Events for
+ * buckets that don't start with the prefix are ignored. Events may be
+ * recorded from several threads.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class RecordingBackend
+    implements
+        Backend {
+
+    private final String _prefix;
+    private final List<String> _events = new ArrayList<>(); // Guarded by this.
+    private long _total; // Guarded by this.
+
+
+    /**
+     * Constructor. Records the events for every bucket.
+     */
+    public RecordingBackend() {
+        this("");
+    }
+
+
+    /**
+     * Constructor.
+     *
+     * @param prefix Only events for buckets starting with this are recorded.
+     */
+    public RecordingBackend(final String prefix) {
+        _prefix = prefix;
+    }
+
+
+    /**
+     * Query the events recorded so far.
+     *
+     * @return A copy of the events, in the order they were recorded.
+     */
+    public synchronized List<String> events() {
+        return new ArrayList<>(_events);
+    }
+
+
+    /**
+     * Remove the events recorded so far.
+     *
+     * @return The events removed, in the order they were recorded.
+     */
+    public synchronized List<String> take() {
+        final List<String> events = new ArrayList<>(_events);
+        _events.clear();
+        return events;
+    }
+
+
+    /**
+     * Query the sum of the integer counts recorded, ignoring sample rates.
+     *
+     * @return The sum.
+     */
+    public synchronized long getTotal() {
+        return _total;
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void count(final Bucket bucket,
+                                   final long i,
+                                   final double sampleRate) {
+        if (record(bucket, i+"|c", sampleRate)) { _total += i; }
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void count(final Bucket bucket,
+                      final double i,
+                      final double sampleRate) {
+        record(bucket, i+"|c", sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final long i) {
+        record(bucket, i+"|g", 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void gauge(final Bucket bucket, final double i) {
+        record(bucket, i+"|g", 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final long delta) {
+        record(bucket, ((delta<0) ? "" : "+")+delta+"|g", 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void adjustGauge(final Bucket bucket, final double delta) {
+        record(bucket, ((delta<0) ? "" : "+")+delta+"|g", 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final long i,
+                     final double sampleRate) {
+        record(bucket, i+"|ms", sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void time(final Bucket bucket,
+                     final double i,
+                     final double sampleRate) {
+        record(bucket, i+"|ms", sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+        record(bucket, i+"|h", sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void histogram(final Bucket bucket,
+                          final double i,
+                          final double sampleRate) {
+        record(bucket, i+"|h", sampleRate);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final long i) {
+        record(bucket, i+"|m", 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void mark(final Bucket bucket, final double i) {
+        record(bucket, i+"|m", 1);
+    }
+
+
+    /** {@inheritDoc} */
+    @Override
+    public void set(final Bucket bucket, final long member) {
+        record(bucket, "#"+Long.toHexString(member)+"|s", 1);
+    }
+
+
+    /* Returns true if the event was recorded. */
+    private synchronized boolean record(final Bucket bucket,
+                                        final String event,
+                                        final double sampleRate) {
+        if (!bucket.toString().startsWith(_prefix)) { return false; }
+        _events.add(
+            bucket+":"+event+((1==sampleRate) ? "" : "@"+sampleRate));
+        return true;
+    }
+}
@@ -0,0 +1,282 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.EventReceiverPool;
+import com.johnstok.jstatsd.RelayReceiver;
+import com.johnstok.jstatsd.RelayReceiverPool;
+import com.johnstok.jstatsd.TcpEventReceiverPool;
+import com.johnstok.utils.TcpReceiver;
+
+
+
+/**
+ * Tests for the {@link RelayReceiverPool} class, relaying to several local
+ * daemons.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class RelayReceiverPoolTest {
+
+    private static final int NODES = 3;
+    private static final int BUCKETS = 300;
+
+    private final List<Node> _nodes = new ArrayList<>();
+    private RelayReceiverPool _relay;
+    private int _relayPort;
+
+
+    /* A downstream daemon: UDP and TCP on the same port number. */
+    private static final class Node
+        extends
+            RecordingBackend {
+
+        final Map<String, AtomicLong> _counts = new ConcurrentHashMap<>();
+        final TcpEventReceiverPool _tcp;
+        final EventReceiverPool _udp;
+        final int _port;
+
+
+        Node() throws Exception {
+            final BucketTable buckets = new BucketTable(true);
+            _tcp =
+                new TcpEventReceiverPool(
+                    this, buckets, 0, 1, TcpReceiver.DEFAULT_BUFFER_SIZE, 0);
+            _port = _tcp.getPort();
+            _udp =
+                new EventReceiverPool(this, buckets, _port, 1, 8192, 0, false);
+            _tcp.start();
+            _udp.start();
+        }
+
+
+        long count(final String bucket) {
+            final AtomicLong count = _counts.get(bucket);
+            return (null==count) ? 0 : count.get();
+        }
+
+
+        long total() {
+            long total = 0;
+            for (final AtomicLong count : _counts.values()) {
+                total += count.get();
+            }
+            return total;
+        }
+
+
+        void stop() {
+            _tcp.stop();
+            _udp.stop();
+        }
+
+
+        /** {@inheritDoc} */
+        @Override
+        public void count(final Bucket bucket,
+                          final long i,
+                          final double sampleRate) {
+            final AtomicLong count = new AtomicLong();
+            final AtomicLong existing =
+                _counts.putIfAbsent(bucket.getName(), count);
+            ((null==existing) ? count : existing).addAndGet(i);
+        }
+    }
+
+
+    @Before
+    public void setUp() throws Exception {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i=0; i<NODES; i++) {
+            final Node node = new Node();
+            _nodes.add(node);
+            addresses.add(
+                new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), node._port));
+        }
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            _relayPort = probe.getLocalPort();
+        }
+        _relay =
+            new RelayReceiverPool(
+                addresses,
+                _relayPort,
+                1,
+                8192,
+                0,
+                false,
+                RelayReceiverPool.DEFAULT_DATAGRAM_SIZE,
+                10,
+                0); // Health is checked by the tests.
+        _relay.start();
+    }
+
+
+    @After
+    public void tearDown() {
+        if (null!=_relay) {
+            _relay.stop();
+        }
+        for (final Node node : _nodes) {
+            node.stop();
+        }
+    }
+
+
+    private void sendAll() throws Exception {
+        try (DatagramSocket client = new DatagramSocket()) {
+            final StringBuilder lines = new StringBuilder();
+            for (int i=0; i<BUCKETS; i++) {
+                lines.append("bucket.").append(i).append(":1|c\n");
+                if (0==(i+1)%20) {
+                    final byte[] data =
+                        lines.toString().getBytes(StandardCharsets.US_ASCII);
+                    client.send(
+                        new DatagramPacket(
+                            data,
+                            data.length,
+                            InetAddress.getLoopbackAddress(),
+                            _relayPort));
+                    lines.setLength(0);
+                }
+            }
+        }
+    }
+
+
+    private void awaitTotal(final long expected) throws Exception {
+        final long deadline = System.currentTimeMillis()+5000;
+        long total = 0;
+        while (System.currentTimeMillis()<deadline) {
+            total = 0;
+            for (final Node node : _nodes) {
+                total += node.total();
+            }
+            if (total>=expected) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(expected, total);
+    }
+
+
+    /* The server socket is closed by the receiver thread. */
+    private static void awaitClosed(final int port) throws Exception {
+        final long deadline = System.currentTimeMillis()+5000;
+        while (System.currentTimeMillis()<deadline) {
+            try {
+                new Socket(InetAddress.getLoopbackAddress(), port).close();
+                Thread.sleep(10);
+            } catch (final IOException e) {
+                return;
+            }
+        }
+        fail("Port still open: "+port);
+    }
+
+
+    /* The index of the only node with the bucket, which has the count. */
+    private int owner(final String bucket, final long count) {
+        int owner = -1;
+        for (int n=0; n<NODES; n++) {
+            final long c = _nodes.get(n).count(bucket);
+            if (c>0) {
+                assertEquals(bucket, -1, owner);
+                assertEquals(bucket, count, c);
+                owner = n;
+            }
+        }
+        assertNotEquals(bucket, -1, owner);
+        return owner;
+    }
+
+
+    @Test
+    public void eachBucketIsRelayedToOneNode() throws Exception {
+        assertEquals(NODES, _relay.checkHealth());
+        sendAll();
+        sendAll();
+        awaitTotal(2*BUCKETS);
+
+        final int[] perNode = new int[NODES];
+        for (int i=0; i<BUCKETS; i++) {
+            perNode[owner("bucket."+i, 2)]++;
+        }
+        for (final int buckets : perNode) {
+            assertTrue(buckets>0);
+        }
+        assertEquals(2*BUCKETS, _relay.getLines());
+        // Batching sends fewer datagrams than were received.
+        long datagrams = 0;
+        for (final RelayReceiver r : _relay.getReceivers()) {
+            datagrams += r.getDatagrams();
+            assertEquals(0, r.getSendErrors());
+        }
+        assertTrue(datagrams<2*BUCKETS/20);
+    }
+
+
+    @Test
+    public void anUnhealthyNodesBucketsMoveToTheOthers() throws Exception {
+        sendAll();
+        awaitTotal(BUCKETS);
+        final int[] before = new int[BUCKETS];
+        for (int i=0; i<BUCKETS; i++) {
+            before[i] = owner("bucket."+i, 1);
+        }
+
+        _nodes.get(0)._tcp.stop();
+        awaitClosed(_nodes.get(0)._port);
+        assertEquals(NODES, _relay.checkHealth()); // One failure is tolerated.
+        assertEquals(NODES-1, _relay.checkHealth());
+
+        sendAll();
+        awaitTotal(2*BUCKETS);
+        for (int i=0; i<BUCKETS; i++) {
+            final String bucket = "bucket."+i;
+            if (0==before[i]) {
+                assertEquals(1, _nodes.get(0).count(bucket));
+                final long moved =
+                    _nodes.get(1).count(bucket)+_nodes.get(2).count(bucket);
+                assertEquals(bucket, 1, moved);
+            } else {
+                assertEquals(bucket, 2, _nodes.get(before[i]).count(bucket));
+            }
+        }
+    }
+}
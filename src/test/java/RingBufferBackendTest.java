@@ -0,0 +1,129 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.RingBufferBackend;
+import com.johnstok.jstatsd.RingBufferBackend.OverloadPolicy;
+import com.johnstok.jstatsd.RingBufferBackend.WaitStrategy;
+
+
+
+/**
+ * Tests for the {@link RingBufferBackend} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class RingBufferBackendTest {
+
+    private final BucketTable _buckets = new BucketTable(false);
+    private final Bucket _b = _buckets.get("b");
+
+
+    @Test
+    public void appliesEachTypeInOrder() {
+        final RecordingBackend backend = new RecordingBackend();
+        final RingBufferBackend ring =
+            new RingBufferBackend(
+                backend, 16, OverloadPolicy.BLOCK, WaitStrategy.PARK);
+        ring.start();
+
+        ring.count(_b, 1, 0.5);
+        ring.count(_b, 1.5, 1);
+        ring.gauge(_b, 2);
+        ring.adjustGauge(_b, 2.5);
+        ring.time(_b, 3, 0.1);
+        ring.histogram(_b, 4.5, 1);
+        ring.mark(_b, 5);
+        ring.set(_b, 6);
+        ring.stop();
+
+        assertEquals(8, ring.getProcessed());
+        assertEquals(
+            "[b:1|c@0.5, b:1.5|c, b:2|g, b:+2.5|g, b:3|ms@0.1, "
+            +"b:4.5|h, b:5|m, b:#6|s]",
+            backend.events().toString());
+    }
+
+
+    @Test
+    public void dropsNewestWhenFull() {
+        final RecordingBackend backend = new RecordingBackend();
+        final RingBufferBackend ring =
+            new RingBufferBackend(
+                backend, 4, OverloadPolicy.DROP_NEWEST, WaitStrategy.YIELD);
+
+        for (int i=0; i<6; i++) { ring.gauge(_b, i); }
+        assertEquals(4, ring.getDepth());
+        assertEquals(2, ring.getDropped());
+
+        ring.start();
+        ring.stop();
+        assertEquals("[b:0|g, b:1|g, b:2|g, b:3|g]", backend.events().toString());
+        assertEquals(0, ring.getDepth());
+    }
+
+
+    @Test
+    public void dropsOldestWhenFull() {
+        final RecordingBackend backend = new RecordingBackend();
+        final RingBufferBackend ring =
+            new RingBufferBackend(
+                backend, 3, OverloadPolicy.DROP_OLDEST, WaitStrategy.YIELD);
+        assertEquals(4, ring.getCapacity());
+
+        for (int i=0; i<6; i++) { ring.gauge(_b, i); }
+        assertEquals(4, ring.getDepth());
+        assertEquals(2, ring.getDropped());
+
+        ring.start();
+        ring.stop();
+        assertEquals("[b:2|g, b:3|g, b:4|g, b:5|g]", backend.events().toString());
+    }
+
+
+    @Test
+    public void blockingLosesNothingWithManyProducers() throws Exception {
+        final RecordingBackend backend = new RecordingBackend();
+        final RingBufferBackend ring =
+            new RingBufferBackend(
+                backend, 8, OverloadPolicy.BLOCK, WaitStrategy.PARK);
+        ring.start();
+
+        final Thread[] producers = new Thread[4];
+        for (int i=0; i<producers.length; i++) {
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n=0; n<20000; n++) { ring.count(_b, 1, 1); }
+                }
+            };
+            producers[i].start();
+        }
+        for (final Thread t : producers) { t.join(); }
+        ring.stop();
+
+        assertEquals(0, ring.getDropped());
+        assertEquals(80000, ring.getProcessed());
+        assertEquals(80000, backend.getTotal());
+    }
+}
@@ -0,0 +1,170 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+import static org.junit.Assert.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.EventReceiverPool;
+import com.johnstok.jstatsd.RingBufferBackend;
+import com.johnstok.jstatsd.RingBufferBackend.OverloadPolicy;
+import com.johnstok.jstatsd.RingBufferBackend.WaitStrategy;
+import com.johnstok.jstatsd.SelfMonitor;
+
+
+
+/**
+ * Tests for the {@link SelfMonitor} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class SelfMonitorTest {
+
+    private final BucketTable _buckets = new BucketTable(false);
+
+
+    @Test
+    public void reportsReceiverCountersAsDeltas() throws Exception {
+        final int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final RecordingBackend backend = new RecordingBackend("self.");
+        final EventReceiverPool pool =
+            new EventReceiverPool(backend, _buckets, port, 1, 512, 0, false);
+        final SelfMonitor monitor =
+            new SelfMonitor(backend, _buckets, "self", 1, TimeUnit.HOURS);
+        monitor.monitor(pool);
+        pool.start();
+        try {
+            final byte[] data =
+                "a:1|c\nbad\nb:x|c".getBytes(StandardCharsets.US_ASCII);
+            try (DatagramSocket client = new DatagramSocket()) {
+                client.send(
+                    new DatagramPacket(
+                        data,
+                        data.length,
+                        InetAddress.getLoopbackAddress(),
+                        port));
+            }
+            final long deadline = System.currentTimeMillis()+5000;
+            while (pool.getMalformedLines()<2
+                   && System.currentTimeMillis()<deadline) {
+                Thread.sleep(10);
+            }
+
+            monitor.report();
+            final List<String> events = backend.take();
+            assertTrue(events.contains("self.packets:1|c"));
+            assertTrue(events.contains("self.bytes:"+data.length+"|c"));
+            assertTrue(events.contains("self.lines:3|c"));
+            assertTrue(events.contains("self.truncated_packets:0|c"));
+            assertTrue(events.contains("self.malformed.bucket:1|c"));
+            assertTrue(events.contains("self.malformed.value:1|c"));
+            assertTrue(events.contains("self.malformed.type:0|c"));
+
+            monitor.report();
+            final List<String> next = backend.take();
+            assertTrue(next.contains("self.packets:0|c"));
+            assertTrue(next.contains("self.lines:0|c"));
+            assertTrue(next.contains("self.malformed.bucket:0|c"));
+        } finally {
+            monitor.stop();
+            pool.stop();
+        }
+    }
+
+
+    @Test
+    public void dropsTheLineCutShortByTruncation() throws Exception {
+        final int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final RecordingBackend backend = new RecordingBackend("self.");
+        final EventReceiverPool pool =
+            new EventReceiverPool(backend, _buckets, port, 1, 12, 0, false);
+        final SelfMonitor monitor =
+            new SelfMonitor(backend, _buckets, "self", 1, TimeUnit.HOURS);
+        monitor.monitor(pool);
+        pool.start();
+        try {
+            final byte[] data =
+                "a:1|c\nb:12345|c\n".getBytes(StandardCharsets.US_ASCII);
+            try (DatagramSocket client = new DatagramSocket()) {
+                client.send(
+                    new DatagramPacket(
+                        data,
+                        data.length,
+                        InetAddress.getLoopbackAddress(),
+                        port));
+            }
+            final long deadline = System.currentTimeMillis()+5000;
+            while (pool.getReceivers().get(0).getLines()<1
+                   && System.currentTimeMillis()<deadline) {
+                Thread.sleep(10);
+            }
+
+            monitor.report();
+            final List<String> events = backend.take();
+            assertTrue(events.contains("self.truncated_packets:1|c"));
+            assertTrue(events.contains("self.bytes:12|c"));
+            assertTrue(events.contains("self.lines:1|c"));
+            assertEquals(0, pool.getMalformedLines());
+        } finally {
+            monitor.stop();
+            pool.stop();
+        }
+    }
+
+
+    @Test
+    public void reportsQueueDepthAndDrops() {
+        final RecordingBackend backend = new RecordingBackend("self.");
+        final RingBufferBackend ring =
+            new RingBufferBackend(
+                new RecordingBackend(),
+                4,
+                OverloadPolicy.DROP_NEWEST,
+                WaitStrategy.PARK);
+        final SelfMonitor monitor =
+            new SelfMonitor(backend, _buckets, "self", 1, TimeUnit.HOURS);
+        monitor.monitor(ring);
+
+        final Bucket b = _buckets.get("b");
+        for (int i=0; i<6; i++) {
+            ring.count(b, 1, 1);
+        }
+        monitor.report();
+
+        final List<String> events = backend.take();
+        assertTrue(events.contains("self.queue.depth:4|g"));
+        assertTrue(events.contains("self.queue.dropped:2|c"));
+        assertTrue(events.contains("self.queue.errors:0|c"));
+        assertTrue(
+            events.contains("self.buckets:"+_buckets.size()+"|g"));
+        monitor.stop();
+    }
+}
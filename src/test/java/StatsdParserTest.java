@@ -0,0 +1,251 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.StatsdParser;
+import com.johnstok.utils.HyperLogLog;
+
+
+
+/**
+ * Tests for the {@link StatsdParser} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class StatsdParserTest {
+
+    /*
+     * The regular expression the parser replaced, plus '|@' rates and string
+     * set values.
+     */
+    private static final Pattern EVENT =
+        Pattern.compile(
+            "([^:]+):([^|]+)\\|(c|g|h|ms|s)(?:\\|?@(\\d+(?:\\.\\d+)?))?");
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(?:\\.\\d+)?");
+    private static final Pattern GAUGE = Pattern.compile("[-+]?\\d+(?:\\.\\d+)?");
+
+    @Test
+    public void parsesEachType() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+
+        parse(parser, "a:1|c\nb:-2.50|g\nc:3.00|h\nd:4|ms|@0.25\ne:5|s@0.1\nf:+6|g\ng:7|g\n");
+
+        assertEquals(7, backend.events().size());
+        assertEquals("a:1|c", backend.events().get(0));
+        assertEquals("b:-2.5|g", backend.events().get(1));
+        assertEquals("c:3|h", backend.events().get(2));
+        assertEquals("d:4|ms@0.25", backend.events().get(3));
+        assertEquals("e:"+member("5")+"|s", backend.events().get(4));
+        assertEquals("f:+6|g", backend.events().get(5));
+        assertEquals("g:7|g", backend.events().get(6));
+        assertEquals(0, parser.getMalformedLines());
+    }
+
+
+    @Test
+    public void countsMalformedLines() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+
+        parse(parser, "a:1|x\n:1|c\nb:1.|c\nc:1|c@\nd:1|c\n \ne:1|m\nf:1|c|@0.0\ng:1|c|\nh:+1|c\ni:+-1|g");
+
+        assertEquals(1, backend.events().size());
+        assertEquals(10, parser.getMalformedLines());
+    }
+
+
+    @Test
+    public void parsesTags() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(true));
+
+        parse(parser, "a:1|c|#env:prod,az:1\na:2|c|@0.5|#az:1, env:prod\nb:3|ms|#x|@0.25\nc:4|g|#\na:5|c\nd:u1|s|#k:v");
+
+        assertEquals(6, backend.events().size());
+        assertEquals("a|#az:1,env:prod:1|c", backend.events().get(0));
+        assertEquals("a|#az:1,env:prod:2|c@0.5", backend.events().get(1));
+        assertEquals("b|#x:3|ms@0.25", backend.events().get(2));
+        assertEquals("c:4|g", backend.events().get(3));
+        assertEquals("a:5|c", backend.events().get(4));
+        assertEquals("d|#k:v:"+member("u1")+"|s", backend.events().get(5));
+        assertEquals(0, parser.getMalformedLines());
+    }
+
+
+    @Test
+    public void countsMalformedTags() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+
+        parse(parser, "a:1|c|#x|#y\nb:1|c|T123\nc:1|c|@0.5|@0.5\nd:1|c|#x|@0.x");
+
+        assertEquals(0, backend.events().size());
+        assertEquals(2, parser.getMalformedLines(StatsdParser.Failure.TAGS));
+        assertEquals(2, parser.getMalformedLines(StatsdParser.Failure.RATE));
+    }
+
+
+    @Test
+    public void rejectsRatesOutOfRange() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+
+        parse(parser, "a:1|ms|@0.000000001\nb:1|c|@1.5\nc:1|h|@0.000001\nd:1|c|@1");
+
+        assertEquals(2, backend.events().size());
+        assertEquals("c:1|h@1.0E-6", backend.events().get(0));
+        assertEquals("d:1|c", backend.events().get(1));
+        assertEquals(2, parser.getMalformedLines(StatsdParser.Failure.RATE));
+    }
+
+
+    @Test
+    public void rejectsValuesTooLargeForADouble() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+        final StringBuilder huge = new StringBuilder("9");
+        for (int i=0; i<400; i++) { huge.append('0'); }
+
+        parse(parser, "a:"+huge+"|ms\nb:-"+huge+".5|g\nc:1e3|c\nd:"+huge.substring(0, 300)+"|h");
+
+        assertEquals(1, backend.events().size());
+        assertEquals("d:9.0E299|h", backend.events().get(0));
+        assertEquals(3, parser.getMalformedLines(StatsdParser.Failure.VALUE));
+    }
+
+
+    @Test
+    public void parsesDirectBuffers() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+        final byte[] bytes = "\u00e9t\u00e9:12345678901234567890.5|c".getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer packet = ByteBuffer.allocateDirect(bytes.length);
+        packet.put(bytes).flip();
+
+        parser.parse(packet);
+
+        assertEquals("\u00e9t\u00e9:1.2345678901234567E19|c", backend.events().get(0));
+        assertEquals(0, packet.remaining());
+    }
+
+
+    @Test
+    public void acceptsSameGrammarAsRegex() {
+        final Random random = new Random(42);
+        final String alphabet = "ab:|@.-+01239cghms \t\r";
+        for (int n=0; n<200000; n++) {
+            final StringBuilder line = new StringBuilder();
+            final int length = random.nextInt(14);
+            for (int i=0; i<length; i++) {
+                line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            final String event = line.toString();
+
+            final RecordingBackend backend = new RecordingBackend();
+            final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+            parse(parser, event);
+
+            final String trimmed = event.trim();
+            final Matcher m = EVENT.matcher(trimmed);
+            if (trimmed.isEmpty()) {
+                assertEquals(event, 0, backend.events().size());
+            } else if (m.matches()
+                       && isValidRate(m.group(4))
+                       && ("s".equals(m.group(3))
+                           || ("g".equals(m.group(3)) ? GAUGE : NUMBER)
+                                  .matcher(m.group(2)).matches())) {
+                assertEquals(event, 1, backend.events().size());
+                assertEquals(
+                    event,
+                    m.group(1)+":"+expectedValue(m.group(3), m.group(2))+"|"
+                        +m.group(3)+expectedRate(m.group(3), m.group(4)),
+                    backend.events().get(0));
+            } else {
+                assertEquals(event, 0, backend.events().size());
+                assertEquals(event, 1, parser.getMalformedLines());
+            }
+        }
+    }
+
+
+    @Test
+    public void hashesSetMembers() {
+        final RecordingBackend backend = new RecordingBackend();
+        final StatsdParser parser = new StatsdParser(backend, new BucketTable(false));
+
+        parse(parser, "u:alice|s\nu:bob|s|@0.5\nu:alice|s\nu:|s\nu:1.|s");
+
+        assertEquals(4, backend.events().size());
+        assertEquals("u:"+member("alice")+"|s", backend.events().get(0));
+        assertEquals("u:"+member("bob")+"|s", backend.events().get(1));
+        assertEquals(backend.events().get(0), backend.events().get(2));
+        assertEquals("u:"+member("1.")+"|s", backend.events().get(3));
+        assertEquals(1, parser.getMalformedLines());
+    }
+
+
+    private static String member(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return "#"+Long.toHexString(HyperLogLog.hash(bytes, 0, bytes.length));
+    }
+
+
+    private static String expectedValue(final String type, final String value) {
+        if ("s".equals(type)) { return member(value); }
+        if (value.startsWith("+")) { return "+"+expectedValue(type, value.substring(1)); }
+        final BigDecimal d = new BigDecimal(value);
+        try {
+            return String.valueOf(d.setScale(0).longValueExact());
+        } catch (final ArithmeticException e) {
+            return String.valueOf(Double.parseDouble(value));
+        }
+    }
+
+
+    private static boolean isValidRate(final String rate) {
+        if (null==rate) { return true; }
+        final double r = Double.parseDouble(rate);
+        return r>=StatsdParser.MIN_SAMPLE_RATE && r<=1;
+    }
+
+
+    private static String expectedRate(final String type, final String rate) {
+        if (null==rate || "g".equals(type) || "s".equals(type)) {
+            return "";
+        }
+        final double r = Double.parseDouble(rate);
+        return (1==r) ? "" : "@"+r;
+    }
+
+
+    private static void parse(final StatsdParser parser, final String packet) {
+        final byte[] bytes = packet.getBytes(StandardCharsets.UTF_8);
+        parser.parse(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,161 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+import static org.junit.Assert.*;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.TcpEventReceiverPool;
+
+
+
+/**
+ * Tests for the {@link TcpEventReceiverPool} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class TcpEventReceiverPoolTest {
+
+    private TcpEventReceiverPool _pool;
+
+
+    @After
+    public void tearDown() {
+        if (null!=_pool) {
+            _pool.stop();
+        }
+    }
+
+
+    private Socket connect() throws Exception {
+        return new Socket(InetAddress.getLoopbackAddress(), _pool.getPort());
+    }
+
+
+    private static void write(final Socket socket,
+                              final String s) throws Exception {
+        final OutputStream out = socket.getOutputStream();
+        out.write(s.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+
+    /* A line is counted before its event reaches the backend. */
+    private void awaitEvents(final RecordingBackend backend,
+                             final int events) throws Exception {
+        final long deadline = System.currentTimeMillis()+5000;
+        while (backend.events().size()<events
+               && System.currentTimeMillis()<deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(events, _pool.getLines());
+    }
+
+
+    @Test
+    public void joinsLinesSplitAcrossReads() throws Exception {
+        final RecordingBackend backend = new RecordingBackend();
+        _pool =
+            new TcpEventReceiverPool(
+                backend, new BucketTable(false), 0, 1, 1024, 0);
+        _pool.start();
+
+        try (Socket socket = connect()) {
+            write(socket, "a:1|c\nb:2");
+            Thread.sleep(50);
+            write(socket, "|g\nc:3|m");
+            Thread.sleep(50);
+            write(socket, "s\n");
+            awaitEvents(backend, 3);
+        }
+        assertEquals("[a:1|c, b:2|g, c:3|ms]", backend.events().toString());
+        assertEquals(0, _pool.getMalformedLines());
+    }
+
+
+    @Test
+    public void processesLastLineWithoutNewlineOnClose() throws Exception {
+        final RecordingBackend backend = new RecordingBackend();
+        _pool =
+            new TcpEventReceiverPool(
+                backend, new BucketTable(false), 0, 1, 1024, 0);
+        _pool.start();
+
+        try (Socket socket = connect()) {
+            write(socket, "a:1|c\nb:2|c");
+        }
+        awaitEvents(backend, 2);
+        assertEquals("[a:1|c, b:2|c]", backend.events().toString());
+    }
+
+
+    @Test
+    public void discardsLinesLongerThanBuffer() throws Exception {
+        final RecordingBackend backend = new RecordingBackend();
+        _pool =
+            new TcpEventReceiverPool(
+                backend, new BucketTable(false), 0, 1, 16, 0);
+        _pool.start();
+
+        try (Socket socket = connect()) {
+            write(socket, "a:1|c\n");
+            awaitEvents(backend, 1);
+            write(socket, "a.very.long.bucket.name:1|c\nb:2|c\n");
+            awaitEvents(backend, 2);
+        }
+        assertEquals("[a:1|c, b:2|c]", backend.events().toString());
+        assertEquals(1, _pool.getReceivers().get(0).getOversizedLines());
+    }
+
+
+    @Test
+    public void servesManyConnectionsFromFewThreads() throws Exception {
+        final RecordingBackend backend = new RecordingBackend();
+        _pool =
+            new TcpEventReceiverPool(
+                backend, new BucketTable(false), 0, 2, 1024, 0);
+        _pool.start();
+
+        final List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i=0; i<20; i++) {
+                sockets.add(connect());
+            }
+            for (int round=0; round<10; round++) {
+                for (final Socket socket : sockets) {
+                    write(socket, "a:1|c\n");
+                }
+            }
+            awaitEvents(backend, 200);
+            assertEquals(20, _pool.getConnections());
+            assertEquals(20, _pool.getOpenConnections());
+        } finally {
+            for (final Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        assertEquals(200, backend.events().size());
+    }
+}
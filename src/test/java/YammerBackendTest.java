@@ -0,0 +1,88 @@
+/*-----------------------------------------------------------------------------
+ * Copyright © 2013 Keith Webster Johnston.
+ * All rights reserved.
+ *
+ * This file is part of jstatsd.
+ *
+ * jstatsd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ *
+ * jstatsd is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with jstatsd. If not, see <http://www.gnu.org/licenses/>.
+ *---------------------------------------------------------------------------*/
+
+import static org.junit.Assert.*;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.johnstok.jstatsd.Bucket;
+import com.johnstok.jstatsd.BucketTable;
+import com.johnstok.jstatsd.Checkpoint;
+import com.johnstok.jstatsd.StatsdParser;
+import com.johnstok.jstatsd.YammerBackend;
+
+
+
+/**
+ * Tests for the {@link YammerBackend} class.
+ *
+ * @author Keith Webster Johnston.
+ */
+public class YammerBackendTest {
+
+    @Test
+    public void keepsEachTypeOfABucket() {
+        final BucketTable buckets = new BucketTable(false);
+        final Bucket foo = buckets.get("foo");
+        final YammerBackend backend = new YammerBackend();
+
+        backend.count(foo, 2, 1);
+        backend.time(foo, 5, 1); // Registered as foo.timer.
+        backend.time(foo, 6, 1);
+        backend.gauge(foo, 7);   // Registered as foo.gauge.
+        backend.count(foo, 3, 1);
+
+        final Map<String, Double> saved = new HashMap<>();
+        backend.saveState(new Checkpoint.Visitor() {
+            @Override
+            public void counter(final Bucket bucket, final double value) {
+                saved.put("c:"+bucket, Double.valueOf(value));
+            }
+            @Override
+            public void gauge(final Bucket bucket, final double value) {
+                saved.put("g:"+bucket, Double.valueOf(value));
+            }
+        });
+        assertEquals(2, saved.size());
+        assertEquals(Double.valueOf(5), saved.get("c:foo"));
+        assertEquals(Double.valueOf(7), saved.get("g:foo"));
+        backend.stop();
+    }
+
+
+    @Test
+    public void weightsSampledValuesWithoutCap() {
+        final BucketTable buckets = new BucketTable(false);
+        final YammerBackend backend = new YammerBackend();
+
+        backend.time(buckets.get("t"), 5, 0.0001);
+        backend.time(buckets.get("t"), 7.5, 1);
+        backend.histogram(buckets.get("h"), 3, StatsdParser.MIN_SAMPLE_RATE);
+
+        final MetricRegistry registry = backend.getRegistry();
+        final Timer timer = registry.getTimers().get("t");
+        assertEquals(10001, timer.getCount());
+        assertEquals(5, timer.getSnapshot().getMedian()/1000000, 0.1);
+        assertEquals(1000000, registry.getHistograms().get("h").getCount());
+        backend.stop();
+    }
+}